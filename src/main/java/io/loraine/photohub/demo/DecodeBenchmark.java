@@ -0,0 +1,519 @@
+/**
+ * Photohub ---- To View Some S3xy Photos
+ * Copyright (C) 2025 Loraine K. Cheung
+ * <p>
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * <p>
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * <p>
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+/*
+ * Rough benchmarks for the decode pipeline, each class here is a standalone
+ * program. Pass the directory of your sample photos as the first argument
+ * or change the default path in the code.
+ *
+ * These are not JMH benchmarks, run them a few times and compare the trend
+ * instead of the absolute numbers.
+ */
+
+package io.loraine.photohub.demo;
+
+import io.loraine.photohub.photo.Photo;
+import io.loraine.photohub.photo.PhotoLoader;
+import io.loraine.photohub.photo.cache.EncodedImageCache;
+import io.loraine.photohub.photo.decode.BandDecoder;
+import io.loraine.photohub.photo.decode.DecoderRegistry;
+import io.loraine.photohub.photo.decode.ImageStreams;
+import io.loraine.photohub.photo.decode.ReaderPool;
+import io.loraine.photohub.photo.pixel.FxImages;
+import io.loraine.photohub.photo.pixel.Kernels;
+import io.loraine.photohub.photo.pixel.Resampler;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.color.ColorSpace;
+import java.awt.image.BufferedImage;
+import java.awt.image.ColorModel;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Decode-to-display latency with and without the {@code PixelBuffer} handoff.
+ */
+class PixelBufferBench {
+    public static void main(String[] args) {
+        Path dir = Paths.get(args.length > 0 ? args[0] : "your/photo/dir"); // Change this to your photo directory
+
+        for (int round = 0; round < 3; round++) {
+            for (boolean enabled : new boolean[]{false, true}) {
+                FxImages.setPixelBufferEnabled(enabled);
+                double millis = BenchUtils.timeFullDecode(dir);
+                System.out.printf("Round %d, pixel buffer %-5b: %.2f ms per photo%n", round, enabled, millis);
+            }
+        }
+    }
+}
+
+/**
+ * Dimension probes and full decodes through each {@link ImageStreams.Mode}.
+ * <p>
+ * Drop the OS page cache between runs (e.g. {@code echo 3 > /proc/sys/vm/drop_caches})
+ * to compare cold reads on HDD and NVMe archives.
+ */
+class StreamModeBench {
+    public static void main(String[] args) {
+        Path dir = Paths.get(args.length > 0 ? args[0] : "your/photo/dir"); // Change this to your photo directory
+
+        for (int round = 0; round < 3; round++) {
+            for (ImageStreams.Mode mode : ImageStreams.Mode.values()) {
+                ImageStreams.setMode(mode);
+                double probe = BenchUtils.timeDimensionProbe(dir);
+                double decode = BenchUtils.timeFullDecode(dir);
+                System.out.printf("Round %d, %-7s: probe %.3f ms, decode %.2f ms per photo%n",
+                        round, mode, probe, decode);
+            }
+        }
+    }
+}
+
+/**
+ * Dimension probes and full decodes with and without reusing the readers.
+ */
+class ReaderPoolBench {
+    public static void main(String[] args) {
+        Path dir = Paths.get(args.length > 0 ? args[0] : "your/photo/dir"); // Change this to your photo directory
+
+        for (int round = 0; round < 3; round++) {
+            for (boolean enabled : new boolean[]{false, true}) {
+                ReaderPool.setEnabled(enabled);
+                double probe = BenchUtils.timeDimensionProbe(dir);
+                double decode = BenchUtils.timeFullDecode(dir);
+                System.out.printf("Round %d, reader pool %-5b: probe %.3f ms, decode %.2f ms per photo%n",
+                        round, enabled, probe, decode);
+            }
+        }
+
+        System.out.println("Readers: " + ReaderPool.getStats());
+    }
+}
+
+/**
+ * Decodes with the pixel cache cold, first from the disk then from the
+ * encoded bytes cached by the first pass.
+ */
+class EncodedCacheBench {
+    public static void main(String[] args) {
+        Path dir = Paths.get(args.length > 0 ? args[0] : "your/photo/dir"); // Change this to your photo directory
+        EncodedImageCache encoded = EncodedImageCache.getInstance();
+
+        for (int round = 0; round < 3; round++) {
+            encoded.invalidateAll();
+            double disk = BenchUtils.timeFullDecode(dir);
+            double memory = BenchUtils.timeFullDecode(dir); // A fresh loader, only the encoded bytes are cached
+            System.out.printf("Round %d: from disk %.2f ms, from memory %.2f ms per photo%n", round, disk, memory);
+        }
+
+        System.out.println("Encoded cache: " + encoded.getStats());
+    }
+}
+
+/**
+ * Full decodes of large tiled or striped TIFFs in one piece and in parallel bands.
+ * <p>
+ * Only TIFFs of at least {@link BandDecoder#MIN_PIXELS} pixels are banded,
+ * the time should go down with the number of cores.
+ */
+class BandDecodeBench {
+    public static void main(String[] args) {
+        Path dir = Paths.get(args.length > 0 ? args[0] : "your/photo/dir"); // Change this to your photo directory
+
+        for (int round = 0; round < 3; round++) {
+            for (boolean enabled : new boolean[]{false, true}) {
+                BandDecoder.setEnabled(enabled);
+                double millis = BenchUtils.timeFullDecode(dir, Runtime.getRuntime().availableProcessors());
+                System.out.printf("Round %d, bands %-5b: %.2f ms per photo%n", round, enabled, millis);
+            }
+        }
+    }
+}
+
+/**
+ * Conversion of decoded images to JavaFX images, grouped by color model, with
+ * {@code SwingFXUtils} and with the conversion kernels, scalar and SIMD.
+ * <p>
+ * Put some CMYK JPEGs or TIFFs, 16-bit PNGs and 48-bit TIFFs in the directory
+ * to see the difference, the decode time is not counted. Run with
+ * {@code --add-modules jdk.incubator.vector} to include the SIMD kernels.
+ */
+class ColorModelBench {
+    public static void main(String[] args) {
+        Path dir = Paths.get(args.length > 0 ? args[0] : "your/photo/dir"); // Change this to your photo directory
+
+        List<Photo> photos;
+        try (PhotoLoader loader = new PhotoLoader(1, 1)) {
+            loader.scanPath(dir);
+            photos = loader.getPhotoPaths();
+        } catch (Exception e) {
+            System.err.println(e.getClass().getName() + ": " + e.getMessage());
+            return;
+        }
+
+        String[] modes = {"SwingFXUtils", "scalar", "SIMD"};
+
+        for (int round = 0; round < 3; round++) {
+            for (String mode : modes) {
+                if (mode.equals("SIMD") && !Kernels.isVectorAvailable()) {
+                    continue;
+                }
+
+                FxImages.setPixelBufferEnabled(!mode.equals("SwingFXUtils"));
+                Kernels.setVectorEnabled(mode.equals("SIMD"));
+
+                Map<String, double[]> formats = new TreeMap<>(); // Total milliseconds and count
+                for (Photo photo : photos) {
+                    BufferedImage image;
+                    try {
+                        image = ImageIO.read(photo.getPath().toFile());
+                    } catch (IOException e) {
+                        continue;
+                    }
+
+                    if (image == null) {
+                        continue;
+                    }
+
+                    long start = System.nanoTime();
+                    FxImages.toFXImage(image);
+                    double millis = (System.nanoTime() - start) / 1e6;
+
+                    double[] total = formats.computeIfAbsent(describe(image), k -> new double[2]);
+                    total[0] += millis;
+                    total[1]++;
+                }
+
+                for (Map.Entry<String, double[]> entry : formats.entrySet()) {
+                    double[] total = entry.getValue();
+                    System.out.printf("Round %d, %-12s, %-24s: %.2f ms per photo (%d)%n",
+                            round, mode, entry.getKey(), total[0] / total[1], (int) total[1]);
+                }
+            }
+        }
+    }
+
+    private static String describe(BufferedImage image) {
+        ColorModel colorModel = image.getColorModel();
+
+        String space = switch (colorModel.getColorSpace().getType()) {
+            case ColorSpace.TYPE_CMYK -> "CMYK";
+            case ColorSpace.TYPE_GRAY -> "Gray";
+            case ColorSpace.TYPE_RGB -> colorModel.getColorSpace().isCS_sRGB() ? "sRGB" : "RGB (ICC)";
+            default -> "Other";
+        };
+
+        return space + (colorModel.hasAlpha() ? "A " : " ")
+                + colorModel.getComponentSize(0) + "-bit, type " + image.getType();
+    }
+}
+
+/**
+ * Downscaling of decoded photos to thumbnails with {@code Graphics2D} bilinear
+ * interpolation and with the {@link Resampler}, on scalar and SIMD kernels.
+ * <p>
+ * Run with {@code --add-modules jdk.incubator.vector} to include the SIMD kernels.
+ * The decode time is not counted, bilinear is much faster but only reads four
+ * source pixels per thumbnail pixel, the fine details alias.
+ */
+class ThumbResizeBench {
+    private static final int THUMB_SIZE = 256;
+
+    public static void main(String[] args) {
+        Path dir = Paths.get(args.length > 0 ? args[0] : "your/photo/dir"); // Change this to your photo directory
+
+        List<Photo> photos;
+        try (PhotoLoader loader = new PhotoLoader(1, 1)) {
+            loader.scanPath(dir);
+            photos = loader.getPhotoPaths();
+        } catch (Exception e) {
+            System.err.println(e.getClass().getName() + ": " + e.getMessage());
+            return;
+        }
+
+        // Subsampled by the decoder like the thumbnail loader does, to about 2 times the thumbnail size
+        List<BufferedImage> images = new ArrayList<>();
+        for (Photo photo : photos) {
+            try (ImageInputStream in = ImageIO.createImageInputStream(photo.getPath().toFile())) {
+                Iterator<ImageReader> readers = ImageIO.getImageReaders(in);
+                if (!readers.hasNext()) {
+                    continue;
+                }
+
+                ImageReader reader = readers.next();
+                try {
+                    reader.setInput(in);
+                    int sub = Math.max(1, Math.max(reader.getWidth(0), reader.getHeight(0)) / (THUMB_SIZE * 2));
+
+                    ImageReadParam param = reader.getDefaultReadParam();
+                    param.setSourceSubsampling(sub, sub, 0, 0);
+                    images.add(reader.read(0, param));
+                } finally {
+                    reader.dispose();
+                }
+            } catch (IOException e) {
+                // Skip the unreadable ones
+            }
+        }
+
+        if (images.isEmpty()) {
+            System.err.println("No photo found in " + dir);
+            return;
+        }
+
+        System.out.println("Vector kernels available: " + Kernels.isVectorAvailable());
+
+        for (int round = 0; round < 3; round++) {
+            long start = System.nanoTime();
+            for (BufferedImage image : images) {
+                int[] size = thumbSize(image);
+                BufferedImage thumb = new BufferedImage(size[0], size[1], BufferedImage.TYPE_INT_ARGB_PRE);
+                Graphics2D g2d = thumb.createGraphics();
+                g2d.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+                g2d.drawImage(image, 0, 0, size[0], size[1], null);
+                g2d.dispose();
+            }
+            System.out.printf("Round %d, bilinear         : %.2f ms per photo%n",
+                    round, (System.nanoTime() - start) / 1e6 / images.size());
+
+            for (boolean vector : new boolean[]{false, true}) {
+                if (vector && !Kernels.isVectorAvailable()) {
+                    continue;
+                }
+
+                Kernels.setVectorEnabled(vector);
+                start = System.nanoTime();
+                for (BufferedImage image : images) {
+                    int[] size = thumbSize(image);
+                    Resampler.resize(image, size[0], size[1]);
+                }
+                System.out.printf("Round %d, resampler %-7s: %.2f ms per photo%n",
+                        round, vector ? "SIMD" : "scalar", (System.nanoTime() - start) / 1e6 / images.size());
+            }
+        }
+    }
+
+    private static int[] thumbSize(BufferedImage image) {
+        double ratio = Math.min((double) THUMB_SIZE / image.getWidth(), (double) THUMB_SIZE / image.getHeight());
+        return new int[]{
+                Math.max(1, (int) (image.getWidth() * ratio)),
+                Math.max(1, (int) (image.getHeight() * ratio))
+        };
+    }
+}
+
+/**
+ * Whole thumbnail generation, the subsampled decode plus the downscaling,
+ * for the old path and the {@link Resampler} at several oversampling factors.
+ * <p>
+ * The old path subsampled the decode right down to the thumbnail size and
+ * drew it with {@code Graphics2D} bilinear interpolation, the
+ * {@code ThumbLoader} now keeps {@code OVERSAMPLING} times the thumbnail
+ * size per axis for the resampler.
+ * <p>
+ * The decode takes most of the time, the resampler doesn't make the whole
+ * generation faster than the old path, at 2x it costs about the same.
+ */
+class ThumbGenerationBench {
+    private static final int THUMB_SIZE = 256;
+    private static final int[] OVERSAMPLINGS = {2, 4};
+
+    public static void main(String[] args) {
+        Path dir = Paths.get(args.length > 0 ? args[0] : "your/photo/dir"); // Change this to your photo directory
+
+        List<Photo> photos;
+        try (PhotoLoader loader = new PhotoLoader(1, 1)) {
+            loader.scanPath(dir);
+            photos = loader.getPhotoPaths();
+        } catch (Exception e) {
+            System.err.println(e.getClass().getName() + ": " + e.getMessage());
+            return;
+        }
+
+        if (photos == null || photos.isEmpty()) {
+            System.err.println("No photo found in " + dir);
+            return;
+        }
+
+        System.out.println("Vector kernels available: " + Kernels.isVectorAvailable());
+
+        for (int round = 0; round < 5; round++) {
+            System.out.printf("Round %d, bilinear 1x : %.2f ms per photo%n", round, time(photos, 1));
+            for (int oversampling : OVERSAMPLINGS) {
+                System.out.printf("Round %d, lanczos %dx  : %.2f ms per photo%n", round, oversampling,
+                        time(photos, oversampling));
+            }
+        }
+    }
+
+    /**
+     * @param oversampling decoded pixels per thumbnail pixel along each axis, 1 for the old bilinear path
+     * @return average milliseconds per photo
+     */
+    private static double time(List<Photo> photos, int oversampling) {
+        long start = System.nanoTime();
+        for (Photo photo : photos) {
+            try (ImageInputStream in = ImageStreams.open(photo.getPath())) {
+                ImageReader reader = ReaderPool.acquire(in, photo.detectFormat(in));
+                try {
+                    reader.setInput(in, false, false);
+                    int srcW = reader.getWidth(0);
+                    int srcH = reader.getHeight(0);
+
+                    double ratio = Math.min((double) THUMB_SIZE / srcW, (double) THUMB_SIZE / srcH);
+                    int thumbW = Math.max(1, (int) (srcW * ratio));
+                    int thumbH = Math.max(1, (int) (srcH * ratio));
+
+                    ImageReadParam param = reader.getDefaultReadParam();
+                    param.setSourceSubsampling(Math.max(1, srcW / (thumbW * oversampling)),
+                            Math.max(1, srcH / (thumbH * oversampling)), 0, 0);
+                    BufferedImage sampled = reader.read(0, param);
+
+                    if (oversampling == 1) {
+                        BufferedImage thumb = new BufferedImage(thumbW, thumbH, BufferedImage.TYPE_INT_ARGB_PRE);
+                        Graphics2D g2d = thumb.createGraphics();
+                        g2d.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+                        g2d.drawImage(sampled, 0, 0, thumbW, thumbH, null);
+                        g2d.dispose();
+                    } else {
+                        Resampler.resize(sampled, thumbW, thumbH);
+                    }
+                } finally {
+                    ReaderPool.release(reader);
+                }
+            } catch (IOException e) {
+                // Skip the unreadable ones
+            }
+        }
+
+        return (System.nanoTime() - start) / 1e6 / photos.size();
+    }
+}
+
+/**
+ * Throughput of every decoder of each format found in the directory, e.g. the
+ * sejda and TwelveMonkeys WebP readers or the JDK and TwelveMonkeys JPEG readers.
+ * <p>
+ * Prints the option which pins the fastest decoder, the same choice the
+ * {@link DecoderRegistry} makes after a calibration.
+ */
+class DecoderBench {
+    public static void main(String[] args) {
+        Path dir = Paths.get(args.length > 0 ? args[0] : "your/photo/dir"); // Change this to your photo directory
+
+        Map<String, List<DecoderRegistry.Measurement>> results;
+        try {
+            results = DecoderRegistry.calibrate(dir, 3);
+        } catch (IOException e) {
+            System.err.println(e.getClass().getName() + ": " + e.getMessage());
+            return;
+        }
+
+        if (results.isEmpty()) {
+            System.out.println("No format with more than one decoder in " + dir);
+        }
+
+        for (Map.Entry<String, List<DecoderRegistry.Measurement>> entry : results.entrySet()) {
+            System.out.println(entry.getKey() + ":");
+            for (DecoderRegistry.Measurement measurement : entry.getValue()) {
+                System.out.println("    " + measurement);
+            }
+
+            System.out.printf("    -> -Dphotohub.decoder.%s=%s%n",
+                    entry.getKey(), DecoderRegistry.getSelected(entry.getKey()).getClass().getName());
+        }
+    }
+}
+
+class BenchUtils {
+    private BenchUtils() {
+    }
+
+    /**
+     * Read the dimensions of all photos in the directory without decoding them.
+     *
+     * @return average milliseconds per photo, or -1 if no photo is found
+     */
+    static double timeDimensionProbe(Path dir) {
+        try (PhotoLoader loader = new PhotoLoader(1, 1)) {
+            loader.scanPath(dir);
+            List<Photo> photos = loader.getPhotoPaths();
+            if (photos == null || photos.isEmpty()) {
+                return -1;
+            }
+
+            long start = System.nanoTime();
+            for (Photo photo : photos) {
+                // A new Photo each time, the loaded ones are skipped
+                loader.loadPhotoMetadataAsync(new Photo(photo.getPath(), true)).join();
+            }
+
+            return (System.nanoTime() - start) / 1e6 / photos.size();
+        } catch (Exception e) {
+            System.err.println(e.getClass().getName() + ": " + e.getMessage());
+            return -1;
+        }
+    }
+
+    /**
+     * Decode all photos in the directory at full resolution with a fresh loader.
+     *
+     * @return average milliseconds per photo, or -1 if no photo is found
+     */
+    static double timeFullDecode(Path dir) {
+        return timeFullDecode(dir, 1);
+    }
+
+    /**
+     * Decode all photos in the directory at full resolution with a fresh
+     * loader of {@code threads} threads, one photo after another.
+     *
+     * @return average milliseconds per photo, or -1 if no photo is found
+     */
+    static double timeFullDecode(Path dir, int threads) {
+        try (PhotoLoader loader = new PhotoLoader(1, threads)) { // Nearly no cache
+            loader.scanPath(dir);
+            List<Photo> photos = loader.getPhotoPaths();
+            if (photos == null || photos.isEmpty()) {
+                return -1;
+            }
+
+            long start = System.nanoTime();
+            for (Photo photo : photos) {
+                loader.loadPhotoAsync(photo).join();
+            }
+
+            return (System.nanoTime() - start) / 1e6 / photos.size();
+        } catch (Exception e) {
+            System.err.println(e.getClass().getName() + ": " + e.getMessage());
+            return -1;
+        }
+    }
+}
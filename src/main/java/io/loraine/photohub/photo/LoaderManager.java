@@ -18,6 +18,7 @@
 
 package io.loraine.photohub.photo;
 
+import io.loraine.photohub.photo.cache.MemoryBudget;
 import io.loraine.photohub.util.Logger;
 
 import java.nio.file.Path;
@@ -58,8 +59,9 @@ public class LoaderManager {
         directory = directory.normalize().toAbsolutePath();
 
         LoaderReference reference = referenceMap.computeIfAbsent(directory, dir -> {
+            // No cap of its own, the loaders of all directories share the memory budget
             PhotoLoader loader = new PhotoLoader(
-                    500 * 1024 * 1024,
+                    MemoryBudget.getInstance().getBudget(),
                     20,
                     60,
                     20
@@ -18,6 +18,10 @@
 
 package io.loraine.photohub.photo;
 
+import io.loraine.photohub.photo.decode.ImageFormat;
+import io.loraine.photohub.photo.decode.ImageStreams;
+import io.loraine.photohub.photo.decode.ReaderPool;
+
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.nio.file.Files;
@@ -27,10 +31,10 @@ import java.time.format.DateTimeFormatter;
 import java.time.LocalDateTime;
 import java.time.ZoneId;
 
-import java.util.Iterator;
+import java.util.Map;
 import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
 
-import javax.imageio.ImageIO;
 import javax.imageio.ImageReader;
 import javax.imageio.stream.ImageInputStream;
 
@@ -42,12 +46,21 @@ public class Photo {
     private final String name;
     private final String type;
 
+    // Recognized from the first bytes of the file, null until it's read
+    private volatile ImageFormat format = null;
+
     private final Path photoPath;
     private final Path parent;
 
     private volatile long width = -1;
     private volatile long height = -1;
 
+    // Pages of a multi-page TIFF, page 0 is the photo itself
+    private final int pageIndex;
+    private final Photo firstPage;
+    private volatile int pageCount = -1;
+    private final Map<Integer, Photo> pages;
+
     private volatile long storageSize = -1;
     private volatile LocalDateTime lastModifiedTime = null;
 
@@ -66,6 +79,10 @@ public class Photo {
         photoPath = path;
         parent = path.getParent().normalize().toAbsolutePath();
 
+        pageIndex = 0;
+        firstPage = this;
+        pages = new ConcurrentHashMap<>();
+
         name = path.getFileName().toString();
         type = Photos.getFileExtension(name);
 
@@ -106,6 +123,10 @@ public class Photo {
         photoPath = Paths.get(pathLiteral);
         parent = photoPath.getParent().normalize().toAbsolutePath();
 
+        pageIndex = 0;
+        firstPage = this;
+        pages = new ConcurrentHashMap<>();
+
         name = photoPath.getFileName().toString();
         type = Photos.getFileExtension(name);
 
@@ -151,11 +172,35 @@ public class Photo {
 
         name = photoPath.getFileName().toString();
         type = Photos.getFileExtension(name);
+
+        pageIndex = 0;
+        firstPage = this;
+        pages = new ConcurrentHashMap<>();
+    }
+
+    // A later page of the first page's file, nothing is read until it's loaded
+    private Photo(Photo firstPage, int pageIndex) {
+        photoPath = firstPage.photoPath;
+        parent = firstPage.parent;
+
+        name = firstPage.name;
+        type = firstPage.type;
+
+        this.pageIndex = pageIndex;
+        this.firstPage = firstPage;
+        pages = null;
+
+        // The attributes belong to the file, share them if they're already read
+        if (firstPage.isAttributesLoaded) {
+            storageSize = firstPage.storageSize;
+            lastModifiedTime = firstPage.lastModifiedTime;
+            isAttributesLoaded = true;
+        }
     }
 
     // Only read the metadata instead of decoding the image
     void loadImageDimensions() throws IOException {
-        try (ImageInputStream in = ImageIO.createImageInputStream(photoPath.toFile())) {
+        try (ImageInputStream in = ImageStreams.open(photoPath)) {
             if (in == null) {
                 throw new IOException("Failed to read the bytes in: " + photoPath);
             }
@@ -163,22 +208,30 @@ public class Photo {
             // ImageInputStream 用于顺序地（或随机地）存取图像文件中的原始字节数据，
             // 让后续的ImageReader可以正确地定位、解析图像文件头等相关元数据信息。
 
-            Iterator<ImageReader> readers = ImageIO.getImageReaders(in);
-            if (!readers.hasNext()) {
-                throw new IOException("Unable to decode: " + photoPath);
+            ImageReader reader;
+            try {
+                reader = ReaderPool.acquire(in, detectFormat(in)); // 按文件头识别的真实格式选择解码器
+            } catch (IOException e) {
+                throw new IOException("Unable to decode: " + photoPath, e);
             }
 
-            ImageReader reader = readers.next();
             try {
                 // 将 ImageInputStream 传给 ImageReader，
                 // 让它从该数据流中读取图片的必要元数据。
                 reader.setInput(in);
 
                 // 只读取元数据，不解码像素
-                this.width = reader.getWidth(0); // 第0帧 / 图层
-                this.height = reader.getHeight(0);
+                this.width = reader.getWidth(pageIndex); // 第 pageIndex 页，普通图片只有第0页
+                this.height = reader.getHeight(pageIndex);
+
+                // 多页 TIFF 只需遍历各个 IFD 即可得到页数，其他格式（包括 gif 的帧）都视为单页
+                if (firstPage.pageCount < 0) {
+                    firstPage.pageCount = "tiff".equalsIgnoreCase(reader.getFormatName())
+                            ? Math.max(1, reader.getNumImages(true))
+                            : 1;
+                }
             } finally {
-                reader.dispose(); // 释放资源
+                ReaderPool.release(reader); // 归还给读取器池
             }
         }
     }
@@ -194,10 +247,50 @@ public class Photo {
         return name;
     }
 
+    /**
+     * 获取照片文件的扩展名（小写），真实格式见 {@link #getFormat()}
+     */
     public String getType() {
         return type;
     }
 
+    /**
+     * 获取照片的真实格式。
+     * <p>
+     * 格式在加载尺寸或解码时由文件头的签名识别，只读取一次；
+     * 尚未识别或文件头无法识别时根据扩展名推测。
+     */
+    public ImageFormat getFormat() {
+        ImageFormat detected = firstPage.format;
+        return detected != null && detected != ImageFormat.UNKNOWN ? detected : ImageFormat.fromExtension(type);
+    }
+
+    /**
+     * 识别照片的真实格式，用于选择解码器。同一文件只在第一次调用时读取文件头，
+     * 之后直接使用保存的结果。
+     *
+     * @param in 照片文件的数据流，位置不变
+     * @return 传给 {@link ReaderPool#acquire} 的格式名，文件头无法识别时为扩展名
+     * @throws IOException 如果读取失败，或识别出的格式没有可用的解码器（如改名为 .jpg 的 HEIC）
+     */
+    public String detectFormat(ImageInputStream in) throws IOException {
+        ImageFormat detected = firstPage.format;
+        if (detected == null) {
+            detected = ImageFormat.detect(in);
+            firstPage.format = detected;
+        }
+
+        if (detected == ImageFormat.UNKNOWN) {
+            return type;
+        }
+
+        if (!detected.isSupported()) {
+            throw new IOException("Unsupported format " + detected + ": " + photoPath);
+        }
+
+        return detected.getName();
+    }
+
     public long getStorageSize() {
         return storageSize;
     }
@@ -240,6 +333,52 @@ public class Photo {
         return width + " x " + height;
     }
 
+    /**
+     * 获取该照片所在页的序号，普通图片和多页 TIFF 的第一页为 0
+     */
+    public int getPageIndex() {
+        return pageIndex;
+    }
+
+    /**
+     * 获取照片文件的页数，在尺寸加载时一并读取
+     *
+     * @return 页数，尚未加载时返回 -1
+     */
+    public int getPageCount() {
+        return firstPage.pageCount;
+    }
+
+    /**
+     * 获取照片文件中的第一页，即代表整个文件的 {@code Photo}
+     */
+    public Photo getFirstPage() {
+        return firstPage;
+    }
+
+    /**
+     * 获取照片文件中的某一页。
+     * <p>
+     * 每一页都是一个独立的 {@code Photo}，有自己的尺寸，可以单独加载与缓存，
+     * 只有被访问到的页才会被解码。同一页总是返回同一个对象。
+     *
+     * @param index 页序号，从 0 开始
+     * @return 第 {@code index} 页，0 为第一页本身
+     * @throws IndexOutOfBoundsException 如果页数已知且 {@code index} 超出范围
+     */
+    public Photo getPage(int index) {
+        int count = getPageCount();
+        if (index < 0 || (count > 0 && index >= count)) {
+            throw new IndexOutOfBoundsException("Page " + index + " is out of " + name);
+        }
+
+        if (index == 0) {
+            return firstPage;
+        }
+
+        return firstPage.pages.computeIfAbsent(index, i -> new Photo(firstPage, i));
+    }
+
     public LocalDateTime getLastModifiedTime() {
         return lastModifiedTime;
     }
@@ -269,6 +408,24 @@ public class Photo {
         isAttributesLoaded = value;
     }
 
+    /**
+     * Forget the metadata read from the file, once it's modified on disk,
+     * it's read again on the next load.
+     * <p>
+     * This should only be called by the PhotoLoader class
+     */
+    void invalidateMetadata() {
+        synchronized (lock) {
+            isAttributesLoaded = false;
+            isDimensionsLoaded = false;
+            format = null;
+            if (pages != null) {
+                pageCount = -1;
+                pages.values().forEach(Photo::invalidateMetadata);
+            }
+        }
+    }
+
     /** This should only be called by the PhotoLoader class */
     void setDimensionsLoaded(boolean value) {
         isDimensionsLoaded = value;
@@ -299,12 +456,12 @@ public class Photo {
 
         Photo other = (Photo) obj;
 
-        return this.photoPath.equals(other.photoPath);
+        return this.photoPath.equals(other.photoPath) && this.pageIndex == other.pageIndex;
     }
 
     @Override
     public int hashCode() {
-        return Objects.hash(photoPath, this.getClass());
+        return Objects.hash(photoPath, pageIndex, this.getClass());
     }
 
     public static void main(String[] args) {
@@ -18,38 +18,99 @@
 
 package io.loraine.photohub.photo;
 
+import io.loraine.photohub.photo.anim.GifAnimation;
+import io.loraine.photohub.photo.cache.DecodedImageCache;
+import io.loraine.photohub.photo.cache.DecodedImageCache.Decoded;
+import io.loraine.photohub.photo.cache.FileKey;
+import io.loraine.photohub.photo.cache.FileWatcher;
+import io.loraine.photohub.photo.cache.MemoryBudget;
+import io.loraine.photohub.photo.cache.OffHeapImageCache;
+import io.loraine.photohub.photo.decode.BandDecoder;
+import io.loraine.photohub.photo.decode.CancelToken;
+import io.loraine.photohub.photo.decode.ImageFormat;
+import io.loraine.photohub.photo.decode.ImageStreams;
+import io.loraine.photohub.photo.decode.ReaderPool;
+import io.loraine.photohub.photo.pixel.FxImages;
 import io.loraine.photohub.util.Logger;
 import javafx.scene.image.Image;
-import javafx.embed.swing.SwingFXUtils;
 
+import java.awt.Rectangle;
 import java.awt.image.BufferedImage;
-import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
 
+import java.nio.IntBuffer;
 import java.nio.file.*;
 
 import com.github.benmanes.caffeine.cache.Cache;
 import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.RemovalCause;
 
 import java.util.Collections;
 import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.*;
+import java.util.function.Predicate;
 import java.util.stream.Collectors;
 import java.util.stream.IntStream;
 import java.util.stream.Stream;
 
 import java.util.List;
 
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
 
 import java.io.Closeable;
 
 public class PhotoLoader implements Closeable {
-    private final Cache<Photo, Image> cache;
+    /** Subsampling level of a full resolution decode */
+    public static final int FULL_LEVEL = 1;
+
+    /** The coarsest subsampling level that a viewport-sized decode can choose */
+    public static final int MAX_LEVEL = 64;
+
+    /** Longest edge in pixels that a decoded preview aims at */
+    public static final int PREVIEW_SIZE = 256;
+
+    /** Edge length in decoded pixels of a tile, see {@link #loadTileAsync(Photo, int, int, int)} */
+    public static final int TILE_SIZE = 512;
+
+    private static final long TILE_CACHE_WEIGHT = 128L * 1024 * 1024; // 128MiB
+
+    /** Default of {@link #setGifFrameCap(int)}, can be set with {@code -Dphotohub.gifFrameCap} */
+    public static final int DEFAULT_GIF_FRAME_CAP = Integer.getInteger("photohub.gifFrameCap", 200);
+
+    private final Cache<LevelKey, Decoded> cache;
+
+    // Tiles are small and short-lived while panning, keep them apart from the whole images
+    private final Cache<TileKey, Image> tileCache = Caffeine.newBuilder()
+            .maximumWeight(TILE_CACHE_WEIGHT)
+            .expireAfterAccess(60, TimeUnit.SECONDS)
+            .weigher((TileKey k, Image i) -> new Decoded(i, 1).getWeight())
+            .removalListener(this::releaseCharge)
+            .build();
+    private final Map<TileKey, CompletableFuture<Image>> tileTasks = new ConcurrentHashMap<>();
 
     private final ExecutorService executor;
 
+    // Keep the decoded images in the shared off-heap cache instead of the two above
+    private final boolean offHeap = OffHeapImageCache.isEnabled();
+
+    // The images on the heap are also charged to the budget shared with the other loaders
+    private final MemoryBudget budget = MemoryBudget.getInstance();
+
+    // The version of each file read for the cached images, and the images left by closed loaders
+    private final Map<Path, FileKey> versions = new ConcurrentHashMap<>();
+    private final DecodedImageCache parked = DecodedImageCache.getInstance();
+
+    // The directories watched for files modified or deleted on disk
+    private final Map<Path, FileWatcher.Registration> watches = new ConcurrentHashMap<>();
+    private boolean isWatchClosed = false; // Guarded by watches, a scan or render still running may watch after close
+
     private CompletableFuture<Void> dirTask = null;
-    private final Map<Photo, CompletableFuture<Image>> photoTasks = new ConcurrentHashMap<>();
+    private final Map<LevelKey, CompletableFuture<Image>> photoTasks = new ConcurrentHashMap<>();
+    private final Map<Photo, CompletableFuture<Image>> previewTasks = new ConcurrentHashMap<>();
 
     private volatile Path dirPath;
     private volatile List<Photo> photoPaths;
@@ -60,6 +121,9 @@ public class PhotoLoader implements Closeable {
 
     private int timeOut = Integer.MAX_VALUE;
 
+    private volatile int gifFrameCap = DEFAULT_GIF_FRAME_CAP;
+    private final Map<Photo, Integer> gifFrames = new ConcurrentHashMap<>();
+
     private static final boolean DEBUG = false;
 
     /**
@@ -84,6 +148,7 @@ public class PhotoLoader implements Closeable {
                 .initialCapacity(10)
                 .maximumSize(cacheSize)
                 .expireAfterAccess(90, TimeUnit.SECONDS)
+                .removalListener(this::releaseCharge)
                 .build();
 
         int availableCores = Runtime.getRuntime().availableProcessors();
@@ -103,6 +168,7 @@ public class PhotoLoader implements Closeable {
                 .initialCapacity(10)
                 .maximumSize(cacheSize)
                 .expireAfterAccess(90, TimeUnit.SECONDS)
+                .removalListener(this::releaseCharge)
                 .build();
         executor = Executors.newFixedThreadPool(executorSize);
     }
@@ -120,6 +186,7 @@ public class PhotoLoader implements Closeable {
                 .initialCapacity(10)
                 .maximumSize(cacheSize)
                 .expireAfterAccess(expire, TimeUnit.SECONDS)
+                .removalListener(this::releaseCharge)
                 .build();
         executor = Executors.newFixedThreadPool(executorSize);
     }
@@ -138,11 +205,8 @@ public class PhotoLoader implements Closeable {
                 .initialCapacity(10)
                 .maximumWeight(cacheWeight)
                 .expireAfterAccess(90, TimeUnit.SECONDS)
-                .weigher((Photo p, Image i) -> {
-                    double weight = i.getHeight() * i.getWidth() * 4; // Estimate as ARGB, assume 1 byte per channel
-                    if (weight < 0) return 0;
-                    return weight > Integer.MAX_VALUE ? Integer.MAX_VALUE : (int) weight;
-                })
+                .weigher((LevelKey k, Decoded d) -> d.getWeight())
+                .removalListener(this::releaseCharge)
                 .build();
 
         int availableCores = Runtime.getRuntime().availableProcessors();
@@ -163,11 +227,8 @@ public class PhotoLoader implements Closeable {
                 .initialCapacity(10)
                 .maximumWeight(cacheWeight)
                 .expireAfterAccess(90, TimeUnit.SECONDS)
-                .weigher((Photo p, Image i) -> {
-                    double weight = i.getHeight() * i.getWidth() * 4;
-                    if (weight < 0) return 0;
-                    return weight > Integer.MAX_VALUE ? Integer.MAX_VALUE : (int) weight;
-                })
+                .weigher((LevelKey k, Decoded d) -> d.getWeight())
+                .removalListener(this::releaseCharge)
                 .build();
         executor = Executors.newFixedThreadPool(executorSize);
     }
@@ -187,11 +248,8 @@ public class PhotoLoader implements Closeable {
                 .initialCapacity(10)
                 .maximumWeight(cacheWeight)
                 .expireAfterAccess(expire, TimeUnit.SECONDS)
-                .weigher((Photo p, Image i) -> {
-                    double weight = i.getHeight() * i.getWidth() * 4;
-                    if (weight < 0) return 0;
-                    return weight > Integer.MAX_VALUE ? Integer.MAX_VALUE : (int) weight;
-                })
+                .weigher((LevelKey k, Decoded d) -> d.getWeight())
+                .removalListener(this::releaseCharge)
                 .build();
         executor = Executors.newFixedThreadPool(executorSize);
         this.timeOut = timeOut > 0 ? timeOut : Integer.MAX_VALUE;
@@ -295,36 +353,178 @@ public class PhotoLoader implements Closeable {
         return dirTask;
     }
 
-    //TODO New cache strategy for gif file should be considered, currently it is simply avoid from being cached.
+    /**
+     * Load the photo at the full resolution.
+     * <p>
+     * A gif is loaded with all its frames, and cached only if it has no more
+     * frames than {@link #getGifFrameCap()}.
+     * <p>
+     * Every page of a multi-page TIFF, see {@link Photo#getPage(int)}, is
+     * loaded and cached on its own, the other pages are not decoded.
+     */
     public CompletableFuture<Image> loadPhotoAsync(Photo photo) {
         if (photo == null) {
             return CompletableFuture.failedFuture(new NullPointerException("Photo cannot be null."));
         }
 
-        Photo realPhoto =
-                (isScanDone && photoIndex.containsKey(photo)) ? photoPaths.get(photoIndex.get(photo)) : photo;
+        return loadLevelAsync(resolvePhoto(photo), FULL_LEVEL);
+    }
+
+    /**
+     * Load the photo at the coarsest resolution level which can still fill a
+     * {@code targetWidth x targetHeight} viewport in "Fit" mode.
+     * <p>
+     * The level is a power-of-two source subsampling factor chosen from the
+     * photo's original dimensions, each level is cached under its own key.
+     * A cached finer level (including the full resolution one) will always be
+     * reused instead of decoding a coarser level again.
+     * <p>
+     * If {@code targetWidth} or {@code targetHeight} is not positive, or the
+     * photo is a gif, this behaves the same as {@link #loadPhotoAsync(Photo)}.
+     *
+     * @param photo        the photo to load
+     * @param targetWidth  width of the viewport in device pixels
+     * @param targetHeight height of the viewport in device pixels
+     * @return future of the decoded image, whose size may be smaller than the photo's
+     */
+    public CompletableFuture<Image> loadPhotoAsync(Photo photo, int targetWidth, int targetHeight) {
+        if (photo == null) {
+            return CompletableFuture.failedFuture(new NullPointerException("Photo cannot be null."));
+        }
+
+        Photo realPhoto = resolvePhoto(photo);
+
+        if (targetWidth <= 0 || targetHeight <= 0 || realPhoto.getFormat() == ImageFormat.GIF) {
+            return loadLevelAsync(realPhoto, FULL_LEVEL);
+        }
+
+        if (realPhoto.isDimensionsLoaded()) {
+            int level = getLevel(realPhoto.getWidth(), realPhoto.getHeight(), targetWidth, targetHeight);
+            return loadLevelAsync(realPhoto, level);
+        }
+
+        // The level depends on the original dimensions, read them first
+        return loadPhotoMetadataAsync(realPhoto).thenCompose(p -> {
+            int level = getLevel(p.getWidth(), p.getHeight(), targetWidth, targetHeight);
+            return loadLevelAsync(p, level);
+        });
+    }
+
+    /**
+     * Load the photo in two stages, a fast low resolution preview and then
+     * the image of {@link #loadPhotoAsync(Photo, int, int)}.
+     * <p>
+     * The preview is the thumbnail embedded in the file (EXIF / JFIF) when it
+     * has the photo's aspect ratio, otherwise a heavily subsampled decode
+     * around {@link #PREVIEW_SIZE} pixels, which is cached as a resolution level.
+     *
+     * @param photo        the photo to load
+     * @param targetWidth  width of the viewport in device pixels, not positive for the full resolution
+     * @param targetHeight height of the viewport in device pixels, not positive for the full resolution
+     * @return the preview and the full stage
+     */
+    public ProgressiveLoad loadPhotoProgressiveAsync(Photo photo, int targetWidth, int targetHeight) {
+        if (photo == null) {
+            CompletableFuture<Image> failed =
+                    CompletableFuture.failedFuture(new NullPointerException("Photo cannot be null."));
+            return new ProgressiveLoad(failed, failed);
+        }
+
+        Photo realPhoto = resolvePhoto(photo);
 
-        // Check if photo hit the cache
-        Image cached = cache.getIfPresent(realPhoto);
+        // Cached images and gifs don't need a preview
+        Image cached = null;
+        if (realPhoto.isDimensionsLoaded()) {
+            int level = getLevel(realPhoto.getWidth(), realPhoto.getHeight(), targetWidth, targetHeight);
+            cached = getCachedLevel(realPhoto, level);
+        }
+
+        if (cached != null || realPhoto.getFormat() == ImageFormat.GIF) {
+            CompletableFuture<Image> full = loadPhotoAsync(realPhoto, targetWidth, targetHeight);
+            return new ProgressiveLoad(full, full);
+        }
+
+        // Submit the preview first, so it is taken by the pool before the full decode
+        CancelToken token = new CancelToken();
+        CompletableFuture<Image> preview = CompletableFuture.supplyAsync(() -> {
+            try {
+                return token.runWith(() -> renderPreview(realPhoto));
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        }, executor).orTimeout(timeOut, TimeUnit.SECONDS);
+        abortOnFailure(preview, token);
+
+        previewTasks.put(realPhoto, preview);
+        preview.whenComplete((image, ex) -> previewTasks.remove(realPhoto, preview));
+
+        CompletableFuture<Image> full = loadPhotoAsync(realPhoto, targetWidth, targetHeight);
+
+        return new ProgressiveLoad(preview, full);
+    }
+
+    /**
+     * Get the resolution level which a {@code targetWidth x targetHeight}
+     * viewport needs to display a {@code srcWidth x srcHeight} photo.
+     *
+     * @return the largest power of two subsampling factor, not exceeding
+     * {@link #MAX_LEVEL}, whose decoded image is still not smaller than the
+     * photo fitted into the viewport; {@link #FULL_LEVEL} if any size is invalid
+     */
+    public static int getLevel(long srcWidth, long srcHeight, int targetWidth, int targetHeight) {
+        if (srcWidth <= 0 || srcHeight <= 0 || targetWidth <= 0 || targetHeight <= 0) {
+            return FULL_LEVEL;
+        }
+
+        // The fitted image is limited by the larger shrink ratio
+        double shrink = Math.max((double) srcWidth / targetWidth, (double) srcHeight / targetHeight);
+
+        int level = FULL_LEVEL;
+        while (level < MAX_LEVEL && level * 2 <= shrink) {
+            level *= 2;
+        }
+
+        return level;
+    }
+
+    private CompletableFuture<Image> loadLevelAsync(Photo realPhoto, int level) {
+        // Check if photo hit the cache, any finer level can serve the request too
+        Image cached = getCachedLevel(realPhoto, level);
         if (cached != null) {
-            if (DEBUG) Logger.log("Cache hit: " + realPhoto.getName());
+            if (DEBUG) Logger.log("Cache hit: " + realPhoto.getName() + " @ 1/" + level);
             return CompletableFuture.completedFuture(cached);
         }
 
+        LevelKey key = new LevelKey(realPhoto, level);
+
         // Check if the photo is already in loading
-        CompletableFuture<Image> future = photoTasks.get(realPhoto);
+        CompletableFuture<Image> future = photoTasks.get(key);
         if (future != null && !future.isDone()) {
             return future;
         }
 
+        CancelToken token = new CancelToken();
         CompletableFuture<Image> loadTask = CompletableFuture.supplyAsync(() -> {
                     try {
-                        Image image = render(realPhoto);
-                        if (!realPhoto.getType().equals("gif")) {
-                            cache.put(realPhoto, image);
+                        // Before the read, a file modified meanwhile is read again
+                        FileKey file = recordVersion(realPhoto);
+                        Image parkedImage = takeParked(realPhoto, level, file);
+                        if (parkedImage != null) {
+                            return parkedImage;
+                        }
+
+                        Image image = token.runWith(() ->
+                                level == FULL_LEVEL ? render(realPhoto) : render(realPhoto, level));
+
+                        // The frame cap only applies to a gif, other formats are always cached
+                        Integer frames = realPhoto.getFormat() == ImageFormat.GIF ? gifFrames.get(realPhoto) : null;
+                        if (frames == null) {
+                            putCached(key, image, 1);
+                        } else if (frames <= gifFrameCap) {
+                            putCached(key, image, frames);
                         }
                         if (DEBUG) {
-                            Logger.log("Render ended: " + realPhoto.getName());
+                            Logger.log("Render ended: " + realPhoto.getName() + " @ 1/" + level);
                         }
                         return image;
                     } catch (IOException e) {
@@ -332,9 +532,10 @@ public class PhotoLoader implements Closeable {
                     }
                 }, executor)
                 .orTimeout(timeOut, TimeUnit.SECONDS);
+        abortOnFailure(loadTask, token);
 
         // Ensure that only the first started task is put in the map
-        CompletableFuture<Image> existingTask = photoTasks.putIfAbsent(realPhoto, loadTask);
+        CompletableFuture<Image> existingTask = photoTasks.putIfAbsent(key, loadTask);
         if (existingTask != null) {
             if (!loadTask.isDone()) {
                 loadTask.cancel(true);
@@ -343,13 +544,254 @@ public class PhotoLoader implements Closeable {
             return existingTask;
         }
 
-        loadTask.whenComplete((image, ex) -> photoTasks.remove(realPhoto));
+        loadTask.whenComplete((image, ex) -> photoTasks.remove(key));
 
         return loadTask;
     }
 
-    //TODO New cache strategy for gif file should be considered, now is simply avoided from being pre-loaded
+    /**
+     * Cancel all the running and queued loads of a photo, including its
+     * preview and tiles, e.g. when the viewer has navigated away from it.
+     * <p>
+     * A decode in progress is aborted at the next callback of its reader,
+     * the futures of the cancelled loads complete with a {@link CancellationException}.
+     *
+     * @param photo the photo whose loads are cancelled
+     */
+    public void cancelLoad(Photo photo) {
+        if (photo == null) {
+            return;
+        }
+
+        Photo realPhoto = resolvePhoto(photo);
+
+        photoTasks.forEach((key, task) -> {
+            if (key.photo().equals(realPhoto)) {
+                task.cancel(true);
+            }
+        });
+
+        tileTasks.forEach((key, task) -> {
+            if (key.photo().equals(realPhoto)) {
+                task.cancel(true);
+            }
+        });
+
+        CompletableFuture<Image> preview = previewTasks.get(realPhoto);
+        if (preview != null) {
+            preview.cancel(true);
+        }
+
+        if (DEBUG) Logger.log("Load cancelled: " + realPhoto.getName());
+    }
+
+    /**
+     * Stop the decode of a task once it's cancelled or timed out, which
+     * {@code CompletableFuture} can't do by itself.
+     */
+    private static void abortOnFailure(CompletableFuture<Image> task, CancelToken token) {
+        task.whenComplete((image, ex) -> {
+            if (ex != null) {
+                token.cancel();
+            }
+        });
+    }
+
+    /**
+     * Look up the cached levels without any I/O, it's called on the FX thread.
+     * The version of the file is only checked by the load tasks, a file
+     * modified on disk is dropped by the {@link FileWatcher} meanwhile.
+     */
+    private Image getCachedLevel(Photo photo, int level) {
+        for (int l = level; l >= FULL_LEVEL; l /= 2) {
+            Image cached = getCached(new LevelKey(photo, l));
+            if (cached != null) {
+                return cached;
+            }
+        }
+
+        return null;
+    }
+
+    /**
+     * Take an image left by a closed loader, e.g. the folder is opened again.
+     * Called by a load task once the version of the file is recorded.
+     *
+     * @param file the version of the file, {@code null} if it can't be read
+     * @return the image of the level or a finer one, or {@code null}
+     */
+    private Image takeParked(Photo photo, int level, FileKey file) {
+        if (file == null) {
+            return null;
+        }
+
+        for (int l = level; l >= FULL_LEVEL; l /= 2) {
+            Decoded decoded = parked.take(getParkedKey(file, photo, l));
+            if (decoded != null) {
+                if (DEBUG) Logger.log("Parked hit: " + photo.getName() + " @ 1/" + l);
+                putCached(new LevelKey(photo, l), decoded.image(), decoded.frames());
+                return decoded.image();
+            }
+        }
+
+        return null;
+    }
+
+    /**
+     * Drop all the cached images of a file, e.g. once it's modified on disk.
+     *
+     * @param path the path of the file, all its pages are dropped
+     */
+    public void invalidate(Path path) {
+        if (path == null) {
+            return;
+        }
+
+        invalidate(path::equals);
+    }
+
+    // One pass over each cache for a whole batch of files
+    private void invalidate(Predicate<Path> paths) {
+        versions.keySet().removeIf(paths);
+        cache.asMap().keySet().removeIf(k -> paths.test(k.photo().getPath()));
+        tileCache.asMap().keySet().removeIf(k -> paths.test(k.photo().getPath()));
+        if (offHeap) {
+            OffHeapImageCache.getInstance().invalidateAll(k -> k instanceof OwnedKey owned && owned.owner() == this
+                    && (owned.key() instanceof LevelKey l && paths.test(l.photo().getPath())
+                    || owned.key() instanceof TileKey t && paths.test(t.photo().getPath())));
+        }
+        parked.invalidateAll(paths);
+    }
+
+    /**
+     * Watch a directory, the cached images and the metadata of its files are
+     * dropped once they are modified or deleted on disk.
+     */
+    protected void watch(Path directory) {
+        synchronized (watches) {
+            // The watcher would keep a closed loader reachable and keep notifying it
+            if (isWatchClosed) {
+                return;
+            }
+
+            watches.computeIfAbsent(directory.normalize().toAbsolutePath(),
+                    dir -> FileWatcher.getInstance().watch(dir, this::onFilesChanged));
+        }
+    }
+
+    protected void unwatch(Path directory) {
+        FileWatcher.Registration registration;
+        synchronized (watches) {
+            registration = watches.remove(directory.normalize().toAbsolutePath());
+        }
+
+        if (registration != null) {
+            registration.close();
+        }
+    }
+
+    /**
+     * Called on the watcher thread with a batch of created, modified or deleted
+     * files of a watched directory.
+     *
+     * @param overflow whether some events were lost, then every file of the directory is dropped
+     */
+    protected void onFilesChanged(Path directory, Set<Path> changed, boolean overflow) {
+        Predicate<Path> paths = overflow ? p -> directory.equals(p.getParent()) : changed::contains;
+        invalidate(paths);
+
+        List<Photo> photos = photoPaths;
+        if (!isScanDone || photos == null) {
+            return;
+        }
+
+        for (Photo photo : photos) {
+            if (!paths.test(photo.getPath())) {
+                continue;
+            }
+
+            photo.invalidateMetadata();
+
+            // A deleted file can't be decoded anymore
+            if (!Files.exists(photo.getPath())) {
+                cancelLoad(photo);
+            }
+        }
+
+        if (DEBUG) Logger.log("Files changed in %s: %d, overflow %b", directory, changed.size(), overflow);
+    }
+
+    /**
+     * Record the version of a file about to be read, the images cached from
+     * an older version are dropped. Only called on the executor, it stats the file.
+     *
+     * @return the version, or {@code null} if the file can't be read
+     */
+    private FileKey recordVersion(Photo photo) {
+        FileKey file = readVersion(photo);
+        if (file == null) {
+            return null;
+        }
+
+        FileKey old = versions.put(photo.getPath(), file);
+        if (old != null && !old.equals(file)) {
+            if (DEBUG) Logger.log("Modified on disk: " + photo.getName());
+            invalidate(photo.getPath());
+            versions.put(photo.getPath(), file);
+        }
+
+        return file;
+    }
+
+    private static FileKey readVersion(Photo photo) {
+        try {
+            return FileKey.of(photo.getPath());
+        } catch (IOException e) {
+            return null; // Deleted or unreadable, nothing cached for it is valid anymore
+        }
+    }
+
+    private DecodedImageCache.Key getParkedKey(FileKey file, Photo photo, int level) {
+        return new DecodedImageCache.Key(file, photo.getPageIndex(), getCacheVariant(), level);
+    }
+
+    /**
+     * What this loader renders, the images of the same file and level are only
+     * shared with the loaders rendering the same.
+     */
+    protected String getCacheVariant() {
+        return "photo";
+    }
+
+    /**
+     * Get the scanned instance of a photo, or the same page of it, so the
+     * loaded dimensions are shared with the caller's equal photo.
+     */
+    private Photo resolvePhoto(Photo photo) {
+        Photo first = photo.getFirstPage();
+        if (!isScanDone || !photoIndex.containsKey(first)) {
+            return photo;
+        }
+
+        Photo scanned = photoPaths.get(photoIndex.get(first));
+        return photo.getPageIndex() == 0 ? scanned : scanned.getPage(photo.getPageIndex());
+    }
+
     public CompletableFuture<Void> preLoadPhotosAsync(int curIndex, int preloadCount) {
+        return preLoadPhotosAsync(curIndex, preloadCount, 0, 0);
+    }
+
+    /**
+     * Preload the photos around {@code curIndex} at the resolution level of a
+     * {@code targetWidth x targetHeight} viewport.
+     * <p>
+     * Gifs are preloaded with all their frames if they have no more frames
+     * than {@link #getGifFrameCap()}, the larger ones are skipped.
+     *
+     * @see #loadPhotoAsync(Photo, int, int)
+     */
+    public CompletableFuture<Void> preLoadPhotosAsync(int curIndex, int preloadCount,
+                                                      int targetWidth, int targetHeight) {
         CompletableFuture<Void> preLoadTask = CompletableFuture.supplyAsync(() -> {
             if (!isScanDone || photoPaths == null || photoPaths.isEmpty()) {
                 return List.<CompletableFuture<Image>>of();
@@ -373,9 +815,9 @@ public class PhotoLoader implements Closeable {
             return IntStream.range(start, end + 1) // start <= i < end + 1
                     .filter(i -> i != curIndex)
                     .mapToObj(i -> photoPaths.get(i))
-                    .filter(photo -> !photo.getType().equals("gif"))
-                    .filter(photo -> cache.getIfPresent(photo) == null)
-                    .map(this::loadPhotoAsync)
+                    .map(photo -> photo.getFormat() == ImageFormat.GIF
+                            ? preLoadGifAsync(photo)
+                            : loadPhotoAsync(photo, targetWidth, targetHeight)) // cache hits complete at once
                     .toList(); // toArray here may cause type unsafety
 
         }, executor).thenCompose(futures -> {
@@ -395,13 +837,209 @@ public class PhotoLoader implements Closeable {
         return preLoadTask;
     }
 
+    /**
+     * Open a gif for playback, its frames are decoded lazily on this loader's
+     * threads while playing, see {@link GifAnimation}.
+     * <p>
+     * Unlike {@link #loadPhotoAsync(Photo)}, only the first frame is decoded
+     * before the future completes, and nothing is cached except the encoded bytes.
+     *
+     * @param photo the gif to open
+     * @return future of the opened animation, which must be closed by the caller
+     */
+    public CompletableFuture<GifAnimation> loadAnimationAsync(Photo photo) {
+        if (photo == null) {
+            return CompletableFuture.failedFuture(new NullPointerException("Photo cannot be null."));
+        }
+
+        Photo realPhoto = resolvePhoto(photo);
+
+        return CompletableFuture.supplyAsync(() -> {
+            try {
+                return GifAnimation.open(realPhoto, executor, GifAnimation.DEFAULT_BUFFER_SIZE);
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        }, executor).orTimeout(timeOut, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Get the full resolution image of the photo only if it has been cached,
+     * e.g. a preloaded gif.
+     *
+     * @return the cached image or {@code null}
+     */
+    public Image getPhotoIfPresent(Photo photo) {
+        if (photo == null) {
+            return null;
+        }
+
+        return getCachedLevel(resolvePhoto(photo), FULL_LEVEL);
+    }
+
+    /**
+     * Preload a gif if it doesn't have too many frames, the frames are
+     * counted from the encoded bytes without decoding them.
+     */
+    private CompletableFuture<Image> preLoadGifAsync(Photo photo) {
+        Image cached = getCachedLevel(photo, FULL_LEVEL);
+        if (cached != null) {
+            return CompletableFuture.completedFuture(cached);
+        }
+
+        return CompletableFuture.supplyAsync(() -> {
+            try {
+                return getGifFrameCount(photo);
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        }, executor).thenCompose(frames -> {
+            if (frames > gifFrameCap) {
+                if (DEBUG) Logger.log("Gif skipped in preloading: " + photo.getName() + ", " + frames + " frames");
+                return CompletableFuture.completedFuture(null);
+            }
+
+            return loadLevelAsync(photo, FULL_LEVEL);
+        });
+    }
+
+    /**
+     * Get the max frame count of a gif that can be cached or preloaded.
+     */
+    public int getGifFrameCap() {
+        return gifFrameCap;
+    }
+
+    /**
+     * Set the max frame count of a gif that can be cached or preloaded, a
+     * cached gif weighs {@code frames x width x height x 4} bytes.
+     *
+     * @param gifFrameCap the max frame count, 0 to never cache a gif
+     */
+    public void setGifFrameCap(int gifFrameCap) {
+        if (gifFrameCap < 0) {
+            throw new IllegalArgumentException("Frame cap cannot be negative.");
+        }
+
+        this.gifFrameCap = gifFrameCap;
+    }
+
+    /**
+     * Load one tile of the photo for zoomed-in viewing, only the source region
+     * of the tile is decoded.
+     * <p>
+     * At {@code level} the photo is split into a grid of
+     * {@code (TILE_SIZE * level) x (TILE_SIZE * level)} source pixel tiles,
+     * every tile is decoded with a subsampling of {@code level}, so it is at
+     * most {@code TILE_SIZE x TILE_SIZE} pixels. Tiles are kept in their own
+     * LRU cache, apart from the whole images.
+     * <p>
+     * The photo's dimensions must have been loaded,
+     * see {@link #loadPhotoMetadataAsync(Photo)}.
+     *
+     * @param photo the photo, gif is not supported
+     * @param level subsampling level of the tile grid
+     * @param col   column of the tile
+     * @param row   row of the tile
+     * @return future of the decoded tile
+     */
+    public CompletableFuture<Image> loadTileAsync(Photo photo, int level, int col, int row) {
+        if (photo == null) {
+            return CompletableFuture.failedFuture(new NullPointerException("Photo cannot be null."));
+        }
+
+        Photo realPhoto = resolvePhoto(photo);
+
+        Rectangle region = getTileRegion(realPhoto, level, col, row);
+        if (region == null) {
+            return CompletableFuture.failedFuture(new IndexOutOfBoundsException(
+                    "Tile (" + col + ", " + row + ") @ 1/" + level + " is out of " + realPhoto.getName()));
+        }
+
+        TileKey key = new TileKey(realPhoto, level, col, row);
+
+        Image cached = getCached(key);
+        if (cached != null) {
+            return CompletableFuture.completedFuture(cached);
+        }
+
+        CompletableFuture<Image> future = tileTasks.get(key);
+        if (future != null && !future.isDone()) {
+            return future;
+        }
+
+        CancelToken token = new CancelToken();
+        CompletableFuture<Image> loadTask = CompletableFuture.supplyAsync(() -> {
+                    try {
+                        recordVersion(realPhoto);
+                        Image tile = token.runWith(() -> decode(realPhoto, level, region));
+                        putCached(key, tile);
+                        return tile;
+                    } catch (IOException e) {
+                        throw new RuntimeException(e);
+                    }
+                }, executor)
+                .orTimeout(timeOut, TimeUnit.SECONDS);
+        abortOnFailure(loadTask, token);
+
+        CompletableFuture<Image> existingTask = tileTasks.putIfAbsent(key, loadTask);
+        if (existingTask != null) {
+            if (!loadTask.isDone()) {
+                loadTask.cancel(true);
+            }
+
+            return existingTask;
+        }
+
+        loadTask.whenComplete((image, ex) -> tileTasks.remove(key));
+
+        return loadTask;
+    }
+
+    /**
+     * Get a tile only if it has been cached.
+     *
+     * @return the cached tile or {@code null}
+     * @see #loadTileAsync(Photo, int, int, int)
+     */
+    public Image getTileIfPresent(Photo photo, int level, int col, int row) {
+        if (photo == null) {
+            return null;
+        }
+
+        return getCached(new TileKey(resolvePhoto(photo), level, col, row));
+    }
+
+    /**
+     * Get the source region covered by a tile.
+     *
+     * @return the region in original pixels, or {@code null} if the tile is
+     * out of the photo or the photo's dimensions are unknown
+     * @see #loadTileAsync(Photo, int, int, int)
+     */
+    public static Rectangle getTileRegion(Photo photo, int level, int col, int row) {
+        if (photo == null || !photo.isDimensionsLoaded() || level < FULL_LEVEL || col < 0 || row < 0) {
+            return null;
+        }
+
+        long span = (long) TILE_SIZE * level;
+        long x = col * span;
+        long y = row * span;
+
+        if (x >= photo.getWidth() || y >= photo.getHeight()) {
+            return null;
+        }
+
+        return new Rectangle((int) x, (int) y,
+                (int) Math.min(span, photo.getWidth() - x), (int) Math.min(span, photo.getHeight() - y));
+    }
+
     public CompletableFuture<Photo> loadPhotoMetadataAsync(Photo photo) {
         if (photo == null) {
             return CompletableFuture.failedFuture(new NullPointerException("Photo cannot be null."));
         }
 
-        Photo realPhoto =
-                (isScanDone && photoIndex.containsKey(photo)) ? photoPaths.get(photoIndex.get(photo)) : photo;
+        Photo realPhoto = resolvePhoto(photo);
 
         if (realPhoto.isAttributesLoaded() && realPhoto.isDimensionsLoaded()) {
             return CompletableFuture.completedFuture(realPhoto);
@@ -433,50 +1071,349 @@ public class PhotoLoader implements Closeable {
     }
 
     protected Image render(Photo photo) throws IOException {
+        return render(photo, FULL_LEVEL);
+    }
+
+    /**
+     * Decode the photo with a source subsampling of {@code level} in both directions.
+     *
+     * @param photo the photo to decode
+     * @param level the subsampling factor, {@link #FULL_LEVEL} for the full resolution
+     */
+    protected Image render(Photo photo, int level) throws IOException {
         if (photo == null) {
             throw new NullPointerException("Photo cannot be null.");
         }
 
         if (DEBUG) {
-            Logger.log("Rendering " + photo.getName());
+            Logger.log("Rendering " + photo.getName() + " @ 1/" + level);
         }
 
-        if (photo.getType().equals("gif")) {
-            return new Image(photo.getPath().toUri().toString());
+        if (photo.getFormat() == ImageFormat.GIF) {
+            return renderGif(photo);
+        }
+
+        return decode(photo, level, null);
+    }
+
+    /**
+     * Load all frames of a gif from its encoded bytes, which are kept in the
+     * {@link io.loraine.photohub.photo.cache.EncodedImageCache} by counting
+     * the frames first.
+     */
+    private Image renderGif(Photo photo) throws IOException {
+        int frames = getGifFrameCount(photo);
+        byte[] bytes = ImageStreams.readCached(photo.getPath());
+
+        Image image = new Image(new ByteArrayInputStream(bytes));
+        if (image.isError()) {
+            throw new IOException("Failed to load image: " + photo.getPath(), image.getException());
+        }
+
+        if (DEBUG) Logger.log("Gif loaded: " + photo.getName() + ", " + frames + " frames");
+
+        return image;
+    }
+
+    private int getGifFrameCount(Photo photo) throws IOException {
+        Integer frames = gifFrames.get(photo);
+        if (frames != null) {
+            return frames;
+        }
+
+        try (ImageInputStream in = ImageStreams.openCached(photo.getPath())) {
+            ImageReader reader = getReader(in, photo);
+            try {
+                reader.setInput(in, false, true);
+                frames = Math.max(1, reader.getNumImages(true)); // Walks through all the blocks
+            } finally {
+                ReaderPool.release(reader);
+            }
+        } catch (IOException e) {
+            throw new IOException("Failed to count frames: " + photo.getPath(), e);
+        }
+
+        gifFrames.put(photo, frames);
+        return frames;
+    }
+
+    /**
+     * Render a low resolution preview of the photo, the embedded thumbnail if
+     * it fits, or a subsampled decode which is also cached as a resolution level.
+     */
+    private Image renderPreview(Photo photo) throws IOException {
+        recordVersion(photo);
+        try (ImageInputStream in = ImageStreams.open(photo.getPath())) {
+            ImageReader reader = getReader(in, photo);
+            try {
+                reader.setInput(in, true, false); // Thumbnails are kept in the metadata
+                CancelToken.watch(reader);
+
+                int page = photo.getPageIndex();
+                int srcW = reader.getWidth(page);
+                int srcH = reader.getHeight(page);
+
+                if (reader.readerSupportsThumbnails() && reader.getNumThumbnails(page) > 0) {
+                    int thumbW = reader.getThumbnailWidth(page, 0);
+                    int thumbH = reader.getThumbnailHeight(page, 0);
+
+                    // Some cameras pad the thumbnail to 4:3, which would flash black bars
+                    double aspectDiff = Math.abs((double) thumbW / thumbH - (double) srcW / srcH);
+                    if (aspectDiff < 0.02 * srcW / srcH) {
+                        BufferedImage thumb = reader.readThumbnail(page, 0);
+                        if (thumb != null) {
+                            if (DEBUG) Logger.log("Embedded preview: " + photo.getName());
+                            return FxImages.toFXImage(thumb);
+                        }
+                    }
+                }
+
+                int level = getLevel(srcW, srcH, PREVIEW_SIZE, PREVIEW_SIZE);
+                LevelKey key = new LevelKey(photo, level);
+
+                ImageReadParam param = reader.getDefaultReadParam();
+                param.setSourceSubsampling(level, level, 0, 0);
+
+                BufferedImage bufferedImage = reader.read(page, param);
+                CancelToken.throwIfCancelled();
+                if (bufferedImage == null) {
+                    throw new IOException("Failed to load preview: " + photo.getPath());
+                }
+
+                Image preview = toImage(bufferedImage);
+                putCached(key, preview);
+                return preview;
+            } finally {
+                ReaderPool.release(reader);
+            }
+        } catch (IOException e) {
+            throw new IOException("Failed to load preview: " + photo.getPath(), e);
+        }
+    }
+
+    /**
+     * Convert a decoded image for display and caching, into a direct buffer
+     * in the off-heap mode. The result is always in premultiplied ARGB, which
+     * Prism uploads without converting it again on the FX thread.
+     * <p>
+     * <b>Note:</b> the pixels of {@code image} may be modified in place, see
+     * {@link FxImages#toFXImage(BufferedImage)}.
+     */
+    protected Image toImage(BufferedImage image) {
+        if (offHeap) {
+            try {
+                return FxImages.toDirectFXImage(image);
+            } catch (OutOfMemoryError e) {
+                // Direct memory is exhausted, let the GC free the evicted buffers
+                if (DEBUG) Logger.logErr("Direct memory exhausted: ", e);
+                OffHeapImageCache.getInstance().invalidateAll();
+            }
+        }
+
+        return FxImages.toFXImage(image);
+    }
+
+    private Image getCached(Object key) {
+        if (offHeap) {
+            Image image = OffHeapImageCache.getInstance().get(new OwnedKey(this, key));
+            if (image != null || key instanceof TileKey) {
+                return image;
+            }
+        }
+
+        Image image;
+        if (key instanceof TileKey tileKey) {
+            image = tileCache.getIfPresent(tileKey);
+        } else {
+            Decoded cached = cache.getIfPresent((LevelKey) key);
+            image = cached == null ? null : cached.image();
+        }
+
+        if (image != null) {
+            budget.touch(this, key);
+        }
+        return image;
+    }
+
+    private void putCached(Object key, Image image) {
+        putCached(key, image, 1);
+    }
+
+    private void putCached(Object key, Image image, int frames) {
+        // The frames of an animated gif are decoded by JavaFX on the heap
+        if (offHeap && frames == 1) {
+            OffHeapImageCache.getInstance().put(new OwnedKey(this, key), image);
+        } else if (key instanceof TileKey tileKey) {
+            tileCache.put(tileKey, image);
+            budget.charge(this, key, image, new Decoded(image, 1).getWeight(), tileCache.asMap());
+        } else {
+            Decoded cached = new Decoded(image, frames);
+            cache.put((LevelKey) key, cached);
+            budget.charge(this, key, cached, cached.getWeight(), cache.asMap());
+        }
+    }
+
+    /**
+     * Give back the charge of an image the caches of this loader dropped by themselves.
+     * <p>
+     * The listener runs after the removal, so a charge may briefly outlive its
+     * image, or even be made after it, the budget then evicts it as the least
+     * recently used one in the end.
+     */
+    private void releaseCharge(Object key, Object value, RemovalCause cause) {
+        budget.release(this, key, value);
+    }
+
+    private static ImageReader getReader(ImageInputStream in, Photo photo) throws IOException {
+        if (in == null) {
+            throw new IOException("Failed to read the bytes in: " + photo.getPath());
         }
 
-        Image result;
         try {
-            BufferedImage bufferedImage = ImageIO.read(photo.getPath().toFile()); // The webp images' color may bias due to TwelveMonkeys' bug
+            return ReaderPool.acquire(in, photo.detectFormat(in));
+        } catch (IOException e) {
+            throw new IOException("Unable to decode: " + photo.getPath(), e);
+        }
+    }
+
+    /**
+     * Decode a region of the photo with a source subsampling of {@code level}.
+     *
+     * @param photo  the photo to decode
+     * @param level  the subsampling factor, {@link #FULL_LEVEL} for the full resolution
+     * @param region the source region in original pixels, {@code null} for the whole photo
+     */
+    private Image decode(Photo photo, int level, Rectangle region) throws IOException {
+        if (region == null) {
+            Image banded = decodeBands(photo, level);
+            if (banded != null) {
+                return banded;
+            }
+        }
+
+        Image result;
+        try (ImageInputStream in = ImageStreams.openCached(photo.getPath())) {
+            ImageReader reader = getReader(in, photo);
+            BufferedImage bufferedImage;
+            long start = System.nanoTime();
+            try {
+                reader.setInput(in, true, true);
+                CancelToken.watch(reader);
+
+                ImageReadParam param = reader.getDefaultReadParam();
+                if (level > FULL_LEVEL) {
+                    param.setSourceSubsampling(level, level, 0, 0);
+                }
+                if (region != null) {
+                    param.setSourceRegion(region);
+                }
+
+                // The webp images' color may bias due to TwelveMonkeys' bug
+                // Only the IFD chain is walked to reach a later page of a TIFF
+                bufferedImage = reader.read(photo.getPageIndex(), param);
+                CancelToken.throwIfCancelled();
+            } finally {
+                ReaderPool.release(reader);
+            }
 
             if (bufferedImage == null) {
                 throw new IOException("Failed to load image: " + photo.getPath());
             }
 
-            result = SwingFXUtils.toFXImage(bufferedImage, null);
+            long decoded = System.nanoTime();
+            result = toImage(bufferedImage);
 
             if (result.isError()) {
                 throw new IOException("Failed to load image: " + photo.getPath());
             }
 
+            if (DEBUG) {
+                Logger.log("Decode %s: %.2f ms, to FX image: %.2f ms (pixel buffer: %b)", photo.getName(),
+                        (decoded - start) / 1e6, (System.nanoTime() - decoded) / 1e6,
+                        FxImages.isPixelBufferEnabled());
+            }
+
             return result;
         } catch (IOException e) {
             throw new IOException("Failed to load image: " + photo.getPath(), e);
         }
     }
 
+    /**
+     * Decode a large TIFF in bands on this loader's threads, see {@link BandDecoder}.
+     *
+     * @return the decoded image, or {@code null} if the photo should be decoded in one piece
+     */
+    private Image decodeBands(Photo photo, int level) throws IOException {
+        int threads = Math.min(Runtime.getRuntime().availableProcessors(),
+                executor instanceof ThreadPoolExecutor pool ? pool.getMaximumPoolSize() : 1);
+
+        BandDecoder bands;
+        try {
+            bands = BandDecoder.plan(photo.getPath(), photo.getFormat().getName(),
+                    photo.getPageIndex(), level, threads);
+        } catch (IOException e) {
+            throw new IOException("Failed to load image: " + photo.getPath(), e);
+        }
+
+        if (bands == null) {
+            return null;
+        }
+
+        int width = bands.getWidth();
+        int height = bands.getHeight();
+
+        IntBuffer pixels = null;
+        if (offHeap) {
+            try {
+                pixels = FxImages.allocateDirect(width, height);
+            } catch (OutOfMemoryError e) {
+                if (DEBUG) Logger.logErr("Direct memory exhausted: ", e);
+                OffHeapImageCache.getInstance().invalidateAll();
+            }
+        }
+
+        if (pixels == null) {
+            pixels = IntBuffer.wrap(new int[Math.multiplyExact(width, height)]);
+        }
+
+        long start = System.nanoTime();
+        bands.decodeInto(pixels, executor);
+
+        if (DEBUG) {
+            Logger.log("Decode %s in %d bands: %.2f ms", photo.getName(), bands.getBandCount(),
+                    (System.nanoTime() - start) / 1e6);
+        }
+
+        return FxImages.wrap(pixels, width, height);
+    }
+
     private void cancelTask() {
         if (dirTask != null && !dirTask.isDone()) {
             dirTask.cancel(true);
         }
 
-        for (Map.Entry<Photo, CompletableFuture<Image>> entry : photoTasks.entrySet()) {
+        for (Map.Entry<LevelKey, CompletableFuture<Image>> entry : photoTasks.entrySet()) {
             if (entry.getValue() != null && !entry.getValue().isDone()) {
                 entry.getValue().cancel(true);
             }
         }
 
         photoTasks.clear();
+
+        for (CompletableFuture<Image> tileTask : tileTasks.values()) {
+            if (!tileTask.isDone()) {
+                tileTask.cancel(true);
+            }
+        }
+
+        tileTasks.clear();
+
+        for (CompletableFuture<Image> previewTask : previewTasks.values()) {
+            previewTask.cancel(true);
+        }
+
+        previewTasks.clear();
         executor.shutdownNow();
     }
 
@@ -511,12 +1448,16 @@ public class PhotoLoader implements Closeable {
         return List.copyOf(photoPaths);
     }
 
+    /**
+     * Get the index of a photo in the scanned directory, the pages of a
+     * multi-page photo share the index of their file.
+     */
     public int getPhotoIndex(Photo photo) {
-        if (!isScanDone) {
+        if (!isScanDone || photo == null) {
             return -1;
         }
 
-        return photoIndex.getOrDefault(photo, -1);
+        return photoIndex.getOrDefault(photo.getFirstPage(), -1);
     }
 
     public Photo getPhotoByIndex(int index) {
@@ -558,6 +1499,27 @@ public class PhotoLoader implements Closeable {
     @Override
     public void close() {
         cancelTask();
+
+        synchronized (watches) {
+            isWatchClosed = true;
+            watches.values().forEach(FileWatcher.Registration::close);
+            watches.clear();
+        }
+
+        if (offHeap) {
+            OffHeapImageCache.getInstance().invalidateAll(k -> k instanceof OwnedKey owned && owned.owner() == this);
+        }
+
+        // Leave the budget to the loaders still open, and the images to the next loader of the same files
+        budget.releaseAll(this);
+        cache.asMap().forEach((key, decoded) -> {
+            FileKey file = versions.get(key.photo().getPath());
+            if (file != null) {
+                parked.put(getParkedKey(file, key.photo(), key.level()), decoded);
+            }
+        });
+        cache.invalidateAll();
+        tileCache.invalidateAll();
     }
 
     private void validateDirectory(Path path) throws NoSuchFileException, AccessDeniedException {
@@ -595,5 +1557,26 @@ public class PhotoLoader implements Closeable {
         photoIndex = new ConcurrentHashMap<>(tmpPhotoIndex);
 
         isScanDone = true;
+
+        watch(dirPath);
+    }
+
+    /**
+     * Cache key of a decoded photo at a given subsampling level
+     */
+    private record LevelKey(Photo photo, int level) {
+    }
+
+    /**
+     * Cache key of a tile of the photo's tile grid at a given subsampling level
+     */
+    private record TileKey(Photo photo, int level, int col, int row) {
+    }
+
+    /**
+     * Key in the shared off-heap cache, the loaders may cache different images
+     * for the same key, e.g. a {@code ThumbLoader} and a {@code PhotoLoader}
+     */
+    private record OwnedKey(PhotoLoader owner, Object key) {
     }
-}
\ No newline at end of file
+}
@@ -18,18 +18,14 @@
 
 package io.loraine.photohub.photo;
 
+import io.loraine.photohub.photo.decode.DecoderRegistry;
 import io.loraine.photohub.util.Logger;
 
-import javax.imageio.ImageIO;
-
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.nio.file.Files;
 
 import java.util.Set;
-import java.util.Arrays;
-
-import java.util.stream.Collectors;
 
 import java.io.IOException;
 import java.nio.file.NoSuchFileException;
@@ -44,10 +40,8 @@ public class Photos {
     private static final boolean DEBUG = false;
 
     static {
-        String[] suffixes = ImageIO.getReaderFileSuffixes();
-
-        SUPPORTED_TYPES = Arrays
-                .stream(suffixes).map(String::toLowerCase).collect(Collectors.toUnmodifiableSet());
+        // Every decoder found by the registry, including the ones outside of ImageIO
+        SUPPORTED_TYPES = DecoderRegistry.getFormats();
 
         if (DEBUG) Logger.log("Supported types: " + SUPPORTED_TYPES);
     }
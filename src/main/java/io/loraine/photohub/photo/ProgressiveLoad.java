@@ -0,0 +1,39 @@
+/**
+ * Photohub ---- To View Some S3xy Photos
+ * Copyright (C) 2025 Loraine K. Cheung
+ * <p>
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * <p>
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * <p>
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package io.loraine.photohub.photo;
+
+import javafx.scene.image.Image;
+
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * The two stages of a progressive photo load.
+ * <p>
+ * {@code preview} completes first with a low resolution image, usually within
+ * tens of milliseconds, {@code full} completes later with the image to keep.
+ * Both futures complete with the same image if it has already been cached.
+ * The preview may fail independently, callers should then just wait for
+ * {@code full}.
+ *
+ * @param preview future of the low resolution preview
+ * @param full    future of the final image
+ * @see PhotoLoader#loadPhotoProgressiveAsync(Photo, int, int)
+ */
+public record ProgressiveLoad(CompletableFuture<Image> preview, CompletableFuture<Image> full) {
+}
@@ -0,0 +1,437 @@
+/**
+ * Photohub ---- To View Some S3xy Photos
+ * Copyright (C) 2025 Loraine K. Cheung
+ * <p>
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * <p>
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * <p>
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package io.loraine.photohub.photo.anim;
+
+import io.loraine.photohub.photo.Photo;
+import io.loraine.photohub.photo.decode.ImageStreams;
+import io.loraine.photohub.photo.decode.ReaderPool;
+import io.loraine.photohub.photo.pixel.FxImages;
+import io.loraine.photohub.util.Logger;
+
+import javafx.scene.image.Image;
+
+import org.w3c.dom.Node;
+
+import javax.imageio.ImageReader;
+import javax.imageio.metadata.IIOMetadata;
+import javax.imageio.stream.ImageInputStream;
+
+import java.awt.image.BufferedImage;
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Decode the frames of an animated gif one by one while it is playing.
+ * <p>
+ * Only the first frame is decoded when the animation is opened. The later
+ * ones are read with {@code ImageReader.read(frameIndex)}, composited onto
+ * the logical screen according to their disposal methods, and kept in a
+ * small ring buffer ahead of the playback. The memory is therefore bounded
+ * by the buffer size instead of the frame count, and nothing is decoded
+ * for the frames which are never shown.
+ * <p>
+ * Frames are taken in order by {@link #poll()}, after the last frame the
+ * animation starts over from the first one. Decoding runs on the given
+ * executor, one frame after another.
+ */
+public class GifAnimation implements Closeable {
+    /** Frames decoded ahead of the playback by default */
+    public static final int DEFAULT_BUFFER_SIZE = 8;
+
+    // Browsers play the delays below 20ms as 100ms, so do we
+    private static final int MIN_DELAY = 20;
+    private static final int DEFAULT_DELAY = 100;
+
+    private static final boolean DEBUG = false;
+
+    /**
+     * A composited frame ready to be shown.
+     *
+     * @param image the whole logical screen after drawing the frame
+     * @param index index of the frame in the gif
+     * @param delay how long it should be shown in milliseconds
+     */
+    public record Frame(Image image, int index, int delay) {
+    }
+
+    private enum Disposal {
+        NONE, RESTORE_BACKGROUND, RESTORE_PREVIOUS
+    }
+
+    private final Photo photo;
+    private final Executor executor;
+
+    private final ImageInputStream in;
+    private final ImageReader reader;
+
+    private final int width;
+    private final int height;
+
+    // Guarded by decodeLock
+    private final int[] canvas;
+    private int[] saved = null; // canvas before a RESTORE_PREVIOUS frame
+    private Disposal pendingDisposal = Disposal.NONE;
+    private int disposeX, disposeY, disposeW, disposeH;
+    private int nextIndex = 0;
+
+    private final Object decodeLock = new Object();
+
+    private final BlockingQueue<Frame> buffer;
+    private final AtomicBoolean isFilling = new AtomicBoolean(false);
+
+    private final Frame firstFrame;
+
+    private volatile int frameCount = -1; // Unknown until the end is reached
+    private volatile boolean isClosed = false;
+    private volatile boolean isFailed = false;
+
+    private GifAnimation(Photo photo, Executor executor, int bufferSize,
+                         ImageInputStream in, ImageReader reader) throws IOException {
+        this.photo = photo;
+        this.executor = executor;
+        this.in = in;
+        this.reader = reader;
+        this.buffer = new ArrayBlockingQueue<>(bufferSize);
+
+        int[] screen = readLogicalScreen(reader);
+        width = screen[0];
+        height = screen[1];
+        canvas = new int[width * height];
+
+        firstFrame = decodeNext();
+    }
+
+    /**
+     * Open a gif and decode its first frame, the later frames start to be
+     * decoded on {@code executor} at once.
+     *
+     * @param photo      the gif
+     * @param executor   where the frames are decoded
+     * @param bufferSize how many frames are decoded ahead of the playback
+     * @return the opened animation, which must be closed
+     * @throws IOException if the gif or its first frame can't be read
+     */
+    public static GifAnimation open(Photo photo, Executor executor, int bufferSize) throws IOException {
+        if (photo == null || executor == null) {
+            throw new NullPointerException("Photo and executor cannot be null.");
+        }
+
+        if (bufferSize <= 0) {
+            throw new IllegalArgumentException("Buffer size must be positive.");
+        }
+
+        ImageInputStream in = ImageStreams.openCached(photo.getPath());
+        ImageReader reader = null;
+        try {
+            reader = ReaderPool.acquire(in, photo.detectFormat(in));
+            reader.setInput(in, false, false); // Frames are read again after looping
+
+            GifAnimation animation = new GifAnimation(photo, executor, bufferSize, in, reader);
+            animation.fill();
+            return animation;
+        } catch (IOException | RuntimeException e) {
+            ReaderPool.release(reader);
+            in.close();
+            throw new IOException("Failed to load animation: " + photo.getPath(), e);
+        }
+    }
+
+    public Frame getFirstFrame() {
+        return firstFrame;
+    }
+
+    /**
+     * Take the next frame in the playing order.
+     *
+     * @return the next frame, or {@code null} if it hasn't been decoded yet,
+     * the gif has only one frame, or a frame failed to decode
+     */
+    public Frame poll() {
+        Frame frame = buffer.poll();
+        fill();
+        return frame;
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    /**
+     * @return the frame count, or -1 if the last frame hasn't been reached yet
+     */
+    public int getFrameCount() {
+        return frameCount;
+    }
+
+    /**
+     * @return {@code false} if the gif turned out to have only one frame,
+     * or the decoding has failed
+     */
+    public boolean isAnimated() {
+        return frameCount != 1 && !isFailed;
+    }
+
+    public Photo getPhoto() {
+        return photo;
+    }
+
+    @Override
+    public void close() {
+        if (isClosed) {
+            return;
+        }
+
+        isClosed = true;
+        buffer.clear();
+
+        // Wait for the frame in decoding
+        synchronized (decodeLock) {
+            ReaderPool.release(reader);
+            try {
+                in.close();
+            } catch (IOException e) {
+                if (DEBUG) Logger.logErr("Close animation failed: " + photo.getName(), e);
+            }
+        }
+    }
+
+    /**
+     * Decode frames on the executor until the buffer is full.
+     */
+    private void fill() {
+        if (isClosed || !isAnimated() || buffer.remainingCapacity() == 0
+                || !isFilling.compareAndSet(false, true)) {
+            return;
+        }
+
+        try {
+            executor.execute(() -> {
+                try {
+                    while (!isClosed && isAnimated() && buffer.remainingCapacity() > 0) {
+                        Frame frame = decodeNext();
+                        if (frame != null) {
+                            buffer.offer(frame);
+                        }
+                    }
+                } catch (IOException | RuntimeException | InternalError e) {
+                    // InternalError: a mapped file truncated while being read
+                    isFailed = true;
+                    if (DEBUG) Logger.logErr("Decode frame failed: " + photo.getName(), e);
+                } finally {
+                    isFilling.set(false);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            isFilling.set(false); // The loader has been closed
+        }
+    }
+
+    /**
+     * Decode and composite the next frame, looping back to the first one
+     * after the last.
+     *
+     * @return the frame, or {@code null} if closed or the gif has only one frame
+     */
+    private Frame decodeNext() throws IOException {
+        synchronized (decodeLock) {
+            if (isClosed) {
+                return null;
+            }
+
+            if (nextIndex == frameCount) {
+                rewind();
+            }
+
+            int index = nextIndex;
+            BufferedImage raw;
+            IIOMetadata metadata;
+            try {
+                raw = reader.read(index);
+                metadata = reader.getImageMetadata(index);
+            } catch (IndexOutOfBoundsException e) {
+                if (index == 0) {
+                    throw new IOException("No frame in: " + photo.getPath(), e);
+                }
+
+                frameCount = index;
+                if (DEBUG) Logger.log("Gif ends: " + photo.getName() + ", " + index + " frames");
+
+                if (index == 1) {
+                    return null; // Nothing to play
+                }
+
+                rewind();
+                return decodeNext();
+            }
+
+            Frame frame = composite(raw, metadata, index);
+            nextIndex = index + 1;
+            return frame;
+        }
+    }
+
+    private void rewind() {
+        nextIndex = 0;
+        pendingDisposal = Disposal.NONE;
+        saved = null;
+        Arrays.fill(canvas, 0);
+    }
+
+    private Frame composite(BufferedImage raw, IIOMetadata metadata, int index) {
+        Node root = metadata.getAsTree("javax_imageio_gif_image_1.0");
+        Node descriptor = findChild(root, "ImageDescriptor");
+        Node control = findChild(root, "GraphicControlExtension");
+
+        int left = getIntAttribute(descriptor, "imageLeftPosition", 0);
+        int top = getIntAttribute(descriptor, "imageTopPosition", 0);
+
+        Disposal disposal = Disposal.NONE;
+        int delay = DEFAULT_DELAY;
+        if (control != null) {
+            String method = getAttribute(control, "disposalMethod");
+            if ("restoreToBackgroundColor".equals(method)) {
+                disposal = Disposal.RESTORE_BACKGROUND;
+            } else if ("restoreToPrevious".equals(method)) {
+                disposal = Disposal.RESTORE_PREVIOUS;
+            }
+
+            delay = getIntAttribute(control, "delayTime", 0) * 10; // In 1/100 seconds
+            if (delay < MIN_DELAY) {
+                delay = DEFAULT_DELAY;
+            }
+        }
+
+        // The disposal of the previous frame happens right before this one is drawn
+        if (pendingDisposal == Disposal.RESTORE_BACKGROUND) {
+            for (int y = disposeY; y < disposeY + disposeH; y++) {
+                Arrays.fill(canvas, y * width + disposeX, y * width + disposeX + disposeW, 0);
+            }
+        } else if (pendingDisposal == Disposal.RESTORE_PREVIOUS && saved != null) {
+            System.arraycopy(saved, 0, canvas, 0, canvas.length);
+        }
+
+        if (disposal == Disposal.RESTORE_PREVIOUS) {
+            if (saved == null) {
+                saved = new int[canvas.length];
+            }
+            System.arraycopy(canvas, 0, saved, 0, canvas.length);
+        }
+
+        // Clip the frame to the logical screen
+        int x0 = Math.max(0, left);
+        int y0 = Math.max(0, top);
+        int x1 = Math.min(width, left + raw.getWidth());
+        int y1 = Math.min(height, top + raw.getHeight());
+
+        if (x1 > x0 && y1 > y0) {
+            int w = x1 - x0;
+            int[] row = new int[w];
+            for (int y = y0; y < y1; y++) {
+                raw.getRGB(x0 - left, y - top, w, 1, row, 0, w);
+                int d = y * width + x0;
+                for (int x = 0; x < w; x++) {
+                    if ((row[x] >>> 24) != 0) { // Transparent pixels keep what is below
+                        canvas[d + x] = row[x];
+                    }
+                }
+            }
+        }
+
+        pendingDisposal = disposal;
+        disposeX = x0;
+        disposeY = y0;
+        disposeW = Math.max(0, x1 - x0);
+        disposeH = Math.max(0, y1 - y0);
+
+        // Gif pixels are either opaque or fully transparent, no other premultiplication needed
+        int[] pixels = canvas.clone();
+        for (int i = 0; i < pixels.length; i++) {
+            if ((pixels[i] >>> 24) == 0) {
+                pixels[i] = 0;
+            }
+        }
+
+        return new Frame(FxImages.wrap(pixels, width, height), index, delay);
+    }
+
+    /**
+     * @return the logical screen size, or the size of the first frame if it is missing
+     */
+    private static int[] readLogicalScreen(ImageReader reader) throws IOException {
+        IIOMetadata streamMetadata = reader.getStreamMetadata();
+        if (streamMetadata != null) {
+            Node root = streamMetadata.getAsTree("javax_imageio_gif_stream_1.0");
+            Node screen = findChild(root, "LogicalScreenDescriptor");
+
+            int w = getIntAttribute(screen, "logicalScreenWidth", 0);
+            int h = getIntAttribute(screen, "logicalScreenHeight", 0);
+            if (w > 0 && h > 0) {
+                return new int[]{w, h};
+            }
+        }
+
+        return new int[]{reader.getWidth(0), reader.getHeight(0)};
+    }
+
+    private static Node findChild(Node parent, String name) {
+        if (parent == null) {
+            return null;
+        }
+
+        for (Node child = parent.getFirstChild(); child != null; child = child.getNextSibling()) {
+            if (name.equals(child.getNodeName())) {
+                return child;
+            }
+        }
+
+        return null;
+    }
+
+    private static String getAttribute(Node node, String name) {
+        if (node == null || node.getAttributes() == null) {
+            return null;
+        }
+
+        Node attribute = node.getAttributes().getNamedItem(name);
+        return attribute == null ? null : attribute.getNodeValue();
+    }
+
+    private static int getIntAttribute(Node node, String name, int defaultValue) {
+        String value = getAttribute(node, name);
+        if (value == null) {
+            return defaultValue;
+        }
+
+        try {
+            return Integer.parseInt(value);
+        } catch (NumberFormatException e) {
+            return defaultValue;
+        }
+    }
+}
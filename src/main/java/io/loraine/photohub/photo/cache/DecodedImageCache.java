@@ -0,0 +1,177 @@
+/**
+ * Photohub ---- To View Some S3xy Photos
+ * Copyright (C) 2025 Loraine K. Cheung
+ * <p>
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * <p>
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * <p>
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package io.loraine.photohub.photo.cache;
+
+import io.loraine.photohub.util.Logger;
+
+import javafx.scene.image.Image;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.RemovalCause;
+import com.github.benmanes.caffeine.cache.stats.CacheStats;
+
+import java.nio.file.Path;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Predicate;
+
+/**
+ * The decoded images left by the closed loaders, shared across directories.
+ * <p>
+ * A loader parks its decoded images here when it's closed, and the next
+ * loader of the same files takes them back instead of decoding them again,
+ * e.g. when a folder is reopened. An image is taken out when it's used, so
+ * it is only ever held, and charged to the {@link MemoryBudget}, once.
+ * <p>
+ * Entries are keyed by the {@link FileKey} of the file read for the decode,
+ * a modified file simply misses. Parking a newer version of a file drops
+ * the older ones at once, and {@link #invalidate(Path)} drops all of them.
+ * There is no budget of its own, the images are evicted with the least
+ * recently used ones of the loaders.
+ */
+public class DecodedImageCache {
+    private volatile static DecodedImageCache instance;
+
+    private static final Object instanceGetterLock = new Object();
+
+    private static final boolean DEBUG = false;
+
+    private final Cache<Key, Decoded> cache;
+    private final MemoryBudget budget = MemoryBudget.getInstance();
+
+    // The latest parked version of each file
+    private final Map<Path, FileKey> versions = new ConcurrentHashMap<>();
+
+    /**
+     * @param file    the file read for the decode
+     * @param page    index of the page in the file
+     * @param variant what the loader renders, e.g. thumbnails of some size
+     * @param level   subsampling level of the image
+     */
+    public record Key(FileKey file, int page, String variant, int level) {
+    }
+
+    /**
+     * A decoded image, an animated gif keeps all its frames.
+     */
+    public record Decoded(Image image, int frames) {
+        public int getWeight() {
+            double weight = image.getWidth() * image.getHeight() * 4 * frames; // Estimate as ARGB, assume 1 byte per channel
+            if (weight < 0) return 0;
+            return weight > Integer.MAX_VALUE ? Integer.MAX_VALUE : (int) weight;
+        }
+    }
+
+    private DecodedImageCache() {
+        cache = Caffeine.newBuilder()
+                .removalListener((Key k, Decoded d, RemovalCause cause) -> budget.release(this, k, d))
+                .recordStats()
+                .build();
+    }
+
+    public static DecodedImageCache getInstance() {
+        if (instance == null) {
+            synchronized (instanceGetterLock) {
+                if (instance == null) {
+                    instance = new DecodedImageCache();
+                    if (DEBUG) Logger.log("Decoded image cache created");
+                }
+            }
+        }
+        return instance;
+    }
+
+    /**
+     * Take a parked image out of the cache.
+     *
+     * @return the image, which the caller holds from now on, or {@code null}
+     */
+    public Decoded take(Key key) {
+        Decoded decoded = cache.getIfPresent(key); // Counts the hit or the miss
+        if (decoded == null || !cache.asMap().remove(key, decoded)) {
+            return null;
+        }
+
+        return decoded;
+    }
+
+    /**
+     * Park a decoded image, unless a newer version of the file is already parked.
+     *
+     * @return whether the image is parked
+     */
+    public boolean put(Key key, Decoded decoded) {
+        if (key == null || decoded == null) {
+            throw new NullPointerException("Key and image cannot be null.");
+        }
+
+        FileKey file = key.file();
+        FileKey[] replaced = new FileKey[1];
+        FileKey latest = versions.compute(file.path(), (path, old) -> {
+            if (old != null && old.lastModified() > file.lastModified()) {
+                return old;
+            }
+
+            if (old != null && !old.equals(file)) {
+                replaced[0] = old;
+            }
+            return file;
+        });
+        if (!latest.equals(file)) {
+            return false;
+        }
+
+        // The older versions can't be hit anymore, only scanned for when the version changes,
+        // parking the images of a closed loader one by one stays linear
+        if (replaced[0] != null) {
+            cache.asMap().keySet().removeIf(k -> k.file().path().equals(file.path()) && !k.file().equals(file));
+        }
+
+        cache.put(key, decoded);
+        budget.charge(this, key, decoded, decoded.getWeight(), cache.asMap());
+        return true;
+    }
+
+    /**
+     * Drop all the parked images of a file, whatever their version.
+     */
+    public void invalidate(Path path) {
+        invalidateAll(path.normalize().toAbsolutePath()::equals);
+    }
+
+    /**
+     * Drop all the parked images of the files whose normalized absolute path matches.
+     */
+    public void invalidateAll(Predicate<Path> paths) {
+        versions.keySet().removeIf(paths);
+        cache.asMap().keySet().removeIf(k -> paths.test(k.file().path()));
+    }
+
+    public void invalidateAll() {
+        versions.clear();
+        cache.invalidateAll();
+    }
+
+    public String getStats() {
+        CacheStats stats = cache.stats();
+        return String.format("%d images, hit %d, miss %d",
+                cache.estimatedSize(), stats.hitCount(), stats.missCount());
+    }
+}
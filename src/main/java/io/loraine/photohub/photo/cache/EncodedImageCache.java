@@ -0,0 +1,154 @@
+/**
+ * Photohub ---- To View Some S3xy Photos
+ * Copyright (C) 2025 Loraine K. Cheung
+ * <p>
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * <p>
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * <p>
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package io.loraine.photohub.photo.cache;
+
+import io.loraine.photohub.util.Logger;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.stats.CacheStats;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The second cache tier under the decoded images, holding the compressed
+ * bytes of the image files.
+ * <p>
+ * The encoded bytes are usually 10 to 20 times smaller than the decoded
+ * pixels and are kept much longer, so a photo whose decoded image has expired
+ * or been evicted is decoded again from memory instead of the disk. Tiles,
+ * previews and resolution levels of the same photo share one entry too.
+ * <p>
+ * Entries are keyed by {@link FileKey}, a modified file simply misses. The
+ * tier is shared by all loaders and sized apart from the pixel caches: set
+ * the budget in MiB with {@code -Dphotohub.encodedBudget}, 128 MiB by default,
+ * or {@code 0} to turn it off. Files larger than a quarter of the budget are
+ * never cached.
+ */
+public class EncodedImageCache {
+    private volatile static EncodedImageCache instance;
+
+    private static final Object instanceGetterLock = new Object();
+
+    private static final long DEFAULT_BUDGET = 128L * 1024 * 1024; // 128MiB
+
+    private static final boolean DEBUG = false;
+
+    private final Cache<FileKey, byte[]> cache;
+    private final long budget;
+
+    private EncodedImageCache(long budget) {
+        this.budget = budget;
+
+        cache = Caffeine.newBuilder()
+                .maximumWeight(budget)
+                .expireAfterAccess(10, TimeUnit.MINUTES)
+                .weigher((FileKey k, byte[] v) -> v.length)
+                .recordStats()
+                .build();
+    }
+
+    public static EncodedImageCache getInstance() {
+        if (instance == null) {
+            synchronized (instanceGetterLock) {
+                if (instance == null) {
+                    instance = new EncodedImageCache(parseBudget(System.getProperty("photohub.encodedBudget")));
+                    if (DEBUG) Logger.log("Encoded cache created, budget: " + instance.budget);
+                }
+            }
+        }
+        return instance;
+    }
+
+    public boolean isEnabled() {
+        return budget > 0;
+    }
+
+    /**
+     * @return the cached bytes of the file, which must not be modified, or {@code null}
+     */
+    public byte[] get(FileKey key) {
+        return isEnabled() ? cache.getIfPresent(key) : null;
+    }
+
+    /**
+     * Cache the bytes of a file, unless it is too large to be worth it.
+     *
+     * @return whether the bytes are cached
+     */
+    public boolean put(FileKey key, byte[] bytes) {
+        if (key == null || bytes == null) {
+            throw new NullPointerException("Key and bytes cannot be null.");
+        }
+
+        if (!isCacheable(bytes.length)) {
+            return false;
+        }
+
+        cache.put(key, bytes);
+        return true;
+    }
+
+    /**
+     * @return whether a file of {@code size} bytes can be cached
+     */
+    public boolean isCacheable(long size) {
+        return isEnabled() && size <= budget / 4;
+    }
+
+    public void invalidateAll() {
+        cache.invalidateAll();
+    }
+
+    /**
+     * @return the total bytes of the cached files
+     */
+    public long getWeight() {
+        cache.cleanUp(); // The weight is updated by the pending maintenance
+        return cache.policy().eviction()
+                .map(eviction -> eviction.weightedSize().orElse(0))
+                .orElse(0L);
+    }
+
+    public long getBudget() {
+        return budget;
+    }
+
+    public String getStats() {
+        CacheStats stats = cache.stats();
+        return String.format("%d files, %.2f / %.2f MiB, hit %d, miss %d, evicted %d",
+                cache.estimatedSize(), getWeight() / 1024.0 / 1024.0, budget / 1024.0 / 1024.0,
+                stats.hitCount(), stats.missCount(), stats.evictionCount());
+    }
+
+    private static long parseBudget(String value) {
+        if (value != null) {
+            try {
+                long mib = Long.parseLong(value.trim());
+                if (mib >= 0) {
+                    return mib * 1024 * 1024;
+                }
+            } catch (NumberFormatException e) {
+                if (DEBUG) Logger.logErr("Invalid encoded cache budget: " + value);
+            }
+        }
+
+        return DEFAULT_BUDGET;
+    }
+}
@@ -0,0 +1,45 @@
+/**
+ * Photohub ---- To View Some S3xy Photos
+ * Copyright (C) 2025 Loraine K. Cheung
+ * <p>
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * <p>
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * <p>
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package io.loraine.photohub.photo.cache;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+
+/**
+ * Identity of a file's content at some moment, a cached entry keyed by it
+ * goes stale by itself once the file is modified or replaced.
+ *
+ * @param path         the normalized absolute path
+ * @param lastModified last modified time in milliseconds
+ * @param size         size in bytes
+ */
+public record FileKey(Path path, long lastModified, long size) {
+    /**
+     * Read the current key of a file.
+     *
+     * @throws IOException if the attributes can't be read
+     */
+    public static FileKey of(Path path) throws IOException {
+        BasicFileAttributes attributes = Files.readAttributes(path, BasicFileAttributes.class);
+        return new FileKey(path.normalize().toAbsolutePath(),
+                attributes.lastModifiedTime().toMillis(), attributes.size());
+    }
+}
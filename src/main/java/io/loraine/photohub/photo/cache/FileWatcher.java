@@ -0,0 +1,350 @@
+/**
+ * Photohub ---- To View Some S3xy Photos
+ * Copyright (C) 2025 Loraine K. Cheung
+ * <p>
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * <p>
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * <p>
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package io.loraine.photohub.photo.cache;
+
+import io.loraine.photohub.util.Logger;
+
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+
+import static java.nio.file.StandardWatchEventKinds.ENTRY_CREATE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_DELETE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_MODIFY;
+import static java.nio.file.StandardWatchEventKinds.OVERFLOW;
+
+/**
+ * Watches the directories shown by the loaders, and tells them which files
+ * have been created, modified or deleted on disk.
+ * <p>
+ * All directories share one {@code WatchService} and one daemon thread. The
+ * events of a directory are coalesced: the changed files are delivered in one
+ * batch once no more events arrive for {@value #DEBOUNCE_MILLIS} ms, or at
+ * most every {@value #MAX_DELAY_MILLIS} ms during a long bulk copy, so a copy
+ * of thousands of files causes a few batches instead of thousands of evictions.
+ * A replaced file shows up as created, so it is reported as well.
+ * <p>
+ * Turned off with {@code -Dphotohub.watch=false}, or where the file system
+ * can't be watched, then nothing is ever reported.
+ */
+public class FileWatcher {
+    private volatile static FileWatcher instance;
+
+    private static final Object instanceGetterLock = new Object();
+
+    private static final long DEBOUNCE_MILLIS = 300;
+    private static final long MAX_DELAY_MILLIS = 2000;
+
+    private static final boolean DEBUG = false;
+
+    private static final boolean enabled =
+            Boolean.parseBoolean(System.getProperty("photohub.watch", "true"));
+
+    private final WatchService service;
+    private final Map<Path, Watched> watched = new HashMap<>();
+    private final Map<WatchKey, Watched> byKey = new HashMap<>();
+
+    /**
+     * Told about the changed files of a directory, on the watcher thread.
+     */
+    @FunctionalInterface
+    public interface Listener {
+        /**
+         * @param directory the watched directory
+         * @param changed   the created, modified or deleted files in it
+         * @param overflow  whether events were lost, then any file may have changed
+         */
+        void onChanged(Path directory, Set<Path> changed, boolean overflow);
+    }
+
+    /**
+     * A listener registered for a directory, closing it stops the notifications.
+     */
+    public final class Registration implements AutoCloseable {
+        private final Path directory;
+        private final Listener listener;
+
+        private Registration(Path directory, Listener listener) {
+            this.directory = directory;
+            this.listener = listener;
+        }
+
+        public Path getDirectory() {
+            return directory;
+        }
+
+        @Override
+        public void close() {
+            unwatch(this);
+        }
+    }
+
+    private static final class Watched {
+        final Path directory;
+        final WatchKey key;
+        final List<Registration> registrations = new CopyOnWriteArrayList<>();
+
+        // The pending batch
+        final Set<Path> changed = new HashSet<>();
+        boolean overflow = false;
+        long firstEvent = 0;
+        long lastEvent = 0;
+
+        // The key can't be reset, the entry is dropped once its last batch is delivered
+        boolean invalid = false;
+
+        Watched(Path directory, WatchKey key) {
+            this.directory = directory;
+            this.key = key;
+        }
+
+        boolean isPending() {
+            return overflow || !changed.isEmpty();
+        }
+    }
+
+    private FileWatcher(WatchService service) {
+        this.service = service;
+
+        if (service != null) {
+            Thread thread = new Thread(this::run, "photohub-file-watcher");
+            thread.setDaemon(true);
+            thread.start();
+        }
+    }
+
+    public static FileWatcher getInstance() {
+        if (instance == null) {
+            synchronized (instanceGetterLock) {
+                if (instance == null) {
+                    instance = new FileWatcher(createService());
+                }
+            }
+        }
+        return instance;
+    }
+
+    public boolean isEnabled() {
+        return service != null;
+    }
+
+    /**
+     * Start to watch a directory, not its subdirectories.
+     *
+     * @return the registration to close once the changes don't matter anymore,
+     * also if the directory can't be watched
+     */
+    public Registration watch(Path directory, Listener listener) {
+        if (directory == null || listener == null) {
+            throw new NullPointerException("Directory and listener cannot be null.");
+        }
+
+        directory = directory.normalize().toAbsolutePath();
+        Registration registration = new Registration(directory, listener);
+
+        if (service == null || directory.getFileSystem() != FileSystems.getDefault()) {
+            return registration;
+        }
+
+        synchronized (watched) {
+            Watched entry = watched.get(directory);
+            if (entry == null || entry.invalid) {
+                try {
+                    WatchKey key = directory.register(service, ENTRY_CREATE, ENTRY_MODIFY, ENTRY_DELETE);
+                    Watched dead = entry;
+                    entry = new Watched(directory, key);
+                    if (dead != null) {
+                        // The directory has been recreated, its listeners and last batch move over
+                        byKey.remove(dead.key);
+                        entry.registrations.addAll(dead.registrations);
+                        entry.changed.addAll(dead.changed);
+                        entry.overflow = dead.overflow;
+                        entry.firstEvent = dead.firstEvent;
+                        entry.lastEvent = dead.lastEvent;
+                    }
+                    watched.put(directory, entry);
+                    byKey.put(key, entry);
+                } catch (IOException e) {
+                    if (DEBUG) Logger.logErr("Failed to watch: " + directory, e);
+                    return registration;
+                }
+            }
+
+            entry.registrations.add(registration);
+        }
+
+        if (DEBUG) Logger.log("Watching: " + directory);
+        return registration;
+    }
+
+    private void unwatch(Registration registration) {
+        synchronized (watched) {
+            Watched entry = watched.get(registration.directory);
+            if (entry == null || !entry.registrations.remove(registration)) {
+                return;
+            }
+
+            if (entry.registrations.isEmpty()) {
+                entry.key.cancel();
+                watched.remove(entry.directory);
+                byKey.remove(entry.key);
+                if (DEBUG) Logger.log("Stopped watching: " + entry.directory);
+            }
+        }
+    }
+
+    private void run() {
+        try {
+            while (true) {
+                long wait = getWaitMillis();
+                WatchKey key = wait < 0 ? service.take() : service.poll(wait, TimeUnit.MILLISECONDS);
+                if (key != null) {
+                    collect(key);
+                }
+                deliverDue();
+            }
+        } catch (InterruptedException | ClosedWatchServiceException e) {
+            if (DEBUG) Logger.logErr("File watcher stopped", e);
+        }
+    }
+
+    private void collect(WatchKey key) {
+        List<WatchEvent<?>> events = key.pollEvents();
+        long now = System.nanoTime();
+
+        synchronized (watched) {
+            Watched entry = byKey.get(key);
+            if (entry != null) {
+                for (WatchEvent<?> event : events) {
+                    if (event.kind() == OVERFLOW) {
+                        entry.overflow = true;
+                    } else if (event.context() instanceof Path name) {
+                        entry.changed.add(entry.directory.resolve(name));
+                    }
+                }
+
+                if (entry.firstEvent == 0) {
+                    entry.firstEvent = now;
+                }
+                entry.lastEvent = now;
+            }
+
+            // The directory itself is gone, anything in it may have changed
+            if (!key.reset() && entry != null) {
+                entry.invalid = true;
+                entry.overflow = true;
+                entry.lastEvent = now - TimeUnit.MILLISECONDS.toNanos(DEBOUNCE_MILLIS);
+            }
+        }
+    }
+
+    /**
+     * @return milliseconds until the next batch is due, or {@code -1} if none is pending
+     */
+    private long getWaitMillis() {
+        long now = System.nanoTime();
+        long wait = -1;
+
+        synchronized (watched) {
+            for (Watched entry : watched.values()) {
+                if (entry.isPending()) {
+                    long due = Math.min(entry.lastEvent + TimeUnit.MILLISECONDS.toNanos(DEBOUNCE_MILLIS),
+                            entry.firstEvent + TimeUnit.MILLISECONDS.toNanos(MAX_DELAY_MILLIS));
+                    long millis = Math.max(1, TimeUnit.NANOSECONDS.toMillis(due - now));
+                    wait = wait < 0 ? millis : Math.min(wait, millis);
+                }
+            }
+        }
+
+        return wait;
+    }
+
+    private void deliverDue() {
+        long now = System.nanoTime();
+
+        record Batch(Path directory, Set<Path> changed, boolean overflow, List<Registration> registrations) {
+        }
+
+        List<Batch> batches = new ArrayList<>();
+        synchronized (watched) {
+            for (Iterator<Watched> it = watched.values().iterator(); it.hasNext(); ) {
+                Watched entry = it.next();
+                if (!entry.isPending()) {
+                    continue;
+                }
+
+                boolean quiet = now - entry.lastEvent >= TimeUnit.MILLISECONDS.toNanos(DEBOUNCE_MILLIS);
+                boolean late = now - entry.firstEvent >= TimeUnit.MILLISECONDS.toNanos(MAX_DELAY_MILLIS);
+                if (quiet || late) {
+                    batches.add(new Batch(entry.directory, Set.copyOf(entry.changed), entry.overflow,
+                            List.copyOf(entry.registrations)));
+                    entry.changed.clear();
+                    entry.overflow = false;
+                    entry.firstEvent = 0;
+
+                    // A later watch() of a recreated directory registers it again
+                    if (entry.invalid) {
+                        it.remove();
+                        byKey.remove(entry.key);
+                        if (DEBUG) Logger.log("Stopped watching a removed directory: " + entry.directory);
+                    }
+                }
+            }
+        }
+
+        // Outside of the lock, a listener may register or close a registration
+        for (Batch batch : batches) {
+            if (DEBUG) Logger.log("Changed in %s: %d files, overflow %b", batch.directory(), batch.changed().size(), batch.overflow());
+
+            for (Registration registration : batch.registrations()) {
+                try {
+                    registration.listener.onChanged(batch.directory(), batch.changed(), batch.overflow());
+                } catch (RuntimeException e) {
+                    if (DEBUG) Logger.logErr("File change listener failed: " + batch.directory(), e);
+                }
+            }
+        }
+    }
+
+    private static WatchService createService() {
+        if (!enabled) {
+            return null;
+        }
+
+        try {
+            return FileSystems.getDefault().newWatchService();
+        } catch (IOException | UnsupportedOperationException e) {
+            if (DEBUG) Logger.logErr("Files can't be watched", e);
+            return null;
+        }
+    }
+}
@@ -0,0 +1,204 @@
+/**
+ * Photohub ---- To View Some S3xy Photos
+ * Copyright (C) 2025 Loraine K. Cheung
+ * <p>
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * <p>
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * <p>
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package io.loraine.photohub.photo.cache;
+
+import io.loraine.photohub.util.Logger;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * The heap budget shared by the decoded image caches of all loaders.
+ * <p>
+ * Every loader keeps its own caches with their own limits, but charges each
+ * cached image here as well. When the total goes over the budget, the least
+ * recently used images are evicted, whichever loader they belong to, so a
+ * viewer on a new folder takes the memory of the folders left behind instead
+ * of adding its own cache on top of theirs.
+ * <p>
+ * The budget is set in MiB with {@code -Dphotohub.memoryBudget}, by default
+ * {@value #DEFAULT_HEAP_PERCENT}% of the max heap size, the rest is left for
+ * the decodes in flight and the UI. Images in the {@link OffHeapImageCache}
+ * don't live on the heap and are not charged here.
+ */
+public class MemoryBudget {
+    private volatile static MemoryBudget instance;
+
+    private static final Object instanceGetterLock = new Object();
+
+    private static final int DEFAULT_HEAP_PERCENT = 40;
+    private static final long FALLBACK_BUDGET = 512L * 1024 * 1024; // 512MiB, without a max heap size
+
+    private static final boolean DEBUG = false;
+
+    private final long budget;
+
+    // In the order of access, the least recently used first
+    private final LinkedHashMap<Slot, Charge> charges = new LinkedHashMap<>(64, 0.75f, true);
+    private long used = 0;
+
+    private final LongAdder evictedCount = new LongAdder();
+
+    private record Slot(Object owner, Object key) {
+        // The owners are compared by identity, two loaders of the same directory are different owners
+        @Override
+        public boolean equals(Object obj) {
+            return obj instanceof Slot other && owner == other.owner && key.equals(other.key);
+        }
+
+        @Override
+        public int hashCode() {
+            return System.identityHashCode(owner) * 31 + key.hashCode();
+        }
+    }
+
+    private record Charge(Object value, long weight, Map<?, ?> cache) {
+    }
+
+    private MemoryBudget(long budget) {
+        this.budget = budget;
+    }
+
+    public static MemoryBudget getInstance() {
+        if (instance == null) {
+            synchronized (instanceGetterLock) {
+                if (instance == null) {
+                    instance = new MemoryBudget(parseBudget(System.getProperty("photohub.memoryBudget")));
+                    if (DEBUG) Logger.log("Memory budget: " + instance.budget);
+                }
+            }
+        }
+        return instance;
+    }
+
+    /**
+     * Charge an image just put in a loader's cache, and evict the least
+     * recently used images of all loaders while the budget is exceeded.
+     *
+     * @param owner  the loader, compared by identity
+     * @param key    the key of the image in the owner's cache
+     * @param value  the cached value, an eviction only removes this very value
+     * @param weight estimated bytes of the image
+     * @param cache  the map view of the owner's cache, to evict from
+     */
+    public void charge(Object owner, Object key, Object value, long weight, Map<?, ?> cache) {
+        List<Map.Entry<Slot, Charge>> victims = new ArrayList<>();
+
+        synchronized (charges) {
+            Charge old = charges.put(new Slot(owner, key), new Charge(value, weight, cache));
+            used += weight - (old == null ? 0 : old.weight());
+
+            // The image just charged is the most recent one, it stays even if it's larger than the budget
+            Iterator<Map.Entry<Slot, Charge>> it = charges.entrySet().iterator();
+            while (used > budget && charges.size() > 1 && it.hasNext()) {
+                Map.Entry<Slot, Charge> eldest = it.next();
+                used -= eldest.getValue().weight();
+                victims.add(Map.entry(eldest.getKey(), eldest.getValue()));
+                it.remove();
+            }
+        }
+
+        // Outside of the lock, the removal listeners of the caches call release
+        for (Map.Entry<Slot, Charge> victim : victims) {
+            victim.getValue().cache().remove(victim.getKey().key(), victim.getValue().value());
+            evictedCount.increment();
+        }
+
+        if (DEBUG && !victims.isEmpty()) Logger.log("Evicted %d images, used %d of %d", victims.size(), used, budget);
+    }
+
+    /**
+     * Mark a cached image as just used.
+     */
+    public void touch(Object owner, Object key) {
+        synchronized (charges) {
+            charges.get(new Slot(owner, key)); // Moves it to the end in access order
+        }
+    }
+
+    /**
+     * Give back the charge of an image removed from its cache by the cache
+     * itself, e.g. expired or over the loader's own limit.
+     *
+     * @param value the removed value, a newer value of the same key keeps its charge
+     */
+    public void release(Object owner, Object key, Object value) {
+        synchronized (charges) {
+            Slot slot = new Slot(owner, key);
+            Charge charge = charges.get(slot);
+            if (charge != null && charge.value() == value) {
+                charges.remove(slot);
+                used -= charge.weight();
+            }
+        }
+    }
+
+    /**
+     * Give back all the charges of a closed loader.
+     */
+    public void releaseAll(Object owner) {
+        synchronized (charges) {
+            Iterator<Map.Entry<Slot, Charge>> it = charges.entrySet().iterator();
+            while (it.hasNext()) {
+                Map.Entry<Slot, Charge> entry = it.next();
+                if (entry.getKey().owner() == owner) {
+                    used -= entry.getValue().weight();
+                    it.remove();
+                }
+            }
+        }
+    }
+
+    /**
+     * @return the estimated bytes of all charged images
+     */
+    public long getUsed() {
+        synchronized (charges) {
+            return used;
+        }
+    }
+
+    public long getBudget() {
+        return budget;
+    }
+
+    public long getEvictedCount() {
+        return evictedCount.sum();
+    }
+
+    private static long parseBudget(String value) {
+        if (value != null) {
+            try {
+                long mib = Long.parseLong(value.trim());
+                if (mib > 0) {
+                    return mib * 1024 * 1024;
+                }
+            } catch (NumberFormatException e) {
+                if (DEBUG) Logger.logErr("Invalid memory budget: " + value);
+            }
+        }
+
+        long maxHeap = Runtime.getRuntime().maxMemory();
+        return maxHeap == Long.MAX_VALUE ? FALLBACK_BUDGET : maxHeap / 100 * DEFAULT_HEAP_PERCENT;
+    }
+}
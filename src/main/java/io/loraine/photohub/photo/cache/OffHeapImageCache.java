@@ -0,0 +1,155 @@
+/**
+ * Photohub ---- To View Some S3xy Photos
+ * Copyright (C) 2025 Loraine K. Cheung
+ * <p>
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * <p>
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * <p>
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package io.loraine.photohub.photo.cache;
+
+import io.loraine.photohub.util.Logger;
+
+import javafx.scene.image.Image;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+
+import java.util.concurrent.TimeUnit;
+import java.util.function.Predicate;
+
+/**
+ * The decoded image cache shared by all loaders in the off-heap mode.
+ * <p>
+ * The images kept here are made by
+ * {@link io.loraine.photohub.photo.pixel.FxImages#toDirectFXImage FxImages.toDirectFXImage},
+ * so their pixels live in direct buffers. The heap only holds the small
+ * {@code Image} handles, which neither count against {@code -Xmx} nor make
+ * the GC scan the pixels. All loaders share one budget instead of one budget
+ * per directory.
+ * <p>
+ * The mode is turned on with {@code -Dphotohub.cache=offheap}. The budget is
+ * set in MiB with {@code -Dphotohub.offHeapBudget}, 512 MiB by default. It
+ * must stay below {@code -XX:MaxDirectMemorySize}, which defaults to the max
+ * heap size.
+ * <p>
+ * An evicted buffer is freed when the GC collects it. A displayed image
+ * keeps its buffer alive, so an eviction never frees pixels that are still
+ * on the screen.
+ */
+public class OffHeapImageCache {
+    private volatile static OffHeapImageCache instance;
+
+    private static final Object instanceGetterLock = new Object();
+
+    private static final long DEFAULT_BUDGET = 512L * 1024 * 1024; // 512MiB
+
+    private static final boolean DEBUG = false;
+
+    private static final boolean enabled =
+            "offheap".equalsIgnoreCase(System.getProperty("photohub.cache", "heap").trim());
+
+    private final Cache<Object, Image> cache;
+    private final long budget;
+
+    private OffHeapImageCache(long budget) {
+        this.budget = budget;
+
+        cache = Caffeine.newBuilder()
+                .maximumWeight(budget)
+                .expireAfterAccess(5, TimeUnit.MINUTES)
+                .weigher((Object k, Image i) -> {
+                    double weight = i.getWidth() * i.getHeight() * 4;
+                    return weight > Integer.MAX_VALUE ? Integer.MAX_VALUE : (int) weight;
+                })
+                .build();
+    }
+
+    public static OffHeapImageCache getInstance() {
+        if (instance == null) {
+            synchronized (instanceGetterLock) {
+                if (instance == null) {
+                    instance = new OffHeapImageCache(parseBudget(System.getProperty("photohub.offHeapBudget")));
+                    if (DEBUG) Logger.log("Off-heap cache created, budget: " + instance.budget);
+                }
+            }
+        }
+        return instance;
+    }
+
+    /**
+     * Whether the loaders should keep their decoded images here.
+     */
+    public static boolean isEnabled() {
+        return enabled;
+    }
+
+    public Image get(Object key) {
+        return cache.getIfPresent(key);
+    }
+
+    public void put(Object key, Image image) {
+        if (key == null || image == null) {
+            throw new NullPointerException("Key and image cannot be null.");
+        }
+
+        cache.put(key, image);
+    }
+
+    public void invalidate(Object key) {
+        cache.invalidate(key);
+    }
+
+    /**
+     * Drop all the images whose keys match, e.g. the ones of a closed loader.
+     */
+    public void invalidateAll(Predicate<Object> filter) {
+        cache.asMap().keySet().removeIf(filter);
+    }
+
+    /**
+     * Drop everything, e.g. after the direct memory ran out.
+     */
+    public void invalidateAll() {
+        cache.invalidateAll();
+    }
+
+    /**
+     * @return the estimated bytes of all the cached pixels
+     */
+    public long getWeight() {
+        cache.cleanUp(); // The weight is updated by the pending maintenance
+        return cache.policy().eviction()
+                .map(eviction -> eviction.weightedSize().orElse(0))
+                .orElse(0L);
+    }
+
+    public long getBudget() {
+        return budget;
+    }
+
+    private static long parseBudget(String value) {
+        if (value != null) {
+            try {
+                long mib = Long.parseLong(value.trim());
+                if (mib > 0) {
+                    return mib * 1024 * 1024;
+                }
+            } catch (NumberFormatException e) {
+                if (DEBUG) Logger.logErr("Invalid off-heap budget: " + value);
+            }
+        }
+
+        return DEFAULT_BUDGET;
+    }
+}
@@ -0,0 +1,338 @@
+/**
+ * Photohub ---- To View Some S3xy Photos
+ * Copyright (C) 2025 Loraine K. Cheung
+ * <p>
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * <p>
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * <p>
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package io.loraine.photohub.photo.decode;
+
+import io.loraine.photohub.photo.pixel.FxImages;
+import io.loraine.photohub.util.Logger;
+
+import org.w3c.dom.NamedNodeMap;
+import org.w3c.dom.Node;
+
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.metadata.IIOMetadata;
+import javax.imageio.stream.ImageInputStream;
+
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.nio.IntBuffer;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Decode a large TIFF as horizontal bands in parallel, each band with its own
+ * stream and reader, into one pixel buffer.
+ * <p>
+ * A TIFF keeps its pixels in strips or tiles which are compressed on their own,
+ * so a band aligned to them is read through a source region without touching
+ * the rest of the file. The bands are taken one by one from a shared counter
+ * by the calling thread and by helper tasks on the executor.
+ * <p>
+ * The calling thread is usually a thread of the same executor. It never
+ * waits for a helper which hasn't started when it runs out of bands, so
+ * a decode can't be held up by the queue of a busy executor.
+ * <p>
+ * Banding can be turned off with {@code -Dphotohub.parallelDecode=false} or
+ * {@link #setEnabled(boolean)} to compare with a decode in one piece.
+ */
+public final class BandDecoder {
+    /** Pages with fewer source pixels are decoded in one piece */
+    public static final long MIN_PIXELS = 16L * 1024 * 1024;
+
+    private static final int TAG_ROWS_PER_STRIP = 278;
+    private static final String TIFF_METADATA_FORMAT = "com_sun_media_imageio_plugins_tiff_image_1.0";
+
+    // Bands per thread, so a slow band doesn't leave the other threads idle at the end
+    private static final int BANDS_PER_THREAD = 2;
+
+    private static final boolean DEBUG = false;
+
+    private static volatile boolean enabled =
+            Boolean.parseBoolean(System.getProperty("photohub.parallelDecode", "true"));
+
+    private final Path path;
+    private final String type;
+    private final int page;
+    private final int level;
+    private final int threads;
+
+    private final int srcWidth;
+    private final int srcHeight;
+    private final int bandHeight; // In source rows, a multiple of both the strip / tile height and the level
+    private final int bandCount;
+
+    private BandDecoder(Path path, String type, int page, int level, int threads,
+                        int srcWidth, int srcHeight, int bandHeight) {
+        this.path = path;
+        this.type = type;
+        this.page = page;
+        this.level = level;
+        this.threads = threads;
+        this.srcWidth = srcWidth;
+        this.srcHeight = srcHeight;
+        this.bandHeight = bandHeight;
+        this.bandCount = Math.ceilDiv(srcHeight, bandHeight);
+    }
+
+    /**
+     * Split a page of a TIFF into bands if it's worth decoding in parallel.
+     * <p>
+     * The file is read through {@link ImageStreams#openCached(Path)}, its
+     * bytes are then in memory for the decode which follows, whether in bands
+     * or in one piece, only the IFD of the page is parsed here. Other formats
+     * are rejected by their name without any I/O.
+     *
+     * @param path    the file to decode
+     * @param type    the format name, see {@link ImageFormat#getName()}, or the file extension
+     * @param page    index of the page
+     * @param level   the subsampling factor, 1 for the full resolution
+     * @param threads number of threads which can decode at the same time
+     * @return the planned decode, or {@code null} if the page should be decoded in one piece
+     */
+    public static BandDecoder plan(Path path, String type, int page, int level, int threads) throws IOException {
+        if (!enabled || threads < 2 || !("tif".equalsIgnoreCase(type) || "tiff".equalsIgnoreCase(type))) {
+            return null;
+        }
+
+        int srcWidth;
+        int srcHeight;
+        int unit;
+
+        try (ImageInputStream in = ImageStreams.openCached(path)) {
+            if (in == null) {
+                throw new IOException("Failed to read the bytes in: " + path);
+            }
+
+            ImageReader reader = ReaderPool.acquire(in, type);
+            try {
+                reader.setInput(in, true, false); // The strip height is only in the metadata
+
+                srcWidth = reader.getWidth(page);
+                srcHeight = reader.getHeight(page);
+                if ((long) srcWidth * srcHeight < MIN_PIXELS) {
+                    return null;
+                }
+
+                unit = reader.isImageTiled(page) ? reader.getTileHeight(page) : readRowsPerStrip(reader, page);
+            } finally {
+                ReaderPool.release(reader);
+            }
+        }
+
+        if (unit <= 0) {
+            return null;
+        }
+
+        // Keep the bands on the subsampling grid of the whole page
+        while (unit % level != 0 && unit < srcHeight) {
+            unit *= 2;
+        }
+
+        int units = Math.ceilDiv(srcHeight, unit);
+        if (units < 2) {
+            return null; // A single strip, every band would decompress all of it
+        }
+
+        int bandHeight = Math.ceilDiv(units, threads * BANDS_PER_THREAD) * unit;
+        if (bandHeight >= srcHeight) {
+            return null;
+        }
+
+        if (DEBUG) Logger.log("Band decode of " + path.getFileName() + ": " + Math.ceilDiv(srcHeight, bandHeight)
+                + " bands of " + bandHeight + " rows @ 1/" + level);
+
+        return new BandDecoder(path, type, page, level, threads, srcWidth, srcHeight, bandHeight);
+    }
+
+    /**
+     * Width of the decoded image
+     */
+    public int getWidth() {
+        return Math.ceilDiv(srcWidth, level);
+    }
+
+    /**
+     * Height of the decoded image
+     */
+    public int getHeight() {
+        return Math.ceilDiv(srcHeight, level);
+    }
+
+    public int getBandCount() {
+        return bandCount;
+    }
+
+    /**
+     * Decode all the bands into {@code dst} as premultiplied ARGB, on the
+     * calling thread and up to {@code threads - 1} tasks of the executor.
+     * <p>
+     * The current {@link CancelToken} of the calling thread also cancels the
+     * bands decoded by the other threads.
+     *
+     * @param dst      buffer of {@code getWidth() x getHeight()} pixels
+     * @param executor the executor running the helper tasks
+     */
+    public void decodeInto(IntBuffer dst, Executor executor) throws IOException {
+        CancelToken token = CancelToken.current();
+        AtomicInteger next = new AtomicInteger();
+        AtomicReference<Exception> failure = new AtomicReference<>();
+
+        // A helper runs only if it claims itself before the calling thread gives up on it
+        List<AtomicBoolean> claims = new ArrayList<>();
+        List<CompletableFuture<Void>> helpers = new ArrayList<>();
+
+        int helperCount = Math.min(threads, bandCount) - 1;
+        for (int i = 0; i < helperCount; i++) {
+            AtomicBoolean claimed = new AtomicBoolean();
+            try {
+                helpers.add(CompletableFuture.runAsync(() -> {
+                    if (claimed.compareAndSet(false, true)) {
+                        decodeBands(dst, token, next, failure);
+                    }
+                }, executor));
+                claims.add(claimed);
+            } catch (RejectedExecutionException e) {
+                break; // The executor is shutting down, the calling thread does it all
+            }
+        }
+
+        decodeBands(dst, token, next, failure);
+
+        for (int i = 0; i < helpers.size(); i++) {
+            if (!claims.get(i).compareAndSet(false, true)) {
+                helpers.get(i).join(); // Started, so it's finishing its last band
+            }
+        }
+
+        Exception e = failure.get();
+        if (e instanceof RuntimeException runtime) {
+            throw runtime; // Cancellation included
+        } else if (e != null) {
+            throw new IOException("Failed to decode the bands of: " + path, e);
+        }
+    }
+
+    private void decodeBands(IntBuffer dst, CancelToken token,
+                             AtomicInteger next, AtomicReference<Exception> failure) {
+        int band;
+        while (failure.get() == null && (band = next.getAndIncrement()) < bandCount) {
+            int current = band;
+            try {
+                if (token != null) {
+                    token.runWith(() -> {
+                        decodeBand(current, dst);
+                        return null;
+                    });
+                } else {
+                    decodeBand(current, dst);
+                }
+            } catch (IOException | RuntimeException e) {
+                failure.compareAndSet(null, e);
+            }
+        }
+    }
+
+    private void decodeBand(int band, IntBuffer dst) throws IOException {
+        int y = band * bandHeight;
+        int height = Math.min(bandHeight, srcHeight - y);
+
+        BufferedImage image;
+        try (ImageInputStream in = ImageStreams.openCached(path)) {
+            if (in == null) {
+                throw new IOException("Failed to read the bytes in: " + path);
+            }
+
+            ImageReader reader = ReaderPool.acquire(in, type);
+            try {
+                reader.setInput(in, true, true);
+                CancelToken.watch(reader);
+
+                ImageReadParam param = reader.getDefaultReadParam();
+                param.setSourceRegion(new Rectangle(0, y, srcWidth, height));
+                if (level > 1) {
+                    param.setSourceSubsampling(level, level, 0, 0);
+                }
+
+                image = reader.read(page, param);
+                CancelToken.throwIfCancelled();
+            } finally {
+                ReaderPool.release(reader);
+            }
+        }
+
+        if (image == null) {
+            throw new IOException("Failed to decode band " + band + " of: " + path);
+        }
+
+        FxImages.copyTo(image, dst, y / level * getWidth());
+    }
+
+    /**
+     * Read the RowsPerStrip field of a striped page.
+     *
+     * @return the rows per strip, or -1 if it's not found
+     */
+    private static int readRowsPerStrip(ImageReader reader, int page) throws IOException {
+        IIOMetadata metadata = reader.getImageMetadata(page);
+        if (metadata == null || metadata.getMetadataFormatNames() == null
+                || !Arrays.asList(metadata.getMetadataFormatNames()).contains(TIFF_METADATA_FORMAT)) {
+            return -1;
+        }
+
+        // TIFFIFD > TIFFField number="278" > TIFFShorts | TIFFLongs > TIFFShort | TIFFLong value="..."
+        Node ifd = metadata.getAsTree(TIFF_METADATA_FORMAT).getFirstChild();
+        for (Node field = ifd == null ? null : ifd.getFirstChild(); field != null; field = field.getNextSibling()) {
+            NamedNodeMap attributes = field.getAttributes();
+            Node number = attributes == null ? null : attributes.getNamedItem("number");
+            if (number == null || !String.valueOf(TAG_ROWS_PER_STRIP).equals(number.getNodeValue())) {
+                continue;
+            }
+
+            Node values = field.getFirstChild();
+            Node value = values == null ? null : values.getFirstChild();
+            Node attribute = value == null || value.getAttributes() == null
+                    ? null : value.getAttributes().getNamedItem("value");
+
+            try {
+                return attribute == null ? -1 : (int) Math.min(Integer.MAX_VALUE, Long.parseLong(attribute.getNodeValue()));
+            } catch (NumberFormatException e) {
+                return -1;
+            }
+        }
+
+        return -1;
+    }
+
+    public static boolean isEnabled() {
+        return enabled;
+    }
+
+    public static void setEnabled(boolean enabled) {
+        BandDecoder.enabled = enabled;
+    }
+}
@@ -0,0 +1,76 @@
+/**
+ * Photohub ---- To View Some S3xy Photos
+ * Copyright (C) 2025 Loraine K. Cheung
+ * <p>
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * <p>
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * <p>
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package io.loraine.photohub.photo.decode;
+
+import javax.imageio.stream.ImageInputStreamImpl;
+
+import java.io.IOException;
+import java.util.Objects;
+
+/**
+ * An {@code ImageInputStream} over the bytes of a whole file kept in memory,
+ * e.g. the ones in the {@link io.loraine.photohub.photo.cache.EncodedImageCache}.
+ * <p>
+ * The array is shared, not copied, and never written.
+ */
+public class ByteArrayImageInputStream extends ImageInputStreamImpl {
+    private final byte[] bytes;
+
+    public ByteArrayImageInputStream(byte[] bytes) {
+        this.bytes = Objects.requireNonNull(bytes, "Bytes cannot be null.");
+    }
+
+    @Override
+    public int read() throws IOException {
+        checkClosed();
+
+        if (streamPos >= bytes.length) {
+            return -1;
+        }
+
+        bitOffset = 0;
+        return bytes[(int) streamPos++] & 0xFF;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        checkClosed();
+        Objects.checkFromIndexSize(off, len, b.length);
+
+        if (len == 0) {
+            return 0;
+        }
+
+        if (streamPos >= bytes.length) {
+            return -1;
+        }
+
+        bitOffset = 0;
+
+        int n = (int) Math.min(len, bytes.length - streamPos);
+        System.arraycopy(bytes, (int) streamPos, b, off, n);
+        streamPos += n;
+        return n;
+    }
+
+    @Override
+    public long length() {
+        return bytes.length;
+    }
+}
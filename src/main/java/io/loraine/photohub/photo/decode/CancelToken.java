@@ -0,0 +1,212 @@
+/**
+ * Photohub ---- To View Some S3xy Photos
+ * Copyright (C) 2025 Loraine K. Cheung
+ * <p>
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * <p>
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * <p>
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package io.loraine.photohub.photo.decode;
+
+import javax.imageio.ImageReader;
+import javax.imageio.event.IIOReadProgressListener;
+import javax.imageio.event.IIOReadUpdateListener;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.util.concurrent.CancellationException;
+
+/**
+ * Cooperative cancellation of a running decode.
+ * <p>
+ * Neither {@code CompletableFuture.cancel(true)} nor {@code orTimeout} stops
+ * an {@code ImageReader.read} which is already running. A task which runs
+ * with {@link #runWith(Task)} makes its token current on the thread, and the
+ * readers {@link #watch(ImageReader) watched} in it get a listener which
+ * calls {@link ImageReader#abort()} from the decoding thread itself once
+ * the token is cancelled. The JDK JPEG reader used by TwelveMonkeys refuses
+ * an {@code abort()} from any other thread.
+ * <p>
+ * Both the progress and the update callbacks are listened to, since some
+ * readers report the progress only a few times per image.
+ */
+public class CancelToken {
+    private static final ThreadLocal<CancelToken> CURRENT = new ThreadLocal<>();
+
+    private volatile boolean isCancelled = false;
+
+    @FunctionalInterface
+    public interface Task<T> {
+        T call() throws IOException;
+    }
+
+    /**
+     * Ask the decodes of this token to stop, the reader in decoding is
+     * aborted at its next callback.
+     */
+    public void cancel() {
+        isCancelled = true;
+    }
+
+    public boolean isCancelled() {
+        return isCancelled;
+    }
+
+    /**
+     * Run a task with this token as the current one of the thread.
+     *
+     * @throws CancellationException if the token is cancelled before or during the task
+     */
+    public <T> T runWith(Task<T> task) throws IOException {
+        if (isCancelled) {
+            throw new CancellationException("Decode cancelled before start.");
+        }
+
+        CancelToken previous = CURRENT.get();
+        CURRENT.set(this);
+        try {
+            return task.call();
+        } finally {
+            if (previous == null) {
+                CURRENT.remove();
+            } else {
+                CURRENT.set(previous);
+            }
+        }
+    }
+
+    /**
+     * @return the token of the task running on this thread, or {@code null}
+     */
+    public static CancelToken current() {
+        return CURRENT.get();
+    }
+
+    /**
+     * Let the current token abort the reader, do nothing if there is no
+     * current token. The listener is removed by {@code reader.reset()}.
+     */
+    public static void watch(ImageReader reader) {
+        CancelToken token = CURRENT.get();
+        if (token == null || reader == null) {
+            return;
+        }
+
+        AbortListener listener = new AbortListener(token);
+        reader.addIIOReadProgressListener(listener);
+        reader.addIIOReadUpdateListener(listener);
+    }
+
+    /**
+     * Throw if the current token is cancelled, the image just read is then
+     * only a part of the real one.
+     *
+     * @throws CancellationException if the current token is cancelled
+     */
+    public static void throwIfCancelled() {
+        CancelToken token = CURRENT.get();
+        if (token != null && token.isCancelled) {
+            throw new CancellationException("Decode cancelled.");
+        }
+    }
+
+    private static class AbortListener implements IIOReadProgressListener, IIOReadUpdateListener {
+        private final CancelToken token;
+
+        AbortListener(CancelToken token) {
+            this.token = token;
+        }
+
+        private void check(ImageReader source) {
+            if (token.isCancelled) {
+                source.abort();
+            }
+        }
+
+        @Override
+        public void imageStarted(ImageReader source, int imageIndex) {
+            check(source);
+        }
+
+        @Override
+        public void imageProgress(ImageReader source, float percentageDone) {
+            check(source);
+        }
+
+        @Override
+        public void thumbnailStarted(ImageReader source, int imageIndex, int thumbnailIndex) {
+            check(source);
+        }
+
+        @Override
+        public void thumbnailProgress(ImageReader source, float percentageDone) {
+            check(source);
+        }
+
+        @Override
+        public void imageUpdate(ImageReader source, BufferedImage theImage,
+                                int minX, int minY, int width, int height,
+                                int periodX, int periodY, int[] bands) {
+            check(source);
+        }
+
+        @Override
+        public void passStarted(ImageReader source, BufferedImage theImage, int pass,
+                                int minPass, int maxPass, int minX, int minY,
+                                int periodX, int periodY, int[] bands) {
+            check(source);
+        }
+
+        @Override
+        public void thumbnailUpdate(ImageReader source, BufferedImage theThumbnail,
+                                    int minX, int minY, int width, int height,
+                                    int periodX, int periodY, int[] bands) {
+            check(source);
+        }
+
+        @Override
+        public void thumbnailPassStarted(ImageReader source, BufferedImage theThumbnail, int pass,
+                                         int minPass, int maxPass, int minX, int minY,
+                                         int periodX, int periodY, int[] bands) {
+            check(source);
+        }
+
+        @Override
+        public void sequenceStarted(ImageReader source, int minIndex) {
+        }
+
+        @Override
+        public void sequenceComplete(ImageReader source) {
+        }
+
+        @Override
+        public void imageComplete(ImageReader source) {
+        }
+
+        @Override
+        public void thumbnailComplete(ImageReader source) {
+        }
+
+        @Override
+        public void readAborted(ImageReader source) {
+        }
+
+        @Override
+        public void passComplete(ImageReader source, BufferedImage theImage) {
+        }
+
+        @Override
+        public void thumbnailPassComplete(ImageReader source, BufferedImage theThumbnail) {
+        }
+    }
+}
@@ -0,0 +1,185 @@
+/**
+ * Photohub ---- To View Some S3xy Photos
+ * Copyright (C) 2025 Loraine K. Cheung
+ * <p>
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * <p>
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * <p>
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package io.loraine.photohub.photo.decode;
+
+import javax.imageio.stream.ImageInputStreamImpl;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Objects;
+
+/**
+ * An {@code ImageInputStream} reading a file through a {@link FileChannel}.
+ * <p>
+ * In mapped mode the whole file is mapped into one {@code MappedByteBuffer},
+ * every read is then a plain memory copy without any system call. Otherwise
+ * positional channel reads fill a 64 KiB heap read-ahead window, reads
+ * larger than the window go straight into the caller's array.
+ * <p>
+ * Unlike {@code FileImageInputStream} there is no {@code RandomAccessFile}
+ * with small unbuffered reads behind it, and unlike
+ * {@code FileCacheImageInputStream} no temp file is ever created.
+ */
+public class ChannelImageInputStream extends ImageInputStreamImpl {
+    private static final int WINDOW_SIZE = 64 * 1024;
+
+    private final FileChannel channel;
+    private final long length;
+
+    private final ByteBuffer mapped; // null in channel mode
+
+    private final ByteBuffer window; // null in mapped mode
+    private long windowStart = 0; // position in the file of window[0]
+
+    /**
+     * Open a file for reading.
+     *
+     * @param path   the file to read
+     * @param mapped map the whole file if it is not larger than 2GiB
+     */
+    public ChannelImageInputStream(Path path, boolean mapped) throws IOException {
+        channel = FileChannel.open(path, StandardOpenOption.READ);
+
+        try {
+            length = channel.size();
+
+            if (mapped && length <= Integer.MAX_VALUE) {
+                this.mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, length);
+                this.window = null;
+            } else {
+                this.mapped = null;
+                // A heap window, the channel copies through its own per-thread direct buffer
+                this.window = ByteBuffer.allocate(WINDOW_SIZE).limit(0);
+            }
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    @Override
+    public int read() throws IOException {
+        checkClosed();
+
+        if (streamPos >= length) {
+            return -1;
+        }
+
+        bitOffset = 0;
+
+        if (mapped != null) {
+            return mapped.get((int) streamPos++) & 0xFF;
+        }
+
+        if (!fillWindow(streamPos)) {
+            return -1;
+        }
+
+        return window.get((int) (streamPos++ - windowStart)) & 0xFF;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        checkClosed();
+        Objects.checkFromIndexSize(off, len, b.length);
+
+        if (len == 0) {
+            return 0;
+        }
+
+        if (streamPos >= length) {
+            return -1;
+        }
+
+        bitOffset = 0;
+
+        int n = (int) Math.min(len, length - streamPos);
+
+        if (mapped != null) {
+            mapped.get((int) streamPos, b, off, n);
+            streamPos += n;
+            return n;
+        }
+
+        // Large reads skip the window, it would be an extra copy
+        if (n >= WINDOW_SIZE && !isInWindow(streamPos)) {
+            int read = channel.read(ByteBuffer.wrap(b, off, n), streamPos);
+            if (read > 0) {
+                streamPos += read;
+            }
+            return read;
+        }
+
+        if (!fillWindow(streamPos)) {
+            return -1;
+        }
+
+        int start = (int) (streamPos - windowStart);
+        n = Math.min(n, window.limit() - start);
+        window.get(start, b, off, n);
+        streamPos += n;
+        return n;
+    }
+
+    @Override
+    public long length() {
+        return length;
+    }
+
+    @Override
+    public void close() throws IOException {
+        super.close();
+        channel.close();
+    }
+
+    /**
+     * @return {@code true} if the whole file is mapped into memory
+     */
+    public boolean isMapped() {
+        return mapped != null;
+    }
+
+    private boolean isInWindow(long pos) {
+        return pos >= windowStart && pos < windowStart + window.limit();
+    }
+
+    /**
+     * Make sure the window contains the byte at {@code pos}.
+     *
+     * @return {@code false} if the end of file is reached
+     */
+    private boolean fillWindow(long pos) throws IOException {
+        if (isInWindow(pos)) {
+            return true;
+        }
+
+        window.clear();
+        int read = 0;
+        while (window.hasRemaining() && read >= 0) {
+            read = channel.read(window, pos + window.position());
+        }
+        window.flip();
+        windowStart = pos;
+
+        return window.hasRemaining();
+    }
+}
@@ -0,0 +1,368 @@
+/**
+ * Photohub ---- To View Some S3xy Photos
+ * Copyright (C) 2025 Loraine K. Cheung
+ * <p>
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * <p>
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * <p>
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package io.loraine.photohub.photo.decode;
+
+import io.loraine.photohub.photo.Photos;
+import io.loraine.photohub.util.Logger;
+
+import javax.imageio.ImageReader;
+import javax.imageio.spi.IIORegistry;
+import javax.imageio.spi.ImageReaderSpi;
+import javax.imageio.stream.ImageInputStream;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Optional;
+import java.util.ServiceConfigurationError;
+import java.util.ServiceLoader;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Stream;
+
+/**
+ * The decoders known to PhotoHub and the one chosen for each format.
+ * <p>
+ * The candidates are the readers of the {@code ImageIO} registry, in its own
+ * order, and the {@code ImageReaderSpi}s found by the {@link ServiceLoader},
+ * e.g. an extra decoder on the module path. When several of them decode the
+ * same format, such as the sejda and TwelveMonkeys WebP readers, the decoder
+ * of a format is chosen by, in this order:
+ * <ol>
+ *     <li>the configuration, {@code -Dphotohub.decoder.<format>=<class>} or
+ *     {@link #setPreferred(String, String)}, the class may be given by its
+ *     simple name</li>
+ *     <li>the fastest one measured by {@link #measure} or {@link #calibrate}</li>
+ *     <li>the first one of the {@code ImageIO} registry, as before</li>
+ * </ol>
+ * A format is routed by the name sniffed from the file header, see
+ * {@link io.loraine.photohub.photo.Photo#detectFormat}, or by the file
+ * extension when the header is not recognized. A stream the chosen decoder
+ * doesn't accept falls back to {@code ImageIO}'s own lookup in {@link ReaderPool}.
+ */
+public final class DecoderRegistry {
+    private DecoderRegistry() {
+    }
+
+    private static final String PROPERTY_PREFIX = "photohub.decoder.";
+    private static final boolean DEBUG = false;
+
+    private static final List<ImageReaderSpi> decoders = loadDecoders();
+
+    private static final Map<String, String> preferred = new ConcurrentHashMap<>();
+    private static final Map<String, ImageReaderSpi> fastest = new ConcurrentHashMap<>();
+    private static final Map<String, Optional<ImageReaderSpi>> routes = new ConcurrentHashMap<>();
+
+    /**
+     * Throughput of a decoder on the samples of a format.
+     *
+     * @param decoder            the measured decoder
+     * @param decoded            number of samples decoded in each round
+     * @param failed             number of samples the decoder could not read
+     * @param millisPerMegapixel average decode time, {@code NaN} if nothing was decoded
+     */
+    public record Measurement(ImageReaderSpi decoder, int decoded, int failed, double millisPerMegapixel) {
+        public String getName() {
+            return decoder.getClass().getName();
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%s: %.2f ms/MP, %d decoded, %d failed",
+                    getName(), millisPerMegapixel, decoded, failed);
+        }
+    }
+
+    /**
+     * Get the decoder of a format which accepts the stream.
+     *
+     * @param in     the stream to decode, its position is left unchanged
+     * @param format the format name, see {@link io.loraine.photohub.photo.ImageFormat#getName()}, or the file extension
+     * @return the chosen decoder, or {@code null} if none is known for the
+     * format or the stream is not in that format
+     */
+    public static ImageReaderSpi select(ImageInputStream in, String format) throws IOException {
+        ImageReaderSpi decoder = getSelected(format);
+        return decoder != null && decoder.canDecodeInput(in) ? decoder : null;
+    }
+
+    /**
+     * Get the decoder chosen for a format.
+     *
+     * @param format the format name or the file extension
+     * @return the chosen decoder, or {@code null} if none is known for the format
+     */
+    public static ImageReaderSpi getSelected(String format) {
+        if (format == null) {
+            return null;
+        }
+
+        return routes.computeIfAbsent(normalize(format), DecoderRegistry::route).orElse(null);
+    }
+
+    /**
+     * Get all decoders of a format, the default one first.
+     *
+     * @param format the format name or the file extension
+     */
+    public static List<ImageReaderSpi> getCandidates(String format) {
+        String name = normalize(format);
+
+        List<ImageReaderSpi> candidates = new ArrayList<>();
+        for (ImageReaderSpi decoder : decoders) {
+            if (contains(decoder.getFileSuffixes(), name) || contains(decoder.getFormatNames(), name)) {
+                candidates.add(decoder);
+            }
+        }
+
+        return candidates;
+    }
+
+    /**
+     * Get the file extensions of all decoders, in lower case.
+     */
+    public static Set<String> getFormats() {
+        Set<String> formats = new TreeSet<>();
+        for (ImageReaderSpi decoder : decoders) {
+            String[] suffixes = decoder.getFileSuffixes();
+            if (suffixes == null) {
+                continue;
+            }
+
+            for (String suffix : suffixes) {
+                if (suffix != null && !suffix.isBlank()) {
+                    formats.add(normalize(suffix));
+                }
+            }
+        }
+
+        return Collections.unmodifiableSet(formats);
+    }
+
+    /**
+     * Choose the decoder of a format, over the measured and the default ones.
+     *
+     * @param format  the format name or the file extension
+     * @param decoder the class name of the decoder's {@code ImageReaderSpi}, or its
+     *                simple name, {@code null} to go back to the other rules
+     */
+    public static void setPreferred(String format, String decoder) {
+        String name = normalize(format);
+        if (decoder == null) {
+            preferred.remove(name);
+        } else {
+            preferred.put(name, decoder);
+        }
+
+        routes.remove(name);
+    }
+
+    /**
+     * Decode the samples of a format with each of its decoders and remember
+     * the fastest one which read all of them.
+     *
+     * @param format  the format name or the file extension of the samples
+     * @param samples files of that format
+     * @param rounds  timed rounds after one warm-up round
+     * @return one measurement per decoder, the fastest first
+     */
+    public static List<Measurement> measure(String format, List<Path> samples, int rounds) {
+        String name = normalize(format);
+
+        List<Measurement> results = new ArrayList<>();
+        for (ImageReaderSpi decoder : getCandidates(name)) {
+            results.add(measure(decoder, samples, Math.max(1, rounds)));
+        }
+
+        // The ones which failed on some samples go last
+        results.sort(Comparator.comparingInt((Measurement m) -> m.failed() > 0 || m.decoded() == 0 ? 1 : 0)
+                .thenComparingDouble(Measurement::millisPerMegapixel));
+
+        if (!results.isEmpty() && results.get(0).failed() == 0 && results.get(0).decoded() > 0) {
+            fastest.put(name, results.get(0).decoder());
+            routes.remove(name);
+        }
+
+        if (DEBUG) Logger.log("Decoders of %s: %s", name, results);
+
+        return results;
+    }
+
+    /**
+     * Run {@link #measure} on the files directly in a directory, for each
+     * format which has more than one decoder.
+     *
+     * @param dir    the sample corpus
+     * @param rounds timed rounds after one warm-up round
+     * @return the measurements of each format
+     */
+    public static Map<String, List<Measurement>> calibrate(Path dir, int rounds) throws IOException {
+        Map<String, List<Path>> samples = new TreeMap<>();
+        try (Stream<Path> files = Files.list(dir)) {
+            files.filter(Files::isRegularFile).forEach(path -> {
+                String format = Photos.getFileExtension(path);
+                if (format != null) {
+                    samples.computeIfAbsent(format, f -> new ArrayList<>()).add(path);
+                }
+            });
+        }
+
+        Map<String, List<Measurement>> results = new TreeMap<>();
+        for (Map.Entry<String, List<Path>> entry : samples.entrySet()) {
+            if (getCandidates(entry.getKey()).size() > 1) {
+                results.put(entry.getKey(), measure(entry.getKey(), entry.getValue(), rounds));
+            }
+        }
+
+        return results;
+    }
+
+    private static Measurement measure(ImageReaderSpi decoder, List<Path> samples, int rounds) {
+        List<Path> readable = new ArrayList<>();
+        int failed = 0;
+
+        // Warm-up round, which also sorts out the samples this decoder can't read
+        for (Path sample : samples) {
+            try {
+                decode(decoder, sample);
+                readable.add(sample);
+            } catch (IOException | RuntimeException e) {
+                failed++;
+                if (DEBUG) Logger.logErr("Decode failed by " + decoder.getClass().getName() + ": " + sample, e);
+            }
+        }
+
+        long nanos = 0;
+        long pixels = 0;
+        for (int round = 0; round < rounds; round++) {
+            for (Path sample : readable) {
+                long start = System.nanoTime();
+                try {
+                    pixels += decode(decoder, sample);
+                } catch (IOException | RuntimeException e) {
+                    continue; // Read once already, nothing to learn from a second failure
+                }
+                nanos += System.nanoTime() - start;
+            }
+        }
+
+        double millisPerMegapixel = pixels == 0 ? Double.NaN : nanos / 1e6 / (pixels / 1e6);
+        return new Measurement(decoder, readable.size(), failed, millisPerMegapixel);
+    }
+
+    /**
+     * Decode the first image of a file with a fresh reader of the decoder.
+     *
+     * @return number of decoded pixels
+     */
+    private static long decode(ImageReaderSpi decoder, Path path) throws IOException {
+        try (ImageInputStream in = ImageStreams.open(path)) {
+            if (!decoder.canDecodeInput(in)) {
+                throw new IOException("Not readable by " + decoder.getClass().getName() + ": " + path);
+            }
+
+            ImageReader reader = decoder.createReaderInstance();
+            try {
+                reader.setInput(in, true, true);
+                BufferedImage image = reader.read(0);
+                return (long) image.getWidth() * image.getHeight();
+            } finally {
+                reader.dispose();
+            }
+        }
+    }
+
+    private static Optional<ImageReaderSpi> route(String format) {
+        List<ImageReaderSpi> candidates = getCandidates(format);
+        if (candidates.isEmpty()) {
+            return Optional.empty();
+        }
+
+        String configured = preferred.getOrDefault(format, System.getProperty(PROPERTY_PREFIX + format));
+        if (configured != null) {
+            for (ImageReaderSpi decoder : candidates) {
+                Class<?> type = decoder.getClass();
+                if (type.getName().equals(configured) || type.getSimpleName().equalsIgnoreCase(configured)) {
+                    return Optional.of(decoder);
+                }
+            }
+
+            if (DEBUG) Logger.logErr("No decoder " + configured + " for " + format + ", using the default one");
+        }
+
+        ImageReaderSpi measured = fastest.get(format);
+        return Optional.of(measured != null ? measured : candidates.get(0));
+    }
+
+    private static List<ImageReaderSpi> loadDecoders() {
+        List<ImageReaderSpi> result = new ArrayList<>();
+        Set<String> names = new HashSet<>();
+
+        Iterator<ImageReaderSpi> registered = IIORegistry.getDefaultInstance()
+                .getServiceProviders(ImageReaderSpi.class, true);
+        while (registered.hasNext()) {
+            ImageReaderSpi decoder = registered.next();
+            if (names.add(decoder.getClass().getName())) {
+                result.add(decoder);
+            }
+        }
+
+        // Decoders ImageIO can't see from its own module, or skipped as duplicates
+        try {
+            for (ImageReaderSpi decoder : ServiceLoader.load(ImageReaderSpi.class)) {
+                if (names.add(decoder.getClass().getName())) {
+                    result.add(decoder);
+                }
+            }
+        } catch (ServiceConfigurationError e) {
+            Logger.logErr("Failed to load the decoders: ", e);
+        }
+
+        return List.copyOf(result);
+    }
+
+    private static boolean contains(String[] names, String name) {
+        if (names == null) {
+            return false;
+        }
+
+        for (String n : names) {
+            if (name.equalsIgnoreCase(n)) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    private static String normalize(String format) {
+        return format.trim().toLowerCase(Locale.ROOT);
+    }
+}
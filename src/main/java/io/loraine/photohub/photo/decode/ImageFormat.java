@@ -0,0 +1,190 @@
+/**
+ * Photohub ---- To View Some S3xy Photos
+ * Copyright (C) 2025 Loraine K. Cheung
+ * <p>
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * <p>
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * <p>
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package io.loraine.photohub.photo.decode;
+
+import javax.imageio.stream.ImageInputStream;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+
+/**
+ * Image formats recognized by the signature at the start of a file, so a
+ * mislabelled file (a PNG saved as {@code .jpg}, an HEIC photo renamed to
+ * {@code .jpg}) goes straight to the right decoder, or fails before any
+ * decoder is looked up if there is none for its real format.
+ */
+public enum ImageFormat {
+    JPEG("jpg"),
+    PNG("png"),
+    GIF("gif"),
+    BMP("bmp"),
+    TIFF("tiff"),
+    WEBP("webp"),
+    HEIF("heic"),
+    AVIF("avif"),
+    /** No known signature, e.g. WBMP which has none, the file extension is trusted */
+    UNKNOWN(null);
+
+    /** Bytes read from the start of a file, enough for every signature here */
+    public static final int HEADER_LENGTH = 32;
+
+    private final String name;
+
+    ImageFormat(String name) {
+        this.name = name;
+    }
+
+    /**
+     * Get the format name used to pick a decoder in the {@link DecoderRegistry}.
+     *
+     * @return the usual file extension, {@code null} for {@link #UNKNOWN}
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Check whether a decoder is available for this format, always
+     * {@code true} for {@link #UNKNOWN} since it's up to the extension.
+     */
+    public boolean isSupported() {
+        return this == UNKNOWN || !DecoderRegistry.getCandidates(name).isEmpty();
+    }
+
+    /**
+     * Guess the format from a file extension.
+     *
+     * @return the format, {@link #UNKNOWN} if the extension is not one of them
+     */
+    public static ImageFormat fromExtension(String extension) {
+        if (extension == null) {
+            return UNKNOWN;
+        }
+
+        return switch (extension.toLowerCase(Locale.ROOT)) {
+            case "jpg", "jpeg", "jpe", "jfif" -> JPEG;
+            case "png" -> PNG;
+            case "gif" -> GIF;
+            case "bmp", "dib" -> BMP;
+            case "tif", "tiff" -> TIFF;
+            case "webp" -> WEBP;
+            case "heic", "heif", "hif" -> HEIF;
+            case "avif" -> AVIF;
+            default -> UNKNOWN;
+        };
+    }
+
+    /**
+     * Read the signature at the current position of the stream, the position
+     * is left unchanged.
+     */
+    public static ImageFormat detect(ImageInputStream in) throws IOException {
+        byte[] header = new byte[HEADER_LENGTH];
+        int length = 0;
+
+        in.mark();
+        try {
+            int n;
+            while (length < header.length && (n = in.read(header, length, header.length - length)) > 0) {
+                length += n;
+            }
+        } finally {
+            in.reset();
+        }
+
+        return detect(header, length);
+    }
+
+    /**
+     * Recognize the signature in the first bytes of a file.
+     *
+     * @param header the first bytes of the file
+     * @param length number of valid bytes in {@code header}
+     */
+    public static ImageFormat detect(byte[] header, int length) {
+        if (startsWith(header, length, 0, 0xFF, 0xD8, 0xFF)) {
+            return JPEG;
+        }
+
+        if (startsWith(header, length, 0, 0x89, 'P', 'N', 'G', 0x0D, 0x0A, 0x1A, 0x0A)) {
+            return PNG;
+        }
+
+        if (startsWith(header, length, 0, 'G', 'I', 'F', '8') && length >= 6
+                && (header[4] == '7' || header[4] == '9') && header[5] == 'a') {
+            return GIF;
+        }
+
+        // Classic and BigTIFF, little and big endian
+        if (startsWith(header, length, 0, 'I', 'I', '*', 0) || startsWith(header, length, 0, 'M', 'M', 0, '*')
+                || startsWith(header, length, 0, 'I', 'I', '+', 0) || startsWith(header, length, 0, 'M', 'M', 0, '+')) {
+            return TIFF;
+        }
+
+        if (startsWith(header, length, 0, 'R', 'I', 'F', 'F') && startsWith(header, length, 8, 'W', 'E', 'B', 'P')) {
+            return WEBP;
+        }
+
+        if (startsWith(header, length, 0, 'B', 'M') && length >= 14) {
+            return BMP;
+        }
+
+        // ISO base media file, the major brand and then the compatible ones
+        if (startsWith(header, length, 4, 'f', 't', 'y', 'p')) {
+            return detectBrand(header, length);
+        }
+
+        return UNKNOWN;
+    }
+
+    private static ImageFormat detectBrand(byte[] header, int length) {
+        ImageFormat format = UNKNOWN;
+
+        // Brands are at 8, then the minor version at 12, then compatible ones from 16
+        for (int offset = 8; offset + 4 <= length; offset += offset == 8 ? 8 : 4) {
+            String brand = new String(header, offset, 4, StandardCharsets.US_ASCII);
+            switch (brand) {
+                case "avif", "avis" -> {
+                    return AVIF;
+                }
+                case "heic", "heix", "heim", "heis", "hevc", "hevx", "mif1", "msf1" -> format = HEIF;
+                default -> {
+                    // Some other brand, e.g. a video
+                }
+            }
+        }
+
+        return format;
+    }
+
+    private static boolean startsWith(byte[] header, int length, int offset, int... signature) {
+        if (offset + signature.length > length) {
+            return false;
+        }
+
+        for (int i = 0; i < signature.length; i++) {
+            if ((header[offset + i] & 0xFF) != signature[i]) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+}
@@ -0,0 +1,176 @@
+/**
+ * Photohub ---- To View Some S3xy Photos
+ * Copyright (C) 2025 Loraine K. Cheung
+ * <p>
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * <p>
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * <p>
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package io.loraine.photohub.photo.decode;
+
+import io.loraine.photohub.photo.cache.EncodedImageCache;
+import io.loraine.photohub.photo.cache.FileKey;
+import io.loraine.photohub.util.Logger;
+
+import javax.imageio.ImageIO;
+import javax.imageio.stream.ImageInputStream;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/**
+ * Open image files for the decoders.
+ * <p>
+ * All loaders read files through {@link #open(Path)}, the way of reading can
+ * be switched with {@code -Dphotohub.io=mapped|channel|legacy} or
+ * {@link #setMode(Mode)} to compare them on different disks. The files whose
+ * bytes are cached in the {@link EncodedImageCache} are read from memory.
+ */
+public class ImageStreams {
+    private ImageStreams() {
+    }
+
+    public enum Mode {
+        /** Map the whole file into memory, see {@link ChannelImageInputStream} */
+        MAPPED,
+        /** Positional {@code FileChannel} reads with a read-ahead window, the default */
+        CHANNEL,
+        /** {@code ImageIO.createImageInputStream(File)}, the old way */
+        LEGACY
+    }
+
+    private static final boolean DEBUG = false;
+
+    private static volatile Mode mode = parseMode(System.getProperty("photohub.io"));
+
+    /**
+     * Open an image file as an {@code ImageInputStream}, from memory if its
+     * bytes are in the {@link EncodedImageCache}.
+     *
+     * @param path the file to read
+     * @return the opened stream, never {@code null}
+     * @throws IOException if the file can't be opened
+     */
+    public static ImageInputStream open(Path path) throws IOException {
+        if (path == null) {
+            throw new NullPointerException("Path cannot be null.");
+        }
+
+        EncodedImageCache encoded = EncodedImageCache.getInstance();
+        if (encoded.isEnabled()) {
+            byte[] bytes = encoded.get(FileKey.of(path));
+            if (bytes != null) {
+                return new ByteArrayImageInputStream(bytes);
+            }
+        }
+
+        return openFile(path);
+    }
+
+    /**
+     * Open an image file which is going to be decoded as a whole, its bytes
+     * are read at once and kept in the {@link EncodedImageCache} for the next
+     * decode. Use {@link #open(Path)} if only the header or the embedded
+     * thumbnail is needed.
+     *
+     * @param path the file to read
+     * @return the opened stream, never {@code null}
+     * @throws IOException if the file can't be read
+     */
+    public static ImageInputStream openCached(Path path) throws IOException {
+        if (path == null) {
+            throw new NullPointerException("Path cannot be null.");
+        }
+
+        FileKey key = FileKey.of(path);
+
+        // Such a file is never in the cache
+        if (!EncodedImageCache.getInstance().isCacheable(key.size())) {
+            return openFile(path);
+        }
+
+        return new ByteArrayImageInputStream(readCached(path, key));
+    }
+
+    /**
+     * Read all bytes of an image file, from the {@link EncodedImageCache} if
+     * they are there, otherwise from the disk and keep them in the cache.
+     *
+     * @param path the file to read
+     * @return the bytes, which must not be modified
+     * @throws IOException if the file can't be read
+     */
+    public static byte[] readCached(Path path) throws IOException {
+        if (path == null) {
+            throw new NullPointerException("Path cannot be null.");
+        }
+
+        return readCached(path, FileKey.of(path));
+    }
+
+    private static byte[] readCached(Path path, FileKey key) throws IOException {
+        EncodedImageCache encoded = EncodedImageCache.getInstance();
+
+        byte[] bytes = encoded.get(key);
+        if (bytes == null) {
+            bytes = Files.readAllBytes(path);
+            if (encoded.put(key, bytes) && DEBUG) {
+                Logger.log("Encoded bytes cached: " + path + ", " + encoded.getStats());
+            }
+        }
+
+        return bytes;
+    }
+
+    private static ImageInputStream openFile(Path path) throws IOException {
+        Mode current = mode;
+
+        if (current == Mode.LEGACY) {
+            ImageInputStream in = ImageIO.createImageInputStream(path.toFile());
+            if (in == null) {
+                throw new IOException("Failed to read the bytes in: " + path);
+            }
+            return in;
+        }
+
+        return new ChannelImageInputStream(path, current == Mode.MAPPED);
+    }
+
+    public static Mode getMode() {
+        return mode;
+    }
+
+    public static void setMode(Mode newMode) {
+        if (newMode == null) {
+            throw new NullPointerException("Mode cannot be null.");
+        }
+
+        mode = newMode;
+    }
+
+    private static Mode parseMode(String value) {
+        if (value != null) {
+            try {
+                return Mode.valueOf(value.trim().toUpperCase());
+            } catch (IllegalArgumentException e) {
+                if (DEBUG) Logger.logErr("Unknown io mode: " + value);
+            }
+        }
+
+        // Mapping is opt-in: a mapping is only released when it is collected,
+        // which on Windows keeps the file from being deleted or renamed, and a
+        // file truncated while mapped fails with an InternalError (SIGBUS)
+        return Mode.CHANNEL;
+    }
+}
@@ -0,0 +1,204 @@
+/**
+ * Photohub ---- To View Some S3xy Photos
+ * Copyright (C) 2025 Loraine K. Cheung
+ * <p>
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * <p>
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * <p>
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package io.loraine.photohub.photo.decode;
+
+import io.loraine.photohub.util.Logger;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReader;
+import javax.imageio.spi.ImageReaderSpi;
+import javax.imageio.stream.ImageInputStream;
+
+import java.io.IOException;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Per-format pool of {@code ImageReader}s shared by all loaders.
+ * <p>
+ * {@code ImageIO.getImageReaders} walks the whole SPI registry and builds a new
+ * reader for every call, which is not cheap for the TwelveMonkeys JPEG and TIFF
+ * readers. Here the provider of a format is the one chosen by the
+ * {@link DecoderRegistry}, and the readers are {@link ImageReader#reset() reset}
+ * and kept after use.
+ * <p>
+ * A reader is owned by one thread between {@link #acquire} and {@link #release},
+ * every acquired reader must be released exactly once and not used afterwards.
+ * <p>
+ * Pooling can be turned off with {@code -Dphotohub.readerPool=false} or
+ * {@link #setEnabled(boolean)} to compare with the old way.
+ */
+public class ReaderPool {
+    private ReaderPool() {
+    }
+
+    // Idle readers kept for each provider, enough for every decode thread
+    private static final int MAX_IDLE_PER_FORMAT = Math.max(2, Runtime.getRuntime().availableProcessors());
+
+    private static final boolean DEBUG = false;
+
+    private static final Map<ImageReaderSpi, Deque<ImageReader>> idleReaders = new ConcurrentHashMap<>();
+    private static final Map<ImageReaderSpi, AtomicInteger> idleCounts = new ConcurrentHashMap<>();
+
+    private static final LongAdder createdCount = new LongAdder();
+    private static final LongAdder reusedCount = new LongAdder();
+    private static final LongAdder disposedCount = new LongAdder();
+
+    private static volatile boolean enabled =
+            Boolean.parseBoolean(System.getProperty("photohub.readerPool", "true"));
+
+    /**
+     * Get a reader which can decode {@code in}, the input is not set yet.
+     *
+     * @param in         the stream to decode, its position is left unchanged
+     * @param formatHint the format name sniffed by {@link io.loraine.photohub.photo.Photo#detectFormat},
+     *                   or the file extension if the header is not recognized, used to
+     *                   find the provider without walking the registry, may be {@code null}
+     * @return a reader which must be given back by {@link #release(ImageReader)}
+     * @throws IOException if no reader can decode the stream
+     */
+    public static ImageReader acquire(ImageInputStream in, String formatHint) throws IOException {
+        if (in == null) {
+            throw new NullPointerException("Input stream cannot be null.");
+        }
+
+        // The hint may be an extension which lies, so the provider still checks the header
+        ImageReaderSpi provider = formatHint == null ? null : DecoderRegistry.select(in, formatHint);
+        if (provider != null) {
+            ImageReader reader = enabled ? pollIdle(provider) : null;
+            if (reader != null) {
+                reusedCount.increment();
+                return reader;
+            }
+
+            createdCount.increment();
+            return provider.createReaderInstance();
+        }
+
+        Iterator<ImageReader> readers = ImageIO.getImageReaders(in);
+        if (!readers.hasNext()) {
+            throw new IOException("No reader for the input: " + formatHint);
+        }
+
+        createdCount.increment();
+        return readers.next();
+    }
+
+    /**
+     * Give a reader back to the pool, or dispose it if the pool is full.
+     *
+     * @param reader the reader got from {@link #acquire}, {@code null} is ignored
+     */
+    public static void release(ImageReader reader) {
+        if (reader == null) {
+            return;
+        }
+
+        ImageReaderSpi provider = reader.getOriginatingProvider();
+        if (!enabled || provider == null) {
+            dispose(reader);
+            return;
+        }
+
+        try {
+            reader.reset(); // Drop the input, listeners and the decoded state
+        } catch (RuntimeException e) {
+            if (DEBUG) Logger.logErr("Reader reset failed: " + reader, e);
+            dispose(reader);
+            return;
+        }
+
+        AtomicInteger count = idleCounts.computeIfAbsent(provider, p -> new AtomicInteger());
+        if (count.incrementAndGet() > MAX_IDLE_PER_FORMAT) {
+            count.decrementAndGet();
+            dispose(reader);
+            return;
+        }
+
+        idleReaders.computeIfAbsent(provider, p -> new ConcurrentLinkedDeque<>()).push(reader);
+    }
+
+    /**
+     * Dispose all idle readers, the ones in use are disposed when released.
+     */
+    public static void clear() {
+        for (Map.Entry<ImageReaderSpi, Deque<ImageReader>> entry : idleReaders.entrySet()) {
+            ImageReader reader;
+            while ((reader = pollIdle(entry.getKey())) != null) {
+                dispose(reader);
+            }
+        }
+    }
+
+    public static long getCreatedCount() {
+        return createdCount.sum();
+    }
+
+    public static long getReusedCount() {
+        return reusedCount.sum();
+    }
+
+    public static long getDisposedCount() {
+        return disposedCount.sum();
+    }
+
+    public static int getIdleCount() {
+        return idleCounts.values().stream().mapToInt(AtomicInteger::get).sum();
+    }
+
+    public static String getStats() {
+        return String.format("created %d, reused %d, disposed %d, idle %d",
+                getCreatedCount(), getReusedCount(), getDisposedCount(), getIdleCount());
+    }
+
+    public static boolean isEnabled() {
+        return enabled;
+    }
+
+    public static void setEnabled(boolean value) {
+        enabled = value;
+        if (!value) {
+            clear();
+        }
+    }
+
+    private static ImageReader pollIdle(ImageReaderSpi provider) {
+        Deque<ImageReader> deque = idleReaders.get(provider);
+        ImageReader reader = deque == null ? null : deque.poll();
+        if (reader != null) {
+            idleCounts.get(provider).decrementAndGet();
+        }
+
+        return reader;
+    }
+
+    private static void dispose(ImageReader reader) {
+        disposedCount.increment();
+        try {
+            reader.dispose();
+        } catch (RuntimeException e) {
+            if (DEBUG) Logger.logErr("Reader dispose failed: " + reader, e);
+        }
+    }
+}
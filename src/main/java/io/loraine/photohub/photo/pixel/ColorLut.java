@@ -0,0 +1,214 @@
+/**
+ * Photohub ---- To View Some S3xy Photos
+ * Copyright (C) 2025 Loraine K. Cheung
+ * <p>
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * <p>
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * <p>
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package io.loraine.photohub.photo.pixel;
+
+import java.awt.Transparency;
+import java.awt.color.ColorSpace;
+import java.awt.image.BufferedImage;
+import java.awt.image.ColorConvertOp;
+import java.awt.image.ComponentColorModel;
+import java.awt.image.DataBuffer;
+import java.awt.image.DataBufferInt;
+import java.awt.image.WritableRaster;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+/**
+ * A color space's conversion to sRGB, sampled on a grid once and then
+ * interpolated per pixel.
+ * <p>
+ * Converting CMYK or a non-sRGB ICC profile through {@code ColorModel.getRGB}
+ * or {@link ColorConvertOp} runs the whole color management pipeline for every
+ * pixel, which takes seconds for a camera-sized image. The grid is converted
+ * with the same {@code ColorConvertOp}, so the result only differs from it by
+ * the interpolation error.
+ * <p>
+ * The first three components are interpolated tetrahedrally, the fourth one
+ * (K of CMYK) linearly between two slices.
+ */
+final class ColorLut {
+    private static final int GRID_3D = 33;
+    private static final int GRID_4D = 17;
+
+    private static final Map<ColorSpace, ColorLut> LUTS = new WeakHashMap<>();
+
+    private final int grid;
+    private final int slices;
+    private final int[] rgb; // Packed RGB of the nodes, index = ((k * grid + c0) * grid + c1) * grid + c2
+
+    // Node index and weight (0 - 255) of the upper node for each 8-bit value
+    private final int[] index = new int[256];
+    private final int[] weight = new int[256];
+
+    private ColorLut(ColorSpace colorSpace) {
+        int components = colorSpace.getNumComponents();
+        grid = components == 3 ? GRID_3D : GRID_4D;
+        slices = components == 3 ? 1 : grid;
+
+        for (int v = 0; v < 256; v++) {
+            int pos = v * (grid - 1);
+            index[v] = Math.min(pos / 255, grid - 2);
+            weight[v] = pos - index[v] * 255;
+        }
+
+        int cube = grid * grid * grid;
+        ComponentColorModel model = new ComponentColorModel(
+                colorSpace, false, false, Transparency.OPAQUE, DataBuffer.TYPE_BYTE);
+        WritableRaster raster = model.createCompatibleWritableRaster(cube, slices);
+
+        int[] node = new int[grid];
+        for (int i = 0; i < grid; i++) {
+            node[i] = (i * 255 + (grid - 1) / 2) / (grid - 1);
+        }
+
+        int[] samples = new int[components];
+        for (int k = 0; k < slices; k++) {
+            for (int i = 0; i < cube; i++) {
+                samples[0] = node[i / (grid * grid)];
+                samples[1] = node[i / grid % grid];
+                samples[2] = node[i % grid];
+                if (components == 4) {
+                    samples[3] = node[k];
+                }
+                raster.setPixel(i, k, samples);
+            }
+        }
+
+        BufferedImage src = new BufferedImage(model, raster, false, null);
+        BufferedImage dst = new BufferedImage(cube, slices, BufferedImage.TYPE_INT_RGB);
+        new ColorConvertOp(null).filter(src, dst);
+
+        rgb = ((DataBufferInt) dst.getRaster().getDataBuffer()).getData();
+    }
+
+    /**
+     * Get the cached table of a color space, building it on the first call.
+     *
+     * @param colorSpace a color space with 3 or 4 components
+     */
+    static ColorLut get(ColorSpace colorSpace) {
+        int components = colorSpace.getNumComponents();
+        if (components != 3 && components != 4) {
+            throw new IllegalArgumentException("Unsupported number of components: " + components);
+        }
+
+        synchronized (LUTS) {
+            return LUTS.computeIfAbsent(colorSpace, ColorLut::new);
+        }
+    }
+
+    /**
+     * Convert a row of 8-bit components to opaque RGB.
+     *
+     * @param c0  first components
+     * @param c1  second components
+     * @param c2  third components
+     * @param c3  fourth components, ignored for a 3-component color space
+     * @param dst receives {@code 0xFFRRGGBB}
+     */
+    void convert(int[] c0, int[] c1, int[] c2, int[] c3, int[] dst, int offset, int length) {
+        int plane = grid * grid;
+        int cube = plane * grid;
+
+        for (int x = 0; x < length; x++) {
+            int base = (index[c0[x]] * grid + index[c1[x]]) * grid + index[c2[x]];
+            int f0 = weight[c0[x]];
+            int f1 = weight[c1[x]];
+            int f2 = weight[c2[x]];
+
+            int color;
+            if (slices == 1) {
+                color = interpolate(base, f0, f1, f2, plane);
+            } else {
+                int k = c3[x];
+                int fk = weight[k];
+                base += index[k] * cube;
+
+                color = interpolate(base, f0, f1, f2, plane);
+                if (fk != 0) {
+                    color = blend(color, interpolate(base + cube, f0, f1, f2, plane), fk);
+                }
+            }
+
+            dst[offset + x] = 0xFF000000 | color;
+        }
+    }
+
+    /**
+     * Tetrahedral interpolation inside the cell starting at node {@code base}.
+     */
+    private int interpolate(int base, int f0, int f1, int f2, int plane) {
+        int step0 = plane;
+        int step1 = grid;
+        int step2 = 1;
+
+        // Walk from the lowest corner to the highest one, along the axes by descending weight
+        int wa, wb, wc;
+        int a, b;
+        if (f0 >= f1) {
+            if (f1 >= f2) {
+                wa = f0; wb = f1; wc = f2;
+                a = step0; b = step0 + step1;
+            } else if (f0 >= f2) {
+                wa = f0; wb = f2; wc = f1;
+                a = step0; b = step0 + step2;
+            } else {
+                wa = f2; wb = f0; wc = f1;
+                a = step2; b = step2 + step0;
+            }
+        } else {
+            if (f0 >= f2) {
+                wa = f1; wb = f0; wc = f2;
+                a = step1; b = step1 + step0;
+            } else if (f1 >= f2) {
+                wa = f1; wb = f2; wc = f0;
+                a = step1; b = step1 + step2;
+            } else {
+                wa = f2; wb = f1; wc = f0;
+                a = step2; b = step2 + step1;
+            }
+        }
+
+        int p0 = rgb[base];
+        int p1 = rgb[base + a];
+        int p2 = rgb[base + b];
+        int p3 = rgb[base + step0 + step1 + step2];
+
+        int w0 = 255 - wa;
+        int w1 = wa - wb;
+        int w2 = wb - wc;
+
+        int r = (((p0 >> 16) & 0xFF) * w0 + ((p1 >> 16) & 0xFF) * w1
+                + ((p2 >> 16) & 0xFF) * w2 + ((p3 >> 16) & 0xFF) * wc + 127) / 255;
+        int g = (((p0 >> 8) & 0xFF) * w0 + ((p1 >> 8) & 0xFF) * w1
+                + ((p2 >> 8) & 0xFF) * w2 + ((p3 >> 8) & 0xFF) * wc + 127) / 255;
+        int bl = ((p0 & 0xFF) * w0 + (p1 & 0xFF) * w1
+                + (p2 & 0xFF) * w2 + (p3 & 0xFF) * wc + 127) / 255;
+
+        return r << 16 | g << 8 | bl;
+    }
+
+    private static int blend(int low, int high, int f) {
+        int r = (((low >> 16) & 0xFF) * (255 - f) + ((high >> 16) & 0xFF) * f + 127) / 255;
+        int g = (((low >> 8) & 0xFF) * (255 - f) + ((high >> 8) & 0xFF) * f + 127) / 255;
+        int b = ((low & 0xFF) * (255 - f) + (high & 0xFF) * f + 127) / 255;
+
+        return r << 16 | g << 8 | b;
+    }
+}
@@ -0,0 +1,236 @@
+/**
+ * Photohub ---- To View Some S3xy Photos
+ * Copyright (C) 2025 Loraine K. Cheung
+ * <p>
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * <p>
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * <p>
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package io.loraine.photohub.photo.pixel;
+
+import java.awt.color.ColorSpace;
+import java.awt.image.BufferedImage;
+import java.awt.image.ColorModel;
+import java.awt.image.ComponentColorModel;
+import java.awt.image.ComponentSampleModel;
+import java.awt.image.DataBuffer;
+import java.awt.image.DataBufferByte;
+import java.awt.image.DataBufferUShort;
+import java.awt.image.WritableRaster;
+
+/**
+ * Row by row conversion of {@link ComponentColorModel} images, which Java2D
+ * only handles through a per-pixel {@code ColorModel.getRGB} call, to
+ * premultiplied ARGB.
+ * <p>
+ * Covers 8-bit and 16-bit samples, interleaved or banded, in these layouts:
+ * <ul>
+ *     <li>gray, with or without alpha (gray PNGs and TIFFs)</li>
+ *     <li>sRGB, with or without alpha (16-bit PNGs, 48-bit and 64-bit TIFFs)</li>
+ *     <li>any other 3 or 4 component color space, such as CMYK or Adobe RGB,
+ *     through a {@link ColorLut}</li>
+ * </ul>
+ * 16-bit samples are truncated to their high byte. Gray samples are taken as
+ * they are, like Java2D does for {@code TYPE_BYTE_GRAY} and {@code TYPE_USHORT_GRAY},
+ * instead of being treated as linear.
+ */
+final class ComponentKernel {
+    private enum Kind {GRAY, SRGB, LUT}
+
+    private final Kind kind;
+    private final ColorLut lut;
+    private final Kernels kernels = Kernels.get();
+    private final boolean hasAlpha;
+    private final boolean premultiplied;
+
+    private final int width;
+    private final int colorBands;
+    private final boolean ushort;
+
+    // Layout of each band
+    private final Object[] banks;
+    private final int[] starts;
+    private final int pixelStride;
+    private final int scanlineStride;
+
+    // Reused row of each band, in 8-bit
+    private final int[][] rows;
+
+    private ComponentKernel(BufferedImage image, Kind kind, ColorLut lut) {
+        WritableRaster raster = image.getRaster();
+        ComponentSampleModel sampleModel = (ComponentSampleModel) raster.getSampleModel();
+        DataBuffer dataBuffer = raster.getDataBuffer();
+        ColorModel colorModel = image.getColorModel();
+
+        this.kind = kind;
+        this.lut = lut;
+        this.hasAlpha = colorModel.hasAlpha();
+        this.premultiplied = colorModel.isAlphaPremultiplied();
+
+        this.width = image.getWidth();
+        this.colorBands = colorModel.getNumColorComponents();
+        this.ushort = dataBuffer.getDataType() == DataBuffer.TYPE_USHORT;
+
+        int bands = raster.getNumBands();
+        int[] bankIndices = sampleModel.getBankIndices();
+        int[] bandOffsets = sampleModel.getBandOffsets();
+
+        // Translation of a child raster, in samples
+        int translateX = -raster.getSampleModelTranslateX();
+        int translateY = -raster.getSampleModelTranslateY();
+
+        banks = new Object[bands];
+        starts = new int[bands];
+        pixelStride = sampleModel.getPixelStride();
+        scanlineStride = sampleModel.getScanlineStride();
+
+        for (int b = 0; b < bands; b++) {
+            int bank = bankIndices[b];
+            banks[b] = ushort
+                    ? ((DataBufferUShort) dataBuffer).getData(bank)
+                    : ((DataBufferByte) dataBuffer).getData(bank);
+            starts[b] = dataBuffer.getOffsets()[bank] + bandOffsets[b]
+                    + translateX * pixelStride + translateY * scanlineStride;
+        }
+
+        rows = new int[bands][width];
+    }
+
+    /**
+     * Get a kernel for the image.
+     *
+     * @return the kernel, or {@code null} if the image is not supported
+     */
+    static ComponentKernel forImage(BufferedImage image) {
+        if (!(image.getColorModel() instanceof ComponentColorModel colorModel)) {
+            return null;
+        }
+
+        WritableRaster raster = image.getRaster();
+        if (!(raster.getSampleModel() instanceof ComponentSampleModel)) {
+            return null;
+        }
+
+        DataBuffer dataBuffer = raster.getDataBuffer();
+        if (!(dataBuffer instanceof DataBufferByte) && !(dataBuffer instanceof DataBufferUShort)) {
+            return null;
+        }
+
+        int bits = dataBuffer.getDataType() == DataBuffer.TYPE_USHORT ? 16 : 8;
+        for (int size : colorModel.getComponentSize()) {
+            if (size != bits) {
+                return null;
+            }
+        }
+
+        ColorSpace colorSpace = colorModel.getColorSpace();
+        int components = colorSpace.getNumComponents();
+
+        if (colorSpace.getType() == ColorSpace.TYPE_GRAY && components == 1) {
+            return new ComponentKernel(image, Kind.GRAY, null);
+        }
+
+        if (colorSpace.isCS_sRGB()) {
+            return new ComponentKernel(image, Kind.SRGB, null);
+        }
+
+        // The table is built from unpremultiplied colors
+        if ((components == 3 || components == 4) && !colorModel.isAlphaPremultiplied()) {
+            return new ComponentKernel(image, Kind.LUT, ColorLut.get(colorSpace));
+        }
+
+        return null;
+    }
+
+    /**
+     * Convert the whole image into a new array.
+     */
+    int[] convert(int height) {
+        int[] pixels = new int[width * height];
+        for (int y = 0; y < height; y++) {
+            convertRow(y, pixels, y * width);
+        }
+
+        return pixels;
+    }
+
+    /**
+     * Convert row {@code y} to premultiplied ARGB pixels, starting at
+     * {@code dst[offset]}. Not thread safe, the rows are reused.
+     */
+    void convertRow(int y, int[] dst, int offset) {
+        if (kind == Kind.GRAY && !ushort && pixelStride == 1) {
+            // 8-bit gray samples side by side, as in TYPE_BYTE_GRAY
+            kernels.grayToArgb((byte[]) banks[0], starts[0] + y * scanlineStride, dst, offset, width);
+        } else {
+            convertColors(y, dst, offset);
+        }
+
+        if (hasAlpha) {
+            readBand(colorBands, y, rows[colorBands]);
+            applyAlpha(rows[colorBands], dst, offset);
+        }
+    }
+
+    private void convertColors(int y, int[] dst, int offset) {
+        for (int b = 0; b < colorBands; b++) {
+            readBand(b, y, rows[b]);
+        }
+
+        switch (kind) {
+            case GRAY -> {
+                int[] gray = rows[0];
+                for (int x = 0; x < width; x++) {
+                    dst[offset + x] = 0xFF000000 | gray[x] * 0x010101;
+                }
+            }
+            case SRGB -> {
+                int[] r = rows[0];
+                int[] g = rows[1];
+                int[] b = rows[2];
+                for (int x = 0; x < width; x++) {
+                    dst[offset + x] = 0xFF000000 | r[x] << 16 | g[x] << 8 | b[x];
+                }
+            }
+            case LUT -> lut.convert(rows[0], rows[1], rows[2], colorBands == 4 ? rows[3] : null,
+                    dst, offset, width);
+        }
+    }
+
+    private void readBand(int band, int y, int[] row) {
+        int s = starts[band] + y * scanlineStride;
+
+        if (ushort) {
+            short[] src = (short[]) banks[band];
+            for (int x = 0; x < width; x++, s += pixelStride) {
+                row[x] = (src[s] & 0xFFFF) >>> 8;
+            }
+        } else {
+            byte[] src = (byte[]) banks[band];
+            for (int x = 0; x < width; x++, s += pixelStride) {
+                row[x] = src[s] & 0xFF;
+            }
+        }
+    }
+
+    private void applyAlpha(int[] alpha, int[] dst, int offset) {
+        for (int x = 0; x < width; x++) {
+            int i = offset + x;
+            dst[i] = alpha[x] << 24 | (dst[i] & 0x00FFFFFF);
+        }
+
+        if (!premultiplied) {
+            kernels.premultiply(dst, offset, width);
+        }
+    }
+}
@@ -0,0 +1,348 @@
+/**
+ * Photohub ---- To View Some S3xy Photos
+ * Copyright (C) 2025 Loraine K. Cheung
+ * <p>
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * <p>
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * <p>
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package io.loraine.photohub.photo.pixel;
+
+import javafx.embed.swing.SwingFXUtils;
+import javafx.scene.image.PixelBuffer;
+import javafx.scene.image.PixelFormat;
+import javafx.scene.image.WritableImage;
+
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferByte;
+import java.awt.image.DataBufferInt;
+import java.awt.image.PixelInterleavedSampleModel;
+import java.awt.image.SinglePixelPackedSampleModel;
+import java.awt.image.WritableRaster;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+
+/**
+ * Hand decoded {@code BufferedImage}s to JavaFX without the extra full-frame
+ * copy of {@link SwingFXUtils#toFXImage(BufferedImage, WritableImage)}.
+ * <p>
+ * Images backed by a packed {@code int[]} are converted in place to
+ * premultiplied ARGB and wrapped as a {@link PixelBuffer}, so the decoded
+ * array itself becomes the pixels of the returned {@link WritableImage}.
+ * Interleaved byte images, which most JPEG decoders produce, are converted
+ * in one pass into a new {@code int[]} that is wrapped the same way, and so
+ * are 16-bit, gray and CMYK images.
+ * <p>
+ * Premultiplied ARGB is the pixel format of every decoded image in PhotoHub,
+ * it has the same memory layout as the premultiplied BGRA textures of Prism on
+ * little-endian machines, so the conversion is done once on the decoding
+ * thread instead of on the FX thread when the image is first rendered.
+ * Decoders which draw by themselves should draw into {@code TYPE_INT_ARGB_PRE}
+ * images, which are wrapped as they are.
+ * <p>
+ * {@link #toDirectFXImage(BufferedImage)} writes the converted pixels into a
+ * direct buffer instead, for the images which are kept in the off-heap cache.
+ * <p>
+ * The per-pixel conversions are done by the {@link Kernels}, on SIMD vectors
+ * when the Vector API is available.
+ * <p>
+ * The zero-copy path can be turned off with {@code -Dphotohub.pixelBuffer=false}
+ * or {@link #setPixelBufferEnabled(boolean)} to compare with the old one.
+ */
+public class FxImages {
+    private FxImages() {
+    }
+
+    private static volatile boolean pixelBufferEnabled =
+            Boolean.parseBoolean(System.getProperty("photohub.pixelBuffer", "true"));
+
+    /**
+     * Convert a decoded image to a JavaFX image.
+     * <p>
+     * <b>Note:</b> the pixels of {@code image} may be modified in place and
+     * shared with the returned image, {@code image} should not be used afterwards.
+     *
+     * @param image the decoded image
+     * @return a {@code PixelBuffer} backed image in premultiplied ARGB
+     */
+    public static WritableImage toFXImage(BufferedImage image) {
+        if (image == null) {
+            throw new NullPointerException("Image cannot be null.");
+        }
+
+        if (!pixelBufferEnabled) {
+            return SwingFXUtils.toFXImage(image, null);
+        }
+
+        int[] pixels = getPackedPixels(image);
+        ComponentKernel kernel;
+
+        if (pixels != null) {
+            convertPackedInPlace(image, pixels);
+        } else if ((pixels = convertInterleavedBytes(image)) != null) {
+            // Most JPEG decoders hand out 3BYTE_BGR, convert in a single pass
+        } else if ((kernel = ComponentKernel.forImage(image)) != null) {
+            // 16-bit, gray and CMYK images, which Java2D converts pixel by pixel
+            pixels = kernel.convert(image.getHeight());
+        } else {
+            // Draw into a premultiplied canvas, still only one copy
+            pixels = drawPremultiplied(image);
+        }
+
+        return wrap(pixels, image.getWidth(), image.getHeight());
+    }
+
+    /**
+     * Convert a decoded image to a JavaFX image whose pixels live in a direct
+     * buffer outside the Java heap.
+     * <p>
+     * The direct buffer is allocated before anything else, so {@code image}
+     * is left untouched if it fails and can still be converted another way.
+     * Otherwise the same note as {@link #toFXImage(BufferedImage)} applies.
+     *
+     * @param image the decoded image
+     * @return a {@code PixelBuffer} backed image in premultiplied ARGB
+     * @throws OutOfMemoryError if the direct memory limit is reached
+     */
+    public static WritableImage toDirectFXImage(BufferedImage image) {
+        if (image == null) {
+            throw new NullPointerException("Image cannot be null.");
+        }
+
+        int width = image.getWidth();
+        int height = image.getHeight();
+
+        IntBuffer buffer = allocateDirect(width, height);
+        copyTo(image, buffer, 0);
+
+        return wrap(buffer, width, height);
+    }
+
+    /**
+     * Allocate a direct buffer in the native byte order for the pixels of a
+     * {@code width x height} image, see {@link #wrap(IntBuffer, int, int)}.
+     *
+     * @throws OutOfMemoryError if the direct memory limit is reached
+     */
+    public static IntBuffer allocateDirect(int width, int height) {
+        return ByteBuffer.allocateDirect(Math.multiplyExact(Math.multiplyExact(width, height), 4))
+                .order(ByteOrder.nativeOrder())
+                .asIntBuffer();
+    }
+
+    /**
+     * Convert a decoded image to premultiplied ARGB and write it into a heap or
+     * direct buffer, row by row without padding, e.g. one band of a larger image.
+     * <p>
+     * Only absolute puts are used, the position of {@code dst} is unchanged, so
+     * several threads may fill disjoint parts of the same buffer. The same note
+     * as {@link #toFXImage(BufferedImage)} applies to {@code image}.
+     *
+     * @param image  the decoded image
+     * @param dst    the buffer receiving {@code width x height} pixels
+     * @param offset index in {@code dst} of the first pixel
+     */
+    public static void copyTo(BufferedImage image, IntBuffer dst, int offset) {
+        int width = image.getWidth();
+        int height = image.getHeight();
+
+        int[] pixels = getPackedPixels(image);
+        ComponentKernel kernel;
+
+        if (pixels != null) {
+            convertPackedInPlace(image, pixels);
+            dst.put(offset, pixels);
+        } else if (isInterleavedBytes(image)) {
+            // Row by row, so the whole frame is never copied on the heap
+            int[] row = new int[width];
+            for (int y = 0; y < height; y++) {
+                convertInterleavedRow(image, y, row, 0);
+                dst.put(offset + y * width, row);
+            }
+        } else if ((kernel = ComponentKernel.forImage(image)) != null) {
+            int[] row = new int[width];
+            for (int y = 0; y < height; y++) {
+                kernel.convertRow(y, row, 0);
+                dst.put(offset + y * width, row);
+            }
+        } else {
+            dst.put(offset, drawPremultiplied(image));
+        }
+    }
+
+    /**
+     * Wrap premultiplied ARGB pixels as a JavaFX image without copying.
+     *
+     * @param pixels premultiplied ARGB pixels, row by row without padding
+     * @param width  width of the image
+     * @param height height of the image
+     */
+    public static WritableImage wrap(int[] pixels, int width, int height) {
+        return wrap(IntBuffer.wrap(pixels), width, height);
+    }
+
+    /**
+     * Wrap premultiplied ARGB pixels in a heap or direct buffer as a JavaFX
+     * image without copying.
+     *
+     * @param pixels premultiplied ARGB pixels from position 0, row by row without padding
+     * @param width  width of the image
+     * @param height height of the image
+     */
+    public static WritableImage wrap(IntBuffer pixels, int width, int height) {
+        PixelBuffer<IntBuffer> buffer = new PixelBuffer<>(
+                width, height, pixels, PixelFormat.getIntArgbPreInstance());
+        return new WritableImage(buffer);
+    }
+
+    public static boolean isPixelBufferEnabled() {
+        return pixelBufferEnabled;
+    }
+
+    public static void setPixelBufferEnabled(boolean enabled) {
+        pixelBufferEnabled = enabled;
+    }
+
+    /**
+     * Get the {@code int[]} of an image whose pixels are packed one int per
+     * pixel, row by row without padding, in RGB, ARGB or premultiplied ARGB.
+     *
+     * @return the backing array, or {@code null} if the layout does not match
+     */
+    private static int[] getPackedPixels(BufferedImage image) {
+        int type = image.getType();
+        if (type != BufferedImage.TYPE_INT_RGB
+                && type != BufferedImage.TYPE_INT_ARGB
+                && type != BufferedImage.TYPE_INT_ARGB_PRE) {
+            return null;
+        }
+
+        WritableRaster raster = image.getRaster();
+        if (!(raster.getDataBuffer() instanceof DataBufferInt dataBuffer)
+                || !(raster.getSampleModel() instanceof SinglePixelPackedSampleModel sampleModel)) {
+            return null;
+        }
+
+        // A child raster or a padded one can't be wrapped directly
+        if (dataBuffer.getNumBanks() != 1 || dataBuffer.getOffset() != 0
+                || raster.getSampleModelTranslateX() != 0 || raster.getSampleModelTranslateY() != 0
+                || sampleModel.getScanlineStride() != image.getWidth()) {
+            return null;
+        }
+
+        int[] pixels = dataBuffer.getData();
+        return pixels.length == image.getWidth() * image.getHeight() ? pixels : null;
+    }
+
+    /**
+     * Convert packed RGB or ARGB pixels to premultiplied ARGB in place.
+     */
+    private static void convertPackedInPlace(BufferedImage image, int[] pixels) {
+        switch (image.getType()) {
+            case BufferedImage.TYPE_INT_RGB -> fillAlpha(pixels);
+            case BufferedImage.TYPE_INT_ARGB -> premultiply(pixels);
+            default -> {
+                // TYPE_INT_ARGB_PRE is what the PixelBuffer expects
+            }
+        }
+    }
+
+    /**
+     * Check whether an image is a {@code TYPE_3BYTE_BGR}, {@code TYPE_4BYTE_ABGR}
+     * or {@code TYPE_4BYTE_ABGR_PRE} image which can be read row by row.
+     */
+    private static boolean isInterleavedBytes(BufferedImage image) {
+        int type = image.getType();
+        if (type != BufferedImage.TYPE_3BYTE_BGR
+                && type != BufferedImage.TYPE_4BYTE_ABGR
+                && type != BufferedImage.TYPE_4BYTE_ABGR_PRE) {
+            return false;
+        }
+
+        WritableRaster raster = image.getRaster();
+        return raster.getDataBuffer() instanceof DataBufferByte dataBuffer
+                && raster.getSampleModel() instanceof PixelInterleavedSampleModel sampleModel
+                && sampleModel.getPixelStride() == (type == BufferedImage.TYPE_3BYTE_BGR ? 3 : 4)
+                && dataBuffer.getNumBanks() == 1
+                && raster.getSampleModelTranslateX() == 0 && raster.getSampleModelTranslateY() == 0;
+    }
+
+    /**
+     * Convert the interleaved byte image to premultiplied ARGB pixels.
+     *
+     * @return the converted pixels, or {@code null} if the layout does not match
+     * @see #isInterleavedBytes(BufferedImage)
+     */
+    private static int[] convertInterleavedBytes(BufferedImage image) {
+        if (!isInterleavedBytes(image)) {
+            return null;
+        }
+
+        int width = image.getWidth();
+        int height = image.getHeight();
+        int[] pixels = new int[width * height];
+
+        for (int y = 0; y < height; y++) {
+            convertInterleavedRow(image, y, pixels, y * width);
+        }
+
+        return pixels;
+    }
+
+    /**
+     * Convert row {@code y} of an interleaved byte image to premultiplied ARGB
+     * pixels, starting at {@code dst[offset]}.
+     */
+    private static void convertInterleavedRow(BufferedImage image, int y, int[] dst, int offset) {
+        WritableRaster raster = image.getRaster();
+        DataBufferByte dataBuffer = (DataBufferByte) raster.getDataBuffer();
+        PixelInterleavedSampleModel sampleModel = (PixelInterleavedSampleModel) raster.getSampleModel();
+
+        int type = image.getType();
+        int width = image.getWidth();
+        byte[] src = dataBuffer.getData();
+        int s = dataBuffer.getOffset() + y * sampleModel.getScanlineStride();
+
+        Kernels kernels = Kernels.get();
+        if (type == BufferedImage.TYPE_3BYTE_BGR) {
+            kernels.bgrToArgb(src, s, dst, offset, width);
+            return;
+        }
+
+        kernels.abgrToArgb(src, s, dst, offset, width);
+        if (type == BufferedImage.TYPE_4BYTE_ABGR) {
+            kernels.premultiply(dst, offset, width);
+        }
+    }
+
+    private static int[] drawPremultiplied(BufferedImage image) {
+        BufferedImage pre = new BufferedImage(image.getWidth(), image.getHeight(),
+                BufferedImage.TYPE_INT_ARGB_PRE);
+        Graphics2D g2d = pre.createGraphics();
+        g2d.drawImage(image, 0, 0, null);
+        g2d.dispose();
+
+        return ((DataBufferInt) pre.getRaster().getDataBuffer()).getData();
+    }
+
+    private static void fillAlpha(int[] pixels) {
+        Kernels.get().fillAlpha(pixels, 0, pixels.length);
+    }
+
+    private static void premultiply(int[] pixels) {
+        Kernels.get().premultiply(pixels, 0, pixels.length);
+    }
+}
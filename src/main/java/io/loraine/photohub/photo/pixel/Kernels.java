@@ -0,0 +1,139 @@
+/**
+ * Photohub ---- To View Some S3xy Photos
+ * Copyright (C) 2025 Loraine K. Cheung
+ * <p>
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * <p>
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * <p>
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package io.loraine.photohub.photo.pixel;
+
+import io.loraine.photohub.util.Logger;
+
+/**
+ * Whole-row pixel loops of the decode pipeline, the format conversions to
+ * premultiplied ARGB and the resampler passes, with a SIMD implementation on
+ * the Vector API and a scalar fallback.
+ * <p>
+ * The kernels only stream over contiguous rows, gathers are avoided since
+ * they are slower than scalar loads on many CPUs.
+ * <p>
+ * The Vector API is still an incubator module, which the JVM only resolves
+ * with {@code --add-modules jdk.incubator.vector}. Without it, or with
+ * {@code -Dphotohub.vector=false}, the scalar kernels are used.
+ */
+public abstract class Kernels {
+    private static final boolean DEBUG = false;
+
+    private static final Kernels SCALAR = new ScalarKernels();
+    private static final Kernels VECTOR = loadVectorKernels();
+
+    private static volatile boolean vectorEnabled =
+            Boolean.parseBoolean(System.getProperty("photohub.vector", "true"));
+
+    Kernels() {
+    }
+
+    /**
+     * Get the kernels in use, the vectorized ones if available and enabled.
+     */
+    static Kernels get() {
+        Kernels vector = VECTOR;
+        return vectorEnabled && vector != null ? vector : SCALAR;
+    }
+
+    /**
+     * Whether the {@code jdk.incubator.vector} module is present at runtime.
+     */
+    public static boolean isVectorAvailable() {
+        return VECTOR != null;
+    }
+
+    public static boolean isVectorEnabled() {
+        return vectorEnabled;
+    }
+
+    /**
+     * Switch between the vectorized and the scalar kernels, no effect if the
+     * vectorized ones are not available.
+     */
+    public static void setVectorEnabled(boolean enabled) {
+        vectorEnabled = enabled;
+    }
+
+    // Loaded by name, so nothing touches the Vector API classes without the module
+    private static Kernels loadVectorKernels() {
+        if (ModuleLayer.boot().findModule("jdk.incubator.vector").isEmpty()) {
+            return null;
+        }
+
+        try {
+            return (Kernels) Class.forName("io.loraine.photohub.photo.pixel.VectorKernels")
+                    .getDeclaredConstructor()
+                    .newInstance();
+        } catch (ReflectiveOperationException | LinkageError e) {
+            if (DEBUG) Logger.logErr("Vector kernels unavailable: ", e);
+            return null;
+        }
+    }
+
+    /**
+     * Blend whole rows, for {@code 0 <= x < length}:
+     * <pre>
+     * dst[dstOffset + x] = sum over t of weights[t] * src[offsets[t] + x]
+     * </pre>
+     *
+     * @param taps number of source rows
+     */
+    abstract void blendRows(float[] src, int[] offsets, float[] weights, int taps,
+                            float[] dst, int dstOffset, int length);
+
+    /**
+     * Convert {@code length} pixels of 3 bytes in B, G, R order to opaque ARGB.
+     */
+    abstract void bgrToArgb(byte[] src, int srcOffset, int[] dst, int dstOffset, int length);
+
+    /**
+     * Convert {@code length} pixels of 4 bytes in A, B, G, R order to ARGB,
+     * the alpha is left as it is.
+     */
+    abstract void abgrToArgb(byte[] src, int srcOffset, int[] dst, int dstOffset, int length);
+
+    /**
+     * Convert {@code length} 8-bit gray samples to opaque ARGB.
+     */
+    abstract void grayToArgb(byte[] src, int srcOffset, int[] dst, int dstOffset, int length);
+
+    /**
+     * Set the alpha of {@code length} RGB pixels to opaque, in place.
+     */
+    abstract void fillAlpha(int[] pixels, int offset, int length);
+
+    /**
+     * Premultiply {@code length} ARGB pixels in place, each color is rounded
+     * to the nearest of {@code color * alpha / 255}.
+     */
+    abstract void premultiply(int[] pixels, int offset, int length);
+
+    /**
+     * Extract the 8-bit channel at {@code shift} of {@code length} ARGB pixels as floats.
+     */
+    abstract void unpackChannel(int[] argb, int offset, int shift, float[] dst, int length);
+
+    /**
+     * Round and pack {@code length} pixels of float channels into premultiplied
+     * ARGB, the alpha is clamped to {@code [0, 255]} and the colors to {@code [0, alpha]}.
+     */
+    abstract void packPremultiplied(float[] a, float[] r, float[] g, float[] b, int srcOffset,
+                                    int[] dst, int dstOffset, int length);
+}
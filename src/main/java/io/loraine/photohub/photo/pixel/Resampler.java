@@ -0,0 +1,279 @@
+/**
+ * Photohub ---- To View Some S3xy Photos
+ * Copyright (C) 2025 Loraine K. Cheung
+ * <p>
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * <p>
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * <p>
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package io.loraine.photohub.photo.pixel;
+
+import java.awt.image.BufferedImage;
+import java.nio.IntBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * High quality downscaling of premultiplied ARGB pixels.
+ * <p>
+ * Each axis is first halved with a box filter while it stays at least twice
+ * the target, which averages every source pixel cheaply, then resized to the
+ * target with a Lanczos-3 filter widened to the remaining scale. Both steps are
+ * separable passes over a float plane per channel, which only blend whole rows
+ * with the {@link Kernels} in use; the rows are filtered as the columns of the
+ * transposed planes.
+ * <p>
+ * Premultiplied pixels are filtered as they are, so transparent pixels don't
+ * bleed their color into the neighbours.
+ */
+public final class Resampler {
+    private static final int LANCZOS_A = 3;
+    private static final int TRANSPOSE_BLOCK = 32;
+
+    private Resampler() {
+    }
+
+    /**
+     * Resize an image to {@code dstW x dstH}.
+     *
+     * @return premultiplied ARGB pixels, row by row
+     */
+    public static int[] resize(BufferedImage image, int dstW, int dstH) {
+        int[] dst = new int[dstW * dstH];
+        resize(image, dstW, dstH, dst, 0, dstW);
+        return dst;
+    }
+
+    /**
+     * Resize an image to {@code dstW x dstH} and write it into a larger
+     * canvas, e.g. centered on a letterboxed thumbnail.
+     *
+     * @param dst       premultiplied ARGB pixels of the canvas, the rest of it is left untouched
+     * @param dstOffset index in {@code dst} of the top left pixel
+     * @param dstStride pixels per row of the canvas
+     */
+    public static void resize(BufferedImage image, int dstW, int dstH, int[] dst, int dstOffset, int dstStride) {
+        int srcW = image.getWidth();
+        int srcH = image.getHeight();
+
+        int[] pixels = new int[srcW * srcH];
+        FxImages.copyTo(image, IntBuffer.wrap(pixels), 0);
+
+        resize(pixels, srcW, srcH, dstW, dstH, dst, dstOffset, dstStride);
+    }
+
+    /**
+     * Resize premultiplied ARGB pixels to {@code dstW x dstH}.
+     * <p>
+     * Meant for downscaling, an upscale is still correct but only as good
+     * as a Lanczos interpolation.
+     *
+     * @param argbPre premultiplied ARGB pixels of {@code srcW x srcH}, row by row
+     * @return premultiplied ARGB pixels of {@code dstW x dstH}, row by row
+     */
+    public static int[] resize(int[] argbPre, int srcW, int srcH, int dstW, int dstH) {
+        int[] dst = new int[dstW * dstH];
+        resize(argbPre, srcW, srcH, dstW, dstH, dst, 0, dstW);
+        return dst;
+    }
+
+    /**
+     * Resize premultiplied ARGB pixels to {@code dstW x dstH} and write them
+     * into a larger canvas.
+     *
+     * @param argbPre   premultiplied ARGB pixels of {@code srcW x srcH}, row by row
+     * @param dst       premultiplied ARGB pixels of the canvas, the rest of it is left untouched
+     * @param dstOffset index in {@code dst} of the top left pixel
+     * @param dstStride pixels per row of the canvas
+     * @see #resize(int[], int, int, int, int)
+     */
+    public static void resize(int[] argbPre, int srcW, int srcH, int dstW, int dstH,
+                              int[] dst, int dstOffset, int dstStride) {
+        if (srcW <= 0 || srcH <= 0 || dstW <= 0 || dstH <= 0) {
+            throw new IllegalArgumentException("Invalid size: " + srcW + "x" + srcH + " -> " + dstW + "x" + dstH);
+        }
+
+        if (argbPre.length < srcW * srcH) {
+            throw new IllegalArgumentException("Not enough pixels for " + srcW + "x" + srcH);
+        }
+
+        if (dstStride < dstW || dstOffset < 0 || dstOffset + (long) (dstH - 1) * dstStride + dstW > dst.length) {
+            throw new IllegalArgumentException("The canvas is too small for " + dstW + "x" + dstH);
+        }
+
+        if (srcW == dstW && srcH == dstH) {
+            for (int y = 0; y < dstH; y++) {
+                System.arraycopy(argbPre, y * srcW, dst, dstOffset + y * dstStride, dstW);
+            }
+            return;
+        }
+
+        Kernels kernels = Kernels.get();
+        List<Filter> columns = Filter.chain(srcH, dstH);
+        List<Filter> rows = Filter.chain(srcW, dstW);
+
+        // One channel at a time, a float plane is as large as the pixels themselves
+        float[][] planes = new float[4][];
+        for (int channel = 0; channel < 4; channel++) {
+            float[] plane = new float[srcW * srcH];
+            kernels.unpackChannel(argbPre, 0, 24 - channel * 8, plane, plane.length);
+
+            // The columns first, the rows are shrunk before they are transposed
+            plane = resample(kernels, plane, srcW, columns);
+            if (!rows.isEmpty()) {
+                plane = transpose(plane, srcW, dstH);
+                plane = resample(kernels, plane, dstH, rows);
+                plane = transpose(plane, dstH, dstW);
+            }
+
+            planes[channel] = plane;
+        }
+
+        // Lanczos lobes overshoot, the colors are clamped within the alpha to be valid premultiplied
+        for (int y = 0; y < dstH; y++) {
+            kernels.packPremultiplied(planes[0], planes[1], planes[2], planes[3], y * dstW,
+                    dst, dstOffset + y * dstStride, dstW);
+        }
+    }
+
+    /**
+     * Resample each column of a plane {@code width} pixels wide through the filters.
+     */
+    private static float[] resample(Kernels kernels, float[] plane, int width, List<Filter> filters) {
+        for (Filter filter : filters) {
+            int dstH = filter.dstSize;
+            int taps = filter.taps;
+
+            int[] offsets = new int[taps];
+            float[] weights = new float[taps];
+
+            float[] result = new float[width * dstH];
+            for (int y = 0; y < dstH; y++) {
+                for (int t = 0; t < taps; t++) {
+                    offsets[t] = filter.index[t * dstH + y] * width;
+                    weights[t] = filter.weights[t * dstH + y];
+                }
+
+                kernels.blendRows(plane, offsets, weights, taps, result, y * width, width);
+            }
+
+            plane = result;
+        }
+
+        return plane;
+    }
+
+    // In square blocks, so both the reads and the writes stay in the cache
+    private static float[] transpose(float[] src, int width, int height) {
+        float[] dst = new float[width * height];
+
+        for (int y0 = 0; y0 < height; y0 += TRANSPOSE_BLOCK) {
+            int y1 = Math.min(height, y0 + TRANSPOSE_BLOCK);
+            for (int x0 = 0; x0 < width; x0 += TRANSPOSE_BLOCK) {
+                int x1 = Math.min(width, x0 + TRANSPOSE_BLOCK);
+                for (int y = y0; y < y1; y++) {
+                    for (int x = x0; x < x1; x++) {
+                        dst[x * height + y] = src[y * width + x];
+                    }
+                }
+            }
+        }
+
+        return dst;
+    }
+
+    /**
+     * Weights of a resampling pass along one axis, {@code taps} source pixels
+     * per destination pixel, all the first taps then all the second ones and so on.
+     */
+    private record Filter(int srcSize, int dstSize, int taps, int[] index, float[] weights) {
+        /**
+         * Filters from {@code srcSize} to {@code dstSize}: halvings while the size
+         * stays at least the target, then a Lanczos pass if still needed.
+         */
+        static List<Filter> chain(int srcSize, int dstSize) {
+            List<Filter> filters = new ArrayList<>();
+
+            int size = srcSize;
+            while (size / 2 >= dstSize) {
+                Filter filter = halve(size);
+                filters.add(filter);
+                size = filter.dstSize;
+            }
+
+            if (size != dstSize) {
+                filters.add(lanczos(size, dstSize));
+            }
+
+            return filters;
+        }
+
+        static Filter halve(int srcSize) {
+            int dstSize = Math.max(1, srcSize / 2);
+
+            int[] index = new int[2 * dstSize];
+            float[] weights = new float[2 * dstSize];
+            for (int x = 0; x < dstSize; x++) {
+                index[x] = Math.min(2 * x, srcSize - 1);
+                index[dstSize + x] = Math.min(2 * x + 1, srcSize - 1);
+                weights[x] = 0.5f;
+                weights[dstSize + x] = 0.5f;
+            }
+
+            return new Filter(srcSize, dstSize, 2, index, weights);
+        }
+
+        static Filter lanczos(int srcSize, int dstSize) {
+            double scale = (double) srcSize / dstSize;
+            double filterScale = Math.max(1.0, scale); // Widen the filter to cover every source pixel when shrinking
+            double support = LANCZOS_A * filterScale;
+            int taps = (int) Math.ceil(support * 2) + 1;
+
+            int[] index = new int[taps * dstSize];
+            float[] weights = new float[taps * dstSize];
+            double[] raw = new double[taps];
+
+            for (int x = 0; x < dstSize; x++) {
+                double center = (x + 0.5) * scale; // Pixel centers are at i + 0.5
+                int first = (int) Math.floor(center - support);
+
+                double sum = 0;
+                for (int t = 0; t < taps; t++) {
+                    raw[t] = lanczos((first + t + 0.5 - center) / filterScale);
+                    sum += raw[t];
+                }
+
+                for (int t = 0; t < taps; t++) {
+                    // Repeat the edge pixels beyond the borders
+                    index[t * dstSize + x] = Math.clamp(first + t, 0, srcSize - 1);
+                    weights[t * dstSize + x] = (float) (raw[t] / sum);
+                }
+            }
+
+            return new Filter(srcSize, dstSize, taps, index, weights);
+        }
+
+        private static double lanczos(double x) {
+            if (x == 0) {
+                return 1;
+            }
+
+            if (Math.abs(x) >= LANCZOS_A) {
+                return 0;
+            }
+
+            double px = Math.PI * x;
+            return LANCZOS_A * Math.sin(px) * Math.sin(px / LANCZOS_A) / (px * px);
+        }
+    }
+}
@@ -0,0 +1,126 @@
+/**
+ * Photohub ---- To View Some S3xy Photos
+ * Copyright (C) 2025 Loraine K. Cheung
+ * <p>
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * <p>
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * <p>
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package io.loraine.photohub.photo.pixel;
+
+/**
+ * Plain loops of {@link Kernels}, used when the Vector API is not available.
+ */
+final class ScalarKernels extends Kernels {
+    @Override
+    void blendRows(float[] src, int[] offsets, float[] weights, int taps,
+                   float[] dst, int dstOffset, int length) {
+        // A row at a time, these simple loops are auto-vectorized by C2
+        int first = offsets[0];
+        float weight = weights[0];
+        for (int x = 0; x < length; x++) {
+            dst[dstOffset + x] = weight * src[first + x];
+        }
+
+        for (int t = 1; t < taps; t++) {
+            int offset = offsets[t];
+            weight = weights[t];
+            for (int x = 0; x < length; x++) {
+                dst[dstOffset + x] += weight * src[offset + x];
+            }
+        }
+    }
+
+    @Override
+    void bgrToArgb(byte[] src, int srcOffset, int[] dst, int dstOffset, int length) {
+        for (int x = 0, s = srcOffset; x < length; x++, s += 3) {
+            dst[dstOffset + x] = 0xFF000000
+                    | (src[s + 2] & 0xFF) << 16 | (src[s + 1] & 0xFF) << 8 | (src[s] & 0xFF);
+        }
+    }
+
+    @Override
+    void abgrToArgb(byte[] src, int srcOffset, int[] dst, int dstOffset, int length) {
+        for (int x = 0, s = srcOffset; x < length; x++, s += 4) {
+            dst[dstOffset + x] = (src[s] & 0xFF) << 24
+                    | (src[s + 3] & 0xFF) << 16 | (src[s + 2] & 0xFF) << 8 | (src[s + 1] & 0xFF);
+        }
+    }
+
+    @Override
+    void grayToArgb(byte[] src, int srcOffset, int[] dst, int dstOffset, int length) {
+        for (int x = 0; x < length; x++) {
+            dst[dstOffset + x] = 0xFF000000 | (src[srcOffset + x] & 0xFF) * 0x010101;
+        }
+    }
+
+    @Override
+    void fillAlpha(int[] pixels, int offset, int length) {
+        for (int i = offset; i < offset + length; i++) {
+            pixels[i] |= 0xFF000000;
+        }
+    }
+
+    @Override
+    void premultiply(int[] pixels, int offset, int length) {
+        for (int i = offset; i < offset + length; i++) {
+            int argb = pixels[i];
+            int a = argb >>> 24;
+
+            if (a == 0xFF) {
+                continue;
+            }
+
+            if (a == 0) {
+                pixels[i] = 0;
+                continue;
+            }
+
+            int r = ((argb >> 16) & 0xFF) * a + 128;
+            int g = ((argb >> 8) & 0xFF) * a + 128;
+            int b = (argb & 0xFF) * a + 128;
+
+            // round(x / 255) for 0 <= x <= 255 * 255
+            r = (r + (r >> 8)) >> 8;
+            g = (g + (g >> 8)) >> 8;
+            b = (b + (b >> 8)) >> 8;
+
+            pixels[i] = (a << 24) | (r << 16) | (g << 8) | b;
+        }
+    }
+
+    @Override
+    void unpackChannel(int[] argb, int offset, int shift, float[] dst, int length) {
+        for (int x = 0; x < length; x++) {
+            dst[x] = (argb[offset + x] >>> shift) & 0xFF;
+        }
+    }
+
+    @Override
+    void packPremultiplied(float[] a, float[] r, float[] g, float[] b, int srcOffset,
+                           int[] dst, int dstOffset, int length) {
+        for (int x = 0; x < length; x++) {
+            int i = srcOffset + x;
+            int alpha = clamp(a[i], 255);
+            dst[dstOffset + x] = alpha << 24
+                    | clamp(r[i], alpha) << 16
+                    | clamp(g[i], alpha) << 8
+                    | clamp(b[i], alpha);
+        }
+    }
+
+    private static int clamp(float value, int max) {
+        int rounded = (int) (value + 0.5f);
+        return rounded < 0 ? 0 : Math.min(rounded, max);
+    }
+}
@@ -0,0 +1,198 @@
+/**
+ * Photohub ---- To View Some S3xy Photos
+ * Copyright (C) 2025 Loraine K. Cheung
+ * <p>
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * <p>
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * <p>
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package io.loraine.photohub.photo.pixel;
+
+import jdk.incubator.vector.ByteVector;
+import jdk.incubator.vector.FloatVector;
+import jdk.incubator.vector.IntVector;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorShape;
+import jdk.incubator.vector.VectorShuffle;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * {@link Kernels} on the Vector API, in the widest vectors of the CPU.
+ * <p>
+ * Only loaded by name from {@link Kernels} when the incubator module is present.
+ * The leftover pixels at the end of a row go through the {@link ScalarKernels}.
+ */
+final class VectorKernels extends Kernels {
+    private static final VectorSpecies<Float> FLOATS = FloatVector.SPECIES_PREFERRED;
+    private static final VectorSpecies<Integer> INTS = IntVector.SPECIES_PREFERRED;
+    private static final VectorSpecies<Byte> BYTES = ByteVector.SPECIES_PREFERRED;
+
+    // A quarter of the bytes widen to a whole int vector, but no byte vector is shorter than 64 bits
+    private static final VectorSpecies<Byte> GRAY_BYTES = ByteVector.SPECIES_MAX.withShape(
+            VectorShape.forBitSize(Math.max(64, INTS.vectorBitSize() / 4)));
+
+    // Pixels of an int vector, the B, G, R bytes spread to B, G, R, _ in the little-endian ints
+    private static final int PIXELS = BYTES.length() / 4;
+    private static final VectorShuffle<Byte> BGR_TO_BGRX = VectorShuffle.fromOp(
+            BYTES, i -> i / 4 * 3 + Math.min(i % 4, 2));
+
+    // B, G, R, A bytes are A << 24 | R << 16 | G << 8 | B in a little-endian int
+    private static final VectorShuffle<Byte> ABGR_TO_BGRA = VectorShuffle.fromOp(
+            BYTES, i -> i / 4 * 4 + (i + 1) % 4);
+
+    private final ScalarKernels tail = new ScalarKernels();
+
+    @Override
+    void blendRows(float[] src, int[] offsets, float[] weights, int taps,
+                   float[] dst, int dstOffset, int length) {
+        int x = 0;
+        for (int upper = FLOATS.loopBound(length); x < upper; x += FLOATS.length()) {
+            FloatVector sum = FloatVector.zero(FLOATS);
+            for (int t = 0; t < taps; t++) {
+                FloatVector row = FloatVector.fromArray(FLOATS, src, offsets[t] + x);
+                sum = row.fma(FloatVector.broadcast(FLOATS, weights[t]), sum);
+            }
+            sum.intoArray(dst, dstOffset + x);
+        }
+
+        for (; x < length; x++) {
+            float sum = 0;
+            for (int t = 0; t < taps; t++) {
+                sum += weights[t] * src[offsets[t] + x];
+            }
+            dst[dstOffset + x] = sum;
+        }
+    }
+
+    @Override
+    void bgrToArgb(byte[] src, int srcOffset, int[] dst, int dstOffset, int length) {
+        int x = 0;
+        int s = srcOffset;
+
+        // A whole vector is loaded but only 3 / 4 of it is used, it must not run past the array
+        for (; x + PIXELS <= length && s + BYTES.length() <= src.length; x += PIXELS, s += PIXELS * 3) {
+            ByteVector.fromArray(BYTES, src, s)
+                    .rearrange(BGR_TO_BGRX)
+                    .reinterpretAsInts()
+                    .or(0xFF000000)
+                    .intoArray(dst, dstOffset + x);
+        }
+
+        tail.bgrToArgb(src, s, dst, dstOffset + x, length - x);
+    }
+
+    @Override
+    void abgrToArgb(byte[] src, int srcOffset, int[] dst, int dstOffset, int length) {
+        int x = 0;
+        for (int upper = INTS.loopBound(length); x < upper; x += INTS.length()) {
+            ByteVector.fromArray(BYTES, src, srcOffset + x * 4)
+                    .rearrange(ABGR_TO_BGRA)
+                    .reinterpretAsInts()
+                    .intoArray(dst, dstOffset + x);
+        }
+
+        tail.abgrToArgb(src, srcOffset + x * 4, dst, dstOffset + x, length - x);
+    }
+
+    @Override
+    void grayToArgb(byte[] src, int srcOffset, int[] dst, int dstOffset, int length) {
+        int x = 0;
+        for (; x + INTS.length() <= length && srcOffset + x + GRAY_BYTES.length() <= src.length;
+             x += INTS.length()) {
+            ((IntVector) ByteVector.fromArray(GRAY_BYTES, src, srcOffset + x)
+                    .convertShape(VectorOperators.B2I, INTS, 0))
+                    .and(0xFF)
+                    .mul(0x010101)
+                    .or(0xFF000000)
+                    .intoArray(dst, dstOffset + x);
+        }
+
+        tail.grayToArgb(src, srcOffset + x, dst, dstOffset + x, length - x);
+    }
+
+    @Override
+    void fillAlpha(int[] pixels, int offset, int length) {
+        int x = 0;
+        for (int upper = INTS.loopBound(length); x < upper; x += INTS.length()) {
+            IntVector.fromArray(INTS, pixels, offset + x)
+                    .or(0xFF000000)
+                    .intoArray(pixels, offset + x);
+        }
+
+        tail.fillAlpha(pixels, offset + x, length - x);
+    }
+
+    @Override
+    void premultiply(int[] pixels, int offset, int length) {
+        int x = 0;
+        for (int upper = INTS.loopBound(length); x < upper; x += INTS.length()) {
+            IntVector argb = IntVector.fromArray(INTS, pixels, offset + x);
+            IntVector a = argb.lanewise(VectorOperators.LSHR, 24);
+
+            // R and B side by side in 16-bit halves, G alone, both rounded like the scalar kernel
+            IntVector rb = argb.and(0x00FF00FF).mul(a).add(0x00800080);
+            rb = rb.add(rb.lanewise(VectorOperators.LSHR, 8).and(0x00FF00FF))
+                    .lanewise(VectorOperators.LSHR, 8)
+                    .and(0x00FF00FF);
+
+            IntVector g = argb.lanewise(VectorOperators.LSHR, 8).and(0xFF).mul(a).add(128);
+            g = g.add(g.lanewise(VectorOperators.LSHR, 8)).lanewise(VectorOperators.LSHR, 8);
+
+            a.lanewise(VectorOperators.LSHL, 24)
+                    .or(rb)
+                    .or(g.lanewise(VectorOperators.LSHL, 8))
+                    .intoArray(pixels, offset + x);
+        }
+
+        tail.premultiply(pixels, offset + x, length - x);
+    }
+
+    @Override
+    void unpackChannel(int[] argb, int offset, int shift, float[] dst, int length) {
+        int x = 0;
+        for (int upper = INTS.loopBound(length); x < upper; x += INTS.length()) {
+            IntVector channel = IntVector.fromArray(INTS, argb, offset + x)
+                    .lanewise(VectorOperators.LSHR, shift)
+                    .and(0xFF);
+            ((FloatVector) channel.convert(VectorOperators.I2F, 0)).intoArray(dst, x);
+        }
+
+        for (; x < length; x++) {
+            dst[x] = (argb[offset + x] >>> shift) & 0xFF;
+        }
+    }
+
+    @Override
+    void packPremultiplied(float[] a, float[] r, float[] g, float[] b, int srcOffset,
+                           int[] dst, int dstOffset, int length) {
+        int x = 0;
+        for (int upper = FLOATS.loopBound(length); x < upper; x += FLOATS.length()) {
+            int i = srcOffset + x;
+            IntVector alpha = round(a, i).max(0).min(255);
+
+            alpha.lanewise(VectorOperators.LSHL, 24)
+                    .or(round(r, i).max(0).min(alpha).lanewise(VectorOperators.LSHL, 16))
+                    .or(round(g, i).max(0).min(alpha).lanewise(VectorOperators.LSHL, 8))
+                    .or(round(b, i).max(0).min(alpha))
+                    .intoArray(dst, dstOffset + x);
+        }
+
+        tail.packPremultiplied(a, r, g, b, srcOffset + x, dst, dstOffset + x, length - x);
+    }
+
+    private static IntVector round(float[] channel, int offset) {
+        return (IntVector) FloatVector.fromArray(FLOATS, channel, offset)
+                .add(0.5f)
+                .convert(VectorOperators.F2I, 0);
+    }
+}
@@ -20,21 +20,55 @@ package io.loraine.photohub.photo.thumb;
 
 import io.loraine.photohub.photo.Photo;
 import io.loraine.photohub.photo.PhotoLoader;
+import io.loraine.photohub.photo.decode.CancelToken;
+import io.loraine.photohub.photo.decode.ImageStreams;
+import io.loraine.photohub.photo.decode.ReaderPool;
+import io.loraine.photohub.photo.pixel.Resampler;
+import io.loraine.photohub.util.Logger;
 
 import javafx.scene.image.Image;
-import javafx.embed.swing.SwingFXUtils;
+
+import org.w3c.dom.Node;
+
+import javax.imageio.metadata.IIOMetadata;
+import javax.imageio.metadata.IIOMetadataNode;
 
 import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
 
-import static java.awt.image.BufferedImage.TYPE_INT_ARGB;
+import static java.awt.image.BufferedImage.TYPE_INT_ARGB_PRE;
 
 import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 public class ThumbLoader extends PhotoLoader {
     private volatile int width;
     private volatile int height;
     private final Object sizeLock = new Object();
 
+    // Decoded pixels per thumbnail pixel along each axis, the decode dominates the generation,
+    // 4 decodes four times as many pixels as 2 for barely sharper thumbnails, see ThumbGenerationBench
+    private static final int OVERSAMPLING = 2;
+
+    // The packs of the directories being shown, keyed by the directory
+    private final Map<Path, ThumbPack> packs = new ConcurrentHashMap<>();
+
+    // Writes the packs off the FX thread and the render threads, shared by all loaders to
+    // outlive a closed one; not a daemon, the last writes finish before the JVM exits
+    private static final ExecutorService packWriter = new ThreadPoolExecutor(0, 1, 10, TimeUnit.SECONDS,
+            new LinkedBlockingQueue<>(), r -> new Thread(r, "photohub-thumb-pack"));
+    private static final Set<ThumbPack> queuedPacks = ConcurrentHashMap.newKeySet();
+
+    private static final boolean DEBUG = false;
 
     public ThumbLoader() throws IOException {
         super(120, 4, 120);
@@ -50,7 +84,8 @@ public class ThumbLoader extends PhotoLoader {
      *
      * @param width          缩略图宽度
      * @param height         缩略图高度
-     * @param maxThumbCount  缓存的最大缩略图数量
+     * @param maxThumbCount  缓存的最大缩略图数量, 缩略图同时计入所有加载器共享的
+     *                       {@link io.loraine.photohub.photo.cache.MemoryBudget}
      * @param maxThreadCount 最大加载线程数
      * @param expireTime     缓存过期时间（秒）
      */
@@ -61,6 +96,11 @@ public class ThumbLoader extends PhotoLoader {
         this.height = height;
     }
 
+    @Override
+    protected String getCacheVariant() {
+        return "thumb " + width + "x" + height;
+    }
+
     @Override
     protected Image render(Photo photo) throws IOException {
         if (photo == null) {
@@ -73,69 +113,317 @@ public class ThumbLoader extends PhotoLoader {
             h = height;
         }
 
-        try (var in = javax.imageio.ImageIO.createImageInputStream(photo.getPath().toFile())) {
-            var readers = javax.imageio.ImageIO.getImageReaders(in);
-            if (!readers.hasNext()) {
-                throw new IOException("Failed to decode: " + photo.getPath());
+        // 先查目录的包文件, 命中时画布像素可以直接使用, 无需打开任何 PNG
+        ThumbPack pack = null;
+        BasicFileAttributes attributes = null;
+        String name = photo.getPath().getFileName().toString();
+        if (photo.getPageIndex() == 0 && ThumbPack.isEnabled()) {
+            attributes = Files.readAttributes(photo.getPath(), BasicFileAttributes.class);
+            pack = getPack(photo.getParent(), w, h);
+
+            BufferedImage thumb = new BufferedImage(w, h, TYPE_INT_ARGB_PRE);
+            if (pack.get(name, attributes, ((DataBufferInt) thumb.getRaster().getDataBuffer()).getData())) {
+                return toThumbImage(photo, thumb);
             }
+        }
 
-            var reader = readers.next();
+        BufferedImage thumb = renderCanvas(photo, w, h, attributes);
+        if (pack != null) {
+            pack.put(name, attributes, ((DataBufferInt) thumb.getRaster().getDataBuffer()).getData());
+
+            // A pack replaced meanwhile is no longer flushed by anyone else
+            if (pack.isFlushDue() || packs.get(photo.getParent()) != pack) {
+                flushLater(pack);
+            }
+        }
+
+        return toThumbImage(photo, thumb);
+    }
+
+    /**
+     * 生成 {@code w x h} 的缩略图画布, 依次尝试磁盘上的缩略图、文件内嵌的缩略图和解码原图
+     *
+     * @param attributes 读取之前取得的文件属性, 为 {@code null} 时在需要写入磁盘缩略图时读取
+     */
+    private BufferedImage renderCanvas(Photo photo, int w, int h, BasicFileAttributes attributes) throws IOException {
+        // 磁盘上的缩略图只对应文件的第一页, 其他程序生成的也可以直接使用
+        ThumbnailStore.Flavor flavor = ThumbnailStore.Flavor.of(Math.max(w, h));
+        boolean useStore = flavor != null && photo.getPageIndex() == 0 && ThumbnailStore.isEnabled();
+        if (useStore) {
+            // 在解码前读取, 解码期间保存的文件不会被标记为旧像素对应的版本
+            if (attributes == null) {
+                attributes = Files.readAttributes(photo.getPath(), BasicFileAttributes.class);
+            }
+
+            BufferedImage stored = ThumbnailStore.getDefault().read(photo.getPath(), flavor);
+            if (stored != null) {
+                return compose(stored, stored.getWidth(), stored.getHeight(), w, h);
+            }
+        }
+
+        try (var in = ImageStreams.open(photo.getPath())) {
+            javax.imageio.ImageReader reader;
             try {
-                reader.setInput(in);
+                reader = ReaderPool.acquire(in, photo.detectFormat(in));
+            } catch (IOException e) {
+                throw new IOException("Failed to decode: " + photo.getPath(), e);
+            }
 
-                int srcW = reader.getWidth(0);
-                int srcH = reader.getHeight(0);
+            try {
+                reader.setInput(in, false, false); // Not forward only, a TIFF probes its IFD 1 before reading page 0
+                CancelToken.watch(reader);
+
+                int page = photo.getPageIndex();
+                int srcW = reader.getWidth(page);
+                int srcH = reader.getHeight(page);
 
                 double ratio = Math.min((double) w / srcW, (double) h / srcH);
                 int thumbW = Math.max(1, (int) (srcW * ratio));
                 int thumbH = Math.max(1, (int) (srcH * ratio));
 
-                // subsampling
-                int xSub = Math.max(1, srcW / thumbW);
-                int ySub = Math.max(1, srcH / thumbH);
-
-                javax.imageio.ImageReadParam param = reader.getDefaultReadParam();
-                param.setSourceSubsampling(xSub, ySub, 0, 0);
-
-                BufferedImage sampled = reader.read(0, param);
-
-                // 再用 Java2D 缩放到目标尺寸（如果还不够小）
-                BufferedImage thumb = new BufferedImage(w, h, TYPE_INT_ARGB);
-                java.awt.Graphics2D g2d = thumb.createGraphics();
-                g2d.setRenderingHint(java.awt.RenderingHints.KEY_INTERPOLATION,
-                        java.awt.RenderingHints.VALUE_INTERPOLATION_BILINEAR);
-                g2d.setRenderingHint(java.awt.RenderingHints.KEY_RENDERING,
-                        java.awt.RenderingHints.VALUE_RENDER_QUALITY);
-                g2d.setRenderingHint(java.awt.RenderingHints.KEY_ANTIALIASING,
-                        java.awt.RenderingHints.VALUE_ANTIALIAS_ON);
-
-                int x = (w - thumbW) / 2;
-                int y = (h - thumbH) / 2;
-                g2d.drawImage(
-                        sampled, x, y,
-                        x + thumbW, y + thumbH,
-                        0, 0,
-                        sampled.getWidth(), sampled.getHeight(),
-                        null
-                );
-                g2d.dispose();
-
-                Image result = SwingFXUtils.toFXImage(thumb, null);
-
-                if (result.isError()) {
-                    throw new IOException("Failed to load thumbnail: " + photo.getPath());
+                // 写入磁盘的缩略图可能比显示的大, 内嵌缩略图也需要满足它的尺寸
+                // 标准要求不放大原图, 小于该尺寸的图片按原尺寸写入
+                int storeW = 0;
+                int storeH = 0;
+                if (useStore) {
+                    double fit = Math.min(1.0, (double) flavor.getSize() / Math.max(srcW, srcH));
+                    storeW = Math.max(1, (int) Math.round(srcW * fit));
+                    storeH = Math.max(1, (int) Math.round(srcH * fit));
+                }
+                int neededW = Math.max(thumbW, storeW);
+                int neededH = Math.max(thumbH, storeH);
+
+                // 优先使用文件内嵌的缩略图，避免对整个文件做熵解码
+                BufferedImage sampled = readEmbeddedThumbnail(reader, page, srcW, srcH, neededW, neededH);
+
+                if (sampled == null) {
+                    // subsampling，保留目标尺寸数倍的像素供后面的面积平均使用，避免跳采样产生的锯齿与摩尔纹
+                    int xSub = Math.max(1, srcW / (neededW * OVERSAMPLING));
+                    int ySub = Math.max(1, srcH / (neededH * OVERSAMPLING));
+
+                    javax.imageio.ImageReadParam param = reader.getDefaultReadParam();
+                    param.setSourceSubsampling(xSub, ySub, 0, 0);
+
+                    sampled = reader.read(page, param);
+                    CancelToken.throwIfCancelled();
+                } else if (DEBUG) {
+                    Logger.log("Embedded thumbnail used: " + photo.getName());
                 }
 
+                if (useStore && sampled.getWidth() >= storeW && sampled.getHeight() >= storeH) {
+                    int[] stored = Resampler.resize(sampled, storeW, storeH);
+                    ThumbnailStore.getDefault().write(photo.getPath(), attributes, flavor, stored, storeW, storeH, srcW, srcH);
+                }
 
-                return result;
+                return compose(sampled, srcW, srcH, w, h);
             } catch (IOException e) {
                 throw new IOException("Failed to load thumbnail: " + photo.getPath(), e);
             } finally {
-                reader.dispose();
+                ReaderPool.release(reader);
             }
         }
     }
 
+    /**
+     * 用 Resampler 把 {@code sampled} 缩放到适合 {@code w x h} 的尺寸（逐级减半 + Lanczos），
+     * 结果为预乘 ARGB，直接写入透明画布的居中位置，转换为 JavaFX 图片时无需再逐像素预乘
+     *
+     * @param srcW 原图宽度, 只用于计算宽高比
+     * @param srcH 原图高度, 只用于计算宽高比
+     */
+    private static BufferedImage compose(BufferedImage sampled, int srcW, int srcH, int w, int h) {
+        double ratio = Math.min((double) w / srcW, (double) h / srcH);
+        int thumbW = Math.max(1, (int) (srcW * ratio));
+        int thumbH = Math.max(1, (int) (srcH * ratio));
+
+        BufferedImage thumb = new BufferedImage(w, h, TYPE_INT_ARGB_PRE);
+        int[] canvas = ((DataBufferInt) thumb.getRaster().getDataBuffer()).getData();
+
+        int x = (w - thumbW) / 2;
+        int y = (h - thumbH) / 2;
+        Resampler.resize(sampled, thumbW, thumbH, canvas, y * w + x, w);
+
+        return thumb;
+    }
+
+    private Image toThumbImage(Photo photo, BufferedImage thumb) throws IOException {
+        Image result = toImage(thumb);
+
+        if (result.isError()) {
+            throw new IOException("Failed to load thumbnail: " + photo.getPath());
+        }
+
+        return result;
+    }
+
+    /**
+     * 获取目录的包文件, 打开新目录时把其他目录新生成的缩略图写入它们的包文件
+     */
+    private ThumbPack getPack(Path directory, int w, int h) {
+        ThumbPack pack = packs.get(directory);
+        if (pack != null && pack.getWidth() == w && pack.getHeight() == h) {
+            return pack;
+        }
+
+        synchronized (packs) {
+            pack = packs.get(directory);
+            if (pack == null || pack.getWidth() != w || pack.getHeight() != h) {
+                // The file manager has moved to another directory, or the size has changed
+                for (ThumbPack old : packs.values()) {
+                    flushLater(old);
+                    unwatch(old.getDirectory());
+                }
+                packs.clear();
+
+                pack = ThumbPack.open(ThumbPack.getDefaultRoot(), directory, w, h);
+                packs.put(directory, pack);
+                watch(directory);
+            }
+        }
+
+        return pack;
+    }
+
+    /**
+     * 在后台写入包文件, 已在队列中的包不会重复写入
+     */
+    private static void flushLater(ThumbPack pack) {
+        if (!pack.hasPending() || !queuedPacks.add(pack)) {
+            return;
+        }
+
+        packWriter.execute(() -> {
+            queuedPacks.remove(pack); // Thumbnails put from now on queue it again
+            flushQuietly(pack);
+        });
+    }
+
+    private static void flushQuietly(ThumbPack pack) {
+        try {
+            pack.flush();
+        } catch (IOException e) {
+            if (DEBUG) Logger.logErr("Failed to write the thumbnail pack of: " + pack.getDirectory(), e);
+        }
+    }
+
+    @Override
+    public void close() {
+        super.close();
+
+        synchronized (packs) {
+            packs.values().forEach(ThumbLoader::flushLater);
+            packs.clear();
+        }
+    }
+
+    /**
+     * 读取文件内嵌的、不小于 {@code thumbW x thumbH} 且宽高比与原图一致的缩略图。
+     * <p>
+     * JPEG 的 EXIF IFD1 / JFIF / JFXX 缩略图由 TwelveMonkeys 的 metadata 模块解析，
+     * 通过标准的 {@code ImageReader} 缩略图接口读取；TIFF 则在第一页上尝试使用第二个 IFD，
+     * 但只有其 NewSubfileType 标记为缩小版图像时才使用，多页 TIFF 的第二个 IFD 是下一页。
+     *
+     * @return 满足要求的最小缩略图，没有时返回 {@code null}
+     */
+    private static BufferedImage readEmbeddedThumbnail(javax.imageio.ImageReader reader, int page,
+                                                       int srcW, int srcH,
+                                                       int thumbW, int thumbH) throws IOException {
+        int best = -1;
+        long bestPixels = Long.MAX_VALUE;
+
+        if (reader.readerSupportsThumbnails()) {
+            int count = reader.getNumThumbnails(page);
+            for (int i = 0; i < count; i++) {
+                int tw = reader.getThumbnailWidth(page, i);
+                int th = reader.getThumbnailHeight(page, i);
+
+                if (isUsableThumbnail(tw, th, srcW, srcH, thumbW, thumbH) && (long) tw * th < bestPixels) {
+                    best = i;
+                    bestPixels = (long) tw * th;
+                }
+            }
+        }
+
+        if (best >= 0) {
+            return reader.readThumbnail(page, best);
+        }
+
+        if (page == 0 && reader.getFormatName().equalsIgnoreCase("tiff")) {
+            try {
+                // Only the IFD is parsed here, the pixels are not decoded
+                int tw = reader.getWidth(1);
+                int th = reader.getHeight(1);
+
+                if ((long) tw * th < (long) srcW * srcH && isUsableThumbnail(tw, th, srcW, srcH, thumbW, thumbH)
+                        && isReducedResolution(reader, 1)) {
+                    javax.imageio.ImageReadParam param = reader.getDefaultReadParam();
+                    int sub = Math.max(1, Math.min(tw / thumbW, th / thumbH));
+                    param.setSourceSubsampling(sub, sub, 0, 0);
+                    return reader.read(1, param);
+                }
+            } catch (IndexOutOfBoundsException e) {
+                // Single image TIFF
+            }
+        }
+
+        return null;
+    }
+
+    /**
+     * 读取 TIFF 的 IFD 中的 NewSubfileType (254)，bit 0 表示该图像是另一图像的缩小版
+     */
+    private static boolean isReducedResolution(javax.imageio.ImageReader reader, int imageIndex) throws IOException {
+        IIOMetadata metadata = reader.getImageMetadata(imageIndex);
+        if (metadata == null || metadata.getNativeMetadataFormatName() == null) {
+            return false;
+        }
+
+        Node field = findField(metadata.getAsTree(metadata.getNativeMetadataFormatName()), "254");
+        if (field == null) {
+            return false; // Defaults to 0, a full resolution image
+        }
+
+        // TIFFField > TIFFLongs > TIFFLong value="..."
+        for (Node values = field.getFirstChild(); values != null; values = values.getNextSibling()) {
+            Node value = values.getFirstChild();
+            if (value instanceof IIOMetadataNode node && node.hasAttribute("value")) {
+                try {
+                    return (Long.parseLong(node.getAttribute("value").trim()) & 1) != 0;
+                } catch (NumberFormatException e) {
+                    return false;
+                }
+            }
+        }
+
+        return false;
+    }
+
+    private static Node findField(Node node, String number) {
+        if (node instanceof IIOMetadataNode element
+                && "TIFFField".equals(element.getNodeName()) && number.equals(element.getAttribute("number"))) {
+            return node;
+        }
+
+        for (Node child = node.getFirstChild(); child != null; child = child.getNextSibling()) {
+            Node found = findField(child, number);
+            if (found != null) {
+                return found;
+            }
+        }
+
+        return null;
+    }
+
+    private static boolean isUsableThumbnail(int tw, int th, int srcW, int srcH, int thumbW, int thumbH) {
+        if (tw < thumbW || th < thumbH || tw <= 0 || th <= 0) {
+            return false;
+        }
+
+        // Padded thumbnails (e.g. 160x120 for a 3:2 photo) would show black bars
+        double srcAspect = (double) srcW / srcH;
+        return Math.abs((double) tw / th - srcAspect) < 0.02 * srcAspect;
+    }
+
     public void setWidth(int width) {
         if (width <= 0) {
             throw new IllegalArgumentException("Width must be positive");
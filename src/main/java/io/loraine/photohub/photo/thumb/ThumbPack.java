@@ -0,0 +1,551 @@
+/**
+ * Photohub ---- To View Some S3xy Photos
+ * Copyright (C) 2025 Loraine K. Cheung
+ * <p>
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * <p>
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * <p>
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package io.loraine.photohub.photo.thumb;
+
+import io.loraine.photohub.util.Logger;
+
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 一个目录的所有缩略图打包成的单个文件, 打开大目录时只需一次 mmap,
+ * 无需为每张缩略图打开、读取、关闭一个 PNG 文件。
+ * <p>
+ * 文件开头是索引, 每项记录文件名、修改时间、大小以及像素数据的位置,
+ * 其后是按顺序拼接的缩略图像素, 即已经居中放在 {@code width x height}
+ * 画布上的预乘 ARGB, 命中时无需再缩放。只存放画布上不透明内容所在的矩形,
+ * 去掉了上下或左右的透明边, 全不透明时每像素只存 RGB 三个字节, 读取时只是
+ * 简单的拷贝, 而不需要解压。所有数值均为小端序。
+ * <p>
+ * 新生成的缩略图先留在内存中, 调用 {@link #flush()} 时与仍然有效的旧数据
+ * 一起写入下一代的新文件, 文件名中的代数最大者即为当前的包文件。旧文件不会被
+ * 覆盖, 其他读者仍可使用它的映射; 在 Windows 上仍被映射的文件无法删除或替换,
+ * 旧的几代在之后的写入或打开时再删除。
+ * 内存中的缩略图达到 {@link #isFlushDue()} 的数量或字节数时应当在后台写入,
+ * 超过上限后新的缩略图不再放入, 直到写入完成。
+ * <p>
+ * 包文件默认存放在 {@code $XDG_CACHE_HOME/photohub/thumbs} 下, 可以用
+ * {@code -Dphotohub.thumbPackDir} 指定其他目录, 或用
+ * {@code -Dphotohub.thumbPack=false} 关闭。
+ */
+public class ThumbPack {
+    private static final int MAGIC = 0x50545048; // "HPTP" in little endian
+    private static final int VERSION = 1;
+
+    private static final int HEADER_BYTES = 5 * Integer.BYTES;
+    private static final int ENTRY_BYTES = Short.BYTES + 3 * Long.BYTES + Integer.BYTES + 1; // Without the name
+    private static final int RECT_BYTES = 4 * Short.BYTES;
+
+    private static final int FLUSH_COUNT = 256;
+    private static final long FLUSH_BYTES = 8L * 1024 * 1024;
+    private static final long MAX_PENDING_BYTES = 32L * 1024 * 1024; // Put is skipped above it
+
+    private static final boolean DEBUG = false;
+
+    private static volatile boolean enabled =
+            Boolean.parseBoolean(System.getProperty("photohub.thumbPack", "true"));
+
+    private final Path directory;
+    private final Path root;
+    private final String prefix; // File names are <prefix>.<generation>.pack
+    private final int width;
+    private final int height;
+
+    private volatile Mapping mapping;
+    private volatile Path file; // The generation mapped, may not exist yet
+    private long generation = 0;
+    private final Map<String, Entry> pending = new ConcurrentHashMap<>();
+    private final AtomicLong pendingBytes = new AtomicLong();
+
+    /**
+     * @param offset position of the pixels in the mapped file, unused by a pending entry
+     * @param opaque whether the pixels are stored as RGB, otherwise as ARGB
+     * @param data   pixels not written to the file yet, or {@code null}
+     */
+    private record Entry(long lastModified, long size, long offset, int length, boolean opaque, byte[] data) {
+        boolean matches(BasicFileAttributes attributes) {
+            return lastModified == attributes.lastModifiedTime().toMillis() && size == attributes.size();
+        }
+    }
+
+    /**
+     * The index and the pixels of the file, replaced as a whole after a flush
+     */
+    private record Mapping(Map<String, Entry> entries, ByteBuffer buffer) {
+        static final Mapping EMPTY = new Mapping(Map.of(), ByteBuffer.allocate(0));
+    }
+
+    private ThumbPack(Path directory, Path root, String prefix, int width, int height) {
+        this.directory = directory;
+        this.root = root;
+        this.prefix = prefix;
+        this.width = width;
+        this.height = height;
+    }
+
+    /**
+     * 打开一个目录在某个缩略图尺寸下的包文件, 文件不存在或已损坏时得到一个空包。
+     *
+     * @param root      包文件所在的目录
+     * @param directory 图片所在的目录
+     * @param width     缩略图宽度
+     * @param height    缩略图高度
+     */
+    public static ThumbPack open(Path root, Path directory, int width, int height) {
+        if (width <= 0 || height <= 0) {
+            throw new IllegalArgumentException("Invalid size: " + width + "x" + height);
+        }
+
+        directory = directory.normalize().toAbsolutePath();
+        String prefix = ThumbnailStore.toFileName(ThumbnailStore.toUri(directory)).replace(".png", "")
+                + "-" + width + "x" + height;
+
+        ThumbPack pack = new ThumbPack(directory, root.normalize().toAbsolutePath(), prefix, width, height);
+        synchronized (pack) {
+            Map<Long, Path> generations = pack.listGenerations();
+            pack.generation = generations.keySet().stream().max(Long::compare).orElse(0L);
+            pack.file = generations.getOrDefault(pack.generation, pack.getGenerationFile(pack.generation));
+            pack.mapping = pack.map();
+            pack.deleteStale(generations);
+        }
+        return pack;
+    }
+
+    /**
+     * @return {@code $XDG_CACHE_HOME/photohub/thumbs}, or the {@code -Dphotohub.thumbPackDir}
+     */
+    public static Path getDefaultRoot() {
+        String dir = System.getProperty("photohub.thumbPackDir");
+        if (dir != null && !dir.isBlank()) {
+            return Path.of(dir);
+        }
+
+        return ThumbnailStore.getCacheHome().resolve("photohub").resolve("thumbs");
+    }
+
+    public static boolean isEnabled() {
+        return enabled;
+    }
+
+    public static void setEnabled(boolean value) {
+        enabled = value;
+    }
+
+    /**
+     * 读取一张图片的缩略图。
+     *
+     * @param name       图片的文件名
+     * @param attributes 图片当前的属性, 修改时间与大小不一致的缩略图视为过期
+     * @param dst        预乘 ARGB 的画布像素, 至少 {@code width * height} 个
+     * @return 是否命中
+     */
+    public boolean get(String name, BasicFileAttributes attributes, int[] dst) {
+        Entry entry = pending.get(name);
+        ByteBuffer source;
+        if (entry != null) {
+            source = ByteBuffer.wrap(entry.data());
+        } else {
+            Mapping current = mapping;
+            entry = current.entries().get(name);
+            if (entry == null) {
+                return false;
+            }
+            source = current.buffer().slice((int) entry.offset(), entry.length());
+        }
+
+        if (!entry.matches(attributes)) {
+            return false;
+        }
+
+        return decode(source.order(ByteOrder.LITTLE_ENDIAN), entry.opaque(), dst);
+    }
+
+    /**
+     * 放入一张新生成的缩略图, 调用 {@link #flush()} 后才会写入文件。
+     * 内存中未写入的缩略图超过上限时不会放入, 下次打开目录时重新生成。
+     *
+     * @param name       图片的文件名
+     * @param attributes 生成缩略图前读取的图片属性
+     * @param argbPre    预乘 ARGB 的画布像素
+     */
+    public void put(String name, BasicFileAttributes attributes, int[] argbPre) {
+        if (pendingBytes.get() >= MAX_PENDING_BYTES) {
+            if (DEBUG) Logger.log("Thumbnail pack full, skipped: " + name);
+            return;
+        }
+
+        Entry entry = encode(argbPre, attributes);
+        Entry old = pending.put(name, entry);
+        pendingBytes.addAndGet(entry.length() - (old == null ? 0 : old.length()));
+    }
+
+    public boolean hasPending() {
+        return !pending.isEmpty();
+    }
+
+    /**
+     * @return 内存中的缩略图是否已经多到应当写入文件
+     */
+    public boolean isFlushDue() {
+        return pending.size() >= FLUSH_COUNT || pendingBytes.get() >= FLUSH_BYTES;
+    }
+
+    /**
+     * 把新生成的缩略图与旧文件中仍然有效的缩略图一起写入新的包文件。
+     * 已删除或已修改的图片的缩略图会被丢弃。
+     *
+     * @throws IOException 写入失败时, 新的缩略图仍然留在内存中
+     */
+    public synchronized void flush() throws IOException {
+        if (pending.isEmpty()) {
+            return;
+        }
+
+        Mapping current = mapping;
+        Map<String, Entry> flushed = new HashMap<>(pending);
+
+        Map<String, Entry> merged = new LinkedHashMap<>();
+        for (Map.Entry<String, Entry> old : current.entries().entrySet()) {
+            if (flushed.containsKey(old.getKey())) {
+                continue;
+            }
+
+            try {
+                BasicFileAttributes attributes = Files.readAttributes(directory.resolve(old.getKey()), BasicFileAttributes.class);
+                if (old.getValue().matches(attributes)) {
+                    merged.put(old.getKey(), old.getValue());
+                }
+            } catch (NoSuchFileException e) {
+                // Deleted, its thumbnail goes away with the rewrite
+            }
+        }
+        merged.putAll(flushed);
+
+        ThumbnailStore.createPrivateDirectories(root);
+
+        // A new name, the mapped file can't be replaced on Windows; another process may have written one too
+        Map<Long, Path> generations = listGenerations();
+        long next = Math.max(generation, generations.keySet().stream().max(Long::compare).orElse(0L)) + 1;
+        Path target = getGenerationFile(next);
+
+        Path tmp = Files.createTempFile(root, prefix, ".tmp");
+        try {
+            write(tmp, merged, current.buffer());
+
+            try {
+                Files.move(tmp, target, StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(tmp, target);
+            }
+        } catch (IOException e) {
+            Files.deleteIfExists(tmp);
+            throw e;
+        }
+
+        generation = next;
+        file = target;
+        mapping = map();
+        deleteStale(generations);
+
+        // Those replaced during the write stay pending
+        flushed.forEach((name, entry) -> {
+            if (pending.remove(name, entry)) {
+                pendingBytes.addAndGet(-entry.length());
+            }
+        });
+
+        if (DEBUG) Logger.log("Thumbnail pack written: %d thumbnails of %s", merged.size(), directory);
+    }
+
+    public Path getDirectory() {
+        return directory;
+    }
+
+    /**
+     * @return the file of the current generation, which may not exist yet
+     */
+    public Path getFile() {
+        return file;
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    /**
+     * @return the number of thumbnails in the file and in memory, those in both counted twice
+     */
+    public int size() {
+        return mapping.entries().size() + pending.size();
+    }
+
+    private void write(Path target, Map<String, Entry> entries, ByteBuffer oldPixels) throws IOException {
+        List<byte[]> names = new ArrayList<>(entries.size());
+        long indexBytes = HEADER_BYTES;
+        for (String name : entries.keySet()) {
+            byte[] bytes = name.getBytes(StandardCharsets.UTF_8);
+            names.add(bytes);
+            indexBytes += ENTRY_BYTES + bytes.length;
+        }
+
+        if (indexBytes > Integer.MAX_VALUE) {
+            throw new IOException("Too many thumbnails for one pack: " + entries.size());
+        }
+
+        ByteBuffer index = ByteBuffer.allocate((int) indexBytes).order(ByteOrder.LITTLE_ENDIAN);
+        index.putInt(MAGIC).putInt(VERSION).putInt(width).putInt(height).putInt(entries.size());
+
+        long offset = indexBytes;
+        int i = 0;
+        for (Entry entry : entries.values()) {
+            byte[] name = names.get(i++);
+            index.putShort((short) name.length).put(name)
+                    .putLong(entry.lastModified()).putLong(entry.size())
+                    .putLong(offset).putInt(entry.length())
+                    .put((byte) (entry.opaque() ? 1 : 0));
+            offset += entry.length();
+        }
+
+        if (offset > Integer.MAX_VALUE) {
+            throw new IOException("Thumbnail pack too large to map: " + offset);
+        }
+
+        try (FileChannel channel = FileChannel.open(target, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            writeFully(channel, index.flip());
+            for (Entry entry : entries.values()) {
+                ByteBuffer pixels = entry.data() != null
+                        ? ByteBuffer.wrap(entry.data())
+                        : oldPixels.slice((int) entry.offset(), entry.length());
+                writeFully(channel, pixels);
+            }
+        }
+    }
+
+    /**
+     * Keep only the rectangle around the visible pixels, as RGB if it is opaque.
+     *
+     * @return a pending entry of the rectangle and its pixels
+     */
+    private Entry encode(int[] argbPre, BasicFileAttributes attributes) {
+        int left = width, top = height, right = -1, bottom = -1;
+        boolean opaque = true;
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                int alpha = argbPre[y * width + x] >>> 24;
+                if (alpha != 0) {
+                    left = Math.min(left, x);
+                    right = Math.max(right, x);
+                    top = Math.min(top, y);
+                    bottom = Math.max(bottom, y);
+                }
+            }
+        }
+
+        if (right < 0) {
+            left = top = 0;
+            right = bottom = -1; // Fully transparent, an empty rectangle
+        }
+
+        int rectW = right - left + 1;
+        int rectH = bottom - top + 1;
+        for (int y = top; y <= bottom && opaque; y++) {
+            for (int x = left; x <= right && opaque; x++) {
+                opaque = argbPre[y * width + x] >>> 24 == 0xFF;
+            }
+        }
+
+        int pixelBytes = opaque ? 3 : Integer.BYTES;
+        ByteBuffer data = ByteBuffer.allocate(RECT_BYTES + rectW * rectH * pixelBytes).order(ByteOrder.LITTLE_ENDIAN);
+        data.putShort((short) left).putShort((short) top).putShort((short) rectW).putShort((short) rectH);
+
+        for (int y = top; y <= bottom; y++) {
+            for (int x = left; x <= right; x++) {
+                int argb = argbPre[y * width + x];
+                if (opaque) {
+                    data.put((byte) (argb >> 16)).put((byte) (argb >> 8)).put((byte) argb);
+                } else {
+                    data.putInt(argb);
+                }
+            }
+        }
+
+        return new Entry(attributes.lastModifiedTime().toMillis(), attributes.size(),
+                0, data.capacity(), opaque, data.array());
+    }
+
+    private boolean decode(ByteBuffer source, boolean opaque, int[] dst) {
+        int left = Short.toUnsignedInt(source.getShort());
+        int top = Short.toUnsignedInt(source.getShort());
+        int rectW = Short.toUnsignedInt(source.getShort());
+        int rectH = Short.toUnsignedInt(source.getShort());
+
+        int pixelBytes = opaque ? 3 : Integer.BYTES;
+        if (left + rectW > width || top + rectH > height || source.remaining() != rectW * rectH * pixelBytes) {
+            return false;
+        }
+
+        Arrays.fill(dst, 0, width * height, 0); // The margins are transparent
+
+        if (!opaque) {
+            IntBuffer pixels = source.asIntBuffer();
+            for (int y = 0; y < rectH; y++) {
+                pixels.get(dst, (top + y) * width + left, rectW);
+            }
+            return true;
+        }
+
+        byte[] row = new byte[rectW * 3];
+        for (int y = 0; y < rectH; y++) {
+            source.get(row);
+            int offset = (top + y) * width + left;
+            for (int x = 0, i = 0; x < rectW; x++, i += 3) {
+                dst[offset + x] = 0xFF000000 | (row[i] & 0xFF) << 16 | (row[i + 1] & 0xFF) << 8 | row[i + 2] & 0xFF;
+            }
+        }
+        return true;
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+
+    /**
+     * Map the whole file and parse its index, the pixels are only read on a hit.
+     */
+    private Path getGenerationFile(long generation) {
+        return root.resolve(prefix + "." + generation + ".pack");
+    }
+
+    /**
+     * @return the files of all generations on disk, keyed by the generation
+     */
+    private Map<Long, Path> listGenerations() {
+        Map<Long, Path> generations = new HashMap<>();
+        if (!Files.isDirectory(root)) {
+            return generations;
+        }
+
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(root, prefix + ".*.pack")) {
+            for (Path path : files) {
+                String name = path.getFileName().toString();
+                try {
+                    generations.put(Long.parseLong(name.substring(prefix.length() + 1, name.length() - ".pack".length())), path);
+                } catch (NumberFormatException e) {
+                    // Not a generation of this pack
+                }
+            }
+        } catch (IOException e) {
+            if (DEBUG) Logger.logErr("Failed to list the thumbnail packs in: " + root, e);
+        }
+
+        return generations;
+    }
+
+    /**
+     * Delete the generations older than the mapped one, those still mapped
+     * here or by another process on Windows are left to the next try.
+     */
+    private void deleteStale(Map<Long, Path> generations) {
+        generations.forEach((gen, path) -> {
+            if (gen < generation) {
+                try {
+                    Files.deleteIfExists(path);
+                } catch (IOException e) {
+                    if (DEBUG) Logger.logErr("Stale thumbnail pack in use: " + path, e);
+                }
+            }
+        });
+    }
+
+    private Mapping map() {
+        if (!Files.isRegularFile(file)) {
+            return Mapping.EMPTY;
+        }
+
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            long length = channel.size();
+            if (length > Integer.MAX_VALUE || length < HEADER_BYTES) {
+                return Mapping.EMPTY;
+            }
+
+            // The mapping stays valid after the channel is closed, and after the file is deleted
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, length);
+            buffer.order(ByteOrder.LITTLE_ENDIAN);
+
+            if (buffer.getInt() != MAGIC || buffer.getInt() != VERSION
+                    || buffer.getInt() != width || buffer.getInt() != height) {
+                return Mapping.EMPTY;
+            }
+
+            int count = buffer.getInt();
+            Map<String, Entry> entries = new HashMap<>(Math.max(16, count * 4 / 3 + 1));
+            byte[] name = new byte[Short.MAX_VALUE * 2 + 1];
+            for (int i = 0; i < count; i++) {
+                int nameLength = Short.toUnsignedInt(buffer.getShort());
+                buffer.get(name, 0, nameLength);
+
+                long lastModified = buffer.getLong();
+                long size = buffer.getLong();
+                long offset = buffer.getLong();
+                int dataLength = buffer.getInt();
+                boolean opaque = buffer.get() != 0;
+
+                if (offset < 0 || dataLength < 0 || offset + dataLength > length) {
+                    return Mapping.EMPTY;
+                }
+
+                entries.put(new String(name, 0, nameLength, StandardCharsets.UTF_8),
+                        new Entry(lastModified, size, offset, dataLength, opaque, null));
+            }
+
+            return new Mapping(entries, buffer.clear());
+        } catch (IOException | BufferUnderflowException e) {
+            if (DEBUG) Logger.logErr("Failed to map the thumbnail pack: " + file, e);
+            return Mapping.EMPTY;
+        }
+    }
+}
@@ -0,0 +1,457 @@
+/**
+ * Photohub ---- To View Some S3xy Photos
+ * Copyright (C) 2025 Loraine K. Cheung
+ * <p>
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * <p>
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * <p>
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package io.loraine.photohub.photo.thumb;
+
+import io.loraine.photohub.util.Logger;
+
+import org.w3c.dom.Node;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReader;
+import javax.imageio.ImageTypeSpecifier;
+import javax.imageio.ImageWriter;
+import javax.imageio.metadata.IIOInvalidTreeException;
+import javax.imageio.metadata.IIOMetadata;
+import javax.imageio.metadata.IIOMetadataNode;
+import javax.imageio.stream.ImageInputStream;
+import javax.imageio.stream.ImageOutputStream;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.HexFormat;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import static java.awt.image.BufferedImage.TYPE_INT_ARGB_PRE;
+import static java.awt.image.BufferedImage.TYPE_INT_RGB;
+
+/**
+ * 磁盘上的缩略图缓存, 遵循 freedesktop.org 的 Thumbnail Managing Standard,
+ * 与 GNOME、KDE 等桌面的文件管理器共用同一份缩略图。
+ * <p>
+ * 缩略图存放在 {@code $XDG_CACHE_HOME/thumbnails} (默认 {@code ~/.cache/thumbnails})
+ * 下按尺寸划分的目录中, 文件名为原图 URI 的 MD5, 格式为 PNG。PNG 的文本块
+ * {@code Thumb::URI} 与 {@code Thumb::MTime} 记录了原图的 URI 与修改时间, 与原图
+ * 不一致的缩略图视为过期。
+ * <p>
+ * 可以用 {@code -Dphotohub.thumbnailDir} 指定其他目录, 或用
+ * {@code -Dphotohub.thumbnailStore=false} 关闭, 也可在运行时调用
+ * {@link #setEnabled(boolean)}。
+ */
+public class ThumbnailStore {
+    /**
+     * The sizes of the standard, a thumbnail fits in a square of the size
+     */
+    public enum Flavor {
+        NORMAL("normal", 128),
+        LARGE("large", 256),
+        X_LARGE("x-large", 512),
+        XX_LARGE("xx-large", 1024);
+
+        private final String dirName;
+        private final int size;
+
+        Flavor(String dirName, int size) {
+            this.dirName = dirName;
+            this.size = size;
+        }
+
+        public String getDirName() {
+            return dirName;
+        }
+
+        public int getSize() {
+            return size;
+        }
+
+        /**
+         * @return the smallest flavor not smaller than {@code size}, or {@code null} if none is large enough
+         */
+        public static Flavor of(int size) {
+            for (Flavor flavor : values()) {
+                if (flavor.size >= size) {
+                    return flavor;
+                }
+            }
+            return null;
+        }
+    }
+
+    private static final String PNG_FORMAT = "javax_imageio_png_1.0";
+
+    private static final String KEY_URI = "Thumb::URI";
+    private static final String KEY_MTIME = "Thumb::MTime";
+    private static final String KEY_SIZE = "Thumb::Size";
+    private static final String KEY_WIDTH = "Thumb::Image::Width";
+    private static final String KEY_HEIGHT = "Thumb::Image::Height";
+    private static final String KEY_SOFTWARE = "Software";
+
+    private static final String SOFTWARE = "PhotoHub";
+
+    private static final boolean DEBUG = false;
+
+    private static volatile boolean enabled =
+            Boolean.parseBoolean(System.getProperty("photohub.thumbnailStore", "true"));
+
+    private static volatile ThumbnailStore instance;
+
+    private static final Object instanceGetterLock = new Object();
+
+    private final Path root;
+
+    /**
+     * @param root the thumbnail directory, which holds the directories of the flavors
+     */
+    public ThumbnailStore(Path root) {
+        if (root == null) {
+            throw new NullPointerException("Root cannot be null.");
+        }
+
+        this.root = root.normalize().toAbsolutePath();
+    }
+
+    /**
+     * @return the store of the user's thumbnail directory
+     */
+    public static ThumbnailStore getDefault() {
+        if (instance == null) {
+            synchronized (instanceGetterLock) {
+                if (instance == null) {
+                    instance = new ThumbnailStore(getDefaultRoot());
+                    if (DEBUG) Logger.log("Thumbnail store: " + instance.root);
+                }
+            }
+        }
+        return instance;
+    }
+
+    public static boolean isEnabled() {
+        return enabled;
+    }
+
+    public static void setEnabled(boolean value) {
+        enabled = value;
+    }
+
+    public Path getRoot() {
+        return root;
+    }
+
+    /**
+     * 读取一张图片的缩略图, 先找 {@code flavor} 的, 再找更大的。
+     *
+     * @param path   原图的路径
+     * @param flavor 需要的最小尺寸
+     * @return 与原图当前的 URI、修改时间一致的缩略图, 没有时返回 {@code null}
+     */
+    public BufferedImage read(Path path, Flavor flavor) {
+        try {
+            path = path.normalize().toAbsolutePath();
+            String uri = toUri(path);
+            String name = toFileName(uri);
+            BasicFileAttributes attributes = Files.readAttributes(path, BasicFileAttributes.class);
+
+            for (Flavor f : Flavor.values()) {
+                if (f.size < flavor.size) {
+                    continue;
+                }
+
+                Path file = root.resolve(f.dirName).resolve(name);
+                if (!Files.isRegularFile(file)) {
+                    continue;
+                }
+
+                BufferedImage thumb = readValid(file, uri, attributes);
+                if (thumb != null) {
+                    if (DEBUG) Logger.log("Stored thumbnail hit: " + path.getFileName() + " in " + f.dirName);
+                    return thumb;
+                }
+            }
+        } catch (IOException e) {
+            if (DEBUG) Logger.logErr("Failed to read the stored thumbnail of: " + path, e);
+        }
+
+        return null;
+    }
+
+    /**
+     * 为一张图片写入缩略图, 已有的同名缩略图会被替换。
+     * <p>
+     * 先写入同一目录下的临时文件再重命名, 其他进程不会读到写了一半的缩略图。
+     *
+     * @param path       原图的路径
+     * @param attributes 读取原图之前取得的文件属性, 解码期间被修改的文件不会写入新的修改时间
+     * @param flavor     缩略图的尺寸
+     * @param thumb      预乘 ARGB 的缩略图像素, 逐行排列, 长边不超过 {@code flavor} 的尺寸
+     * @param width      缩略图宽度
+     * @param height     缩略图高度
+     * @param srcW       原图宽度
+     * @param srcH       原图高度
+     * @return 是否写入成功
+     */
+    public boolean write(Path path, BasicFileAttributes attributes, Flavor flavor,
+                         int[] thumb, int width, int height, int srcW, int srcH) {
+        path = path.normalize().toAbsolutePath();
+
+        // Thumbnails of thumbnails are not stored, as the standard says
+        if (path.startsWith(root)) {
+            return false;
+        }
+
+        Path tmp = null;
+        try {
+            String uri = toUri(path);
+
+            Path dir = root.resolve(flavor.dirName);
+            createPrivateDirectories(dir);
+
+            Map<String, String> texts = new HashMap<>();
+            texts.put(KEY_URI, uri);
+            texts.put(KEY_MTIME, Long.toString(attributes.lastModifiedTime().to(TimeUnit.SECONDS)));
+            texts.put(KEY_SIZE, Long.toString(attributes.size()));
+            texts.put(KEY_WIDTH, Integer.toString(srcW));
+            texts.put(KEY_HEIGHT, Integer.toString(srcH));
+            texts.put(KEY_SOFTWARE, SOFTWARE);
+
+            // A temporary file is only readable by the owner, as the standard asks
+            String name = toFileName(uri);
+            tmp = Files.createTempFile(dir, name, ".tmp");
+            try (ImageOutputStream out = ImageIO.createImageOutputStream(tmp.toFile())) {
+                writePng(out, toImage(thumb, width, height), texts);
+            }
+
+            try {
+                Files.move(tmp, dir.resolve(name), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(tmp, dir.resolve(name), StandardCopyOption.REPLACE_EXISTING);
+            }
+
+            if (DEBUG) Logger.log("Thumbnail stored: " + path.getFileName() + " in " + flavor.dirName);
+            return true;
+        } catch (IOException e) {
+            if (DEBUG) Logger.logErr("Failed to store the thumbnail of: " + path, e);
+
+            if (tmp != null) {
+                try {
+                    Files.deleteIfExists(tmp);
+                } catch (IOException ignored) {
+                }
+            }
+            return false;
+        }
+    }
+
+    /**
+     * @return the thumbnail in {@code file} if it is of the current content of
+     * the image at {@code uri}, otherwise {@code null}
+     */
+    private static BufferedImage readValid(Path file, String uri, BasicFileAttributes attributes) throws IOException {
+        try (ImageInputStream in = ImageIO.createImageInputStream(file.toFile())) {
+            ImageReader reader = getPngReader();
+            try {
+                reader.setInput(in, true, false);
+
+                Map<String, String> texts = readTexts(reader.getImageMetadata(0));
+                if (!uri.equals(texts.get(KEY_URI))) {
+                    return null;
+                }
+
+                // Seconds since the epoch, as st_mtime
+                String mtime = texts.get(KEY_MTIME);
+                if (mtime == null || !mtime.equals(Long.toString(attributes.lastModifiedTime().to(TimeUnit.SECONDS)))) {
+                    return null;
+                }
+
+                // Optional, but a file of the same time and another size has still changed
+                String size = texts.get(KEY_SIZE);
+                if (size != null && !size.equals(Long.toString(attributes.size()))) {
+                    return null;
+                }
+
+                return reader.read(0);
+            } finally {
+                reader.dispose();
+            }
+        }
+    }
+
+    private static Map<String, String> readTexts(IIOMetadata metadata) {
+        Map<String, String> texts = new HashMap<>();
+        if (metadata == null || !PNG_FORMAT.equals(metadata.getNativeMetadataFormatName())) {
+            return texts;
+        }
+
+        // Other tools may write the keys into any of the three text chunks
+        Node tree = metadata.getAsTree(PNG_FORMAT);
+        for (Node chunk = tree.getFirstChild(); chunk != null; chunk = chunk.getNextSibling()) {
+            String valueName = switch (chunk.getNodeName()) {
+                case "tEXt" -> "value";
+                case "iTXt", "zTXt" -> "text";
+                default -> null;
+            };
+
+            if (valueName == null) {
+                continue;
+            }
+
+            for (Node entry = chunk.getFirstChild(); entry != null; entry = entry.getNextSibling()) {
+                IIOMetadataNode node = (IIOMetadataNode) entry;
+                texts.put(node.getAttribute("keyword"), node.getAttribute(valueName));
+            }
+        }
+
+        return texts;
+    }
+
+    private static void writePng(ImageOutputStream out, BufferedImage image, Map<String, String> texts) throws IOException {
+        Iterator<ImageWriter> writers = ImageIO.getImageWritersByFormatName("png");
+        while (writers.hasNext()) {
+            ImageWriter writer = writers.next();
+            IIOMetadata metadata = writer.getDefaultImageMetadata(
+                    ImageTypeSpecifier.createFromRenderedImage(image), writer.getDefaultWriteParam());
+            if (metadata == null || !PNG_FORMAT.equals(metadata.getNativeMetadataFormatName())) {
+                writer.dispose();
+                continue;
+            }
+
+            try {
+                IIOMetadataNode text = new IIOMetadataNode("tEXt");
+                texts.forEach((keyword, value) -> {
+                    IIOMetadataNode entry = new IIOMetadataNode("tEXtEntry");
+                    entry.setAttribute("keyword", keyword);
+                    entry.setAttribute("value", value);
+                    text.appendChild(entry);
+                });
+
+                IIOMetadataNode tree = new IIOMetadataNode(PNG_FORMAT);
+                tree.appendChild(text);
+                metadata.mergeTree(PNG_FORMAT, tree);
+
+                writer.setOutput(out);
+                writer.write(new IIOImage(image, null, metadata));
+                return;
+            } catch (IIOInvalidTreeException e) {
+                throw new IOException("Failed to set the thumbnail keys", e);
+            } finally {
+                writer.dispose();
+            }
+        }
+
+        throw new IOException("No PNG writer with text chunks");
+    }
+
+    private static ImageReader getPngReader() throws IOException {
+        Iterator<ImageReader> readers = ImageIO.getImageReadersByFormatName("png");
+        while (readers.hasNext()) {
+            ImageReader reader = readers.next();
+            if (PNG_FORMAT.equals(reader.getOriginatingProvider().getNativeImageMetadataFormatName())) {
+                return reader;
+            }
+            reader.dispose();
+        }
+
+        throw new IOException("No PNG reader with text chunks");
+    }
+
+    /**
+     * Straight ARGB for the PNG, or plain RGB if the thumbnail is opaque, as
+     * most photos are.
+     */
+    private static BufferedImage toImage(int[] argbPre, int width, int height) {
+        boolean opaque = true;
+        for (int i = 0; i < width * height && opaque; i++) {
+            opaque = argbPre[i] >>> 24 == 0xFF;
+        }
+
+        BufferedImage image = new BufferedImage(width, height, opaque ? TYPE_INT_RGB : TYPE_INT_ARGB_PRE);
+        int[] pixels = ((DataBufferInt) image.getRaster().getDataBuffer()).getData();
+        System.arraycopy(argbPre, 0, pixels, 0, width * height);
+
+        if (!opaque) {
+            image.coerceData(false); // Divides the colors by the alpha in place
+        }
+        return image;
+    }
+
+    /**
+     * The URI of a file as the standard hashes it, e.g. {@code file:///home/user/a%20b.jpg}.
+     */
+    static String toUri(Path path) {
+        return path.toUri().toASCIIString();
+    }
+
+    /**
+     * @return the MD5 of the URI in lowercase hex, with the {@code .png} extension
+     */
+    static String toFileName(String uri) {
+        try {
+            byte[] digest = MessageDigest.getInstance("MD5").digest(uri.getBytes(StandardCharsets.UTF_8));
+            return HexFormat.of().formatHex(digest) + ".png";
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("MD5 is not available", e); // Every JDK has MD5
+        }
+    }
+
+    private static Path getDefaultRoot() {
+        String dir = System.getProperty("photohub.thumbnailDir");
+        if (dir != null && !dir.isBlank()) {
+            return Path.of(dir);
+        }
+
+        return getCacheHome().resolve("thumbnails");
+    }
+
+    /**
+     * @return {@code $XDG_CACHE_HOME}, or {@code ~/.cache} if it's not set
+     */
+    static Path getCacheHome() {
+        String cacheHome = System.getenv("XDG_CACHE_HOME");
+        if (cacheHome != null && !cacheHome.isBlank() && Path.of(cacheHome).isAbsolute()) {
+            return Path.of(cacheHome);
+        }
+
+        return Path.of(System.getProperty("user.home"), ".cache");
+    }
+
+    // The thumbnails may reveal the user's images, the directories are private as the standard asks
+    static void createPrivateDirectories(Path dir) throws IOException {
+        if (Files.isDirectory(dir)) {
+            return;
+        }
+
+        if (dir.getFileSystem().supportedFileAttributeViews().contains("posix")) {
+            Files.createDirectories(dir, PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rwx------")));
+        } else {
+            Files.createDirectories(dir);
+        }
+    }
+}
@@ -0,0 +1,91 @@
+/**
+ * Photohub ---- To View Some S3xy Photos
+ * Copyright (C) 2025 Loraine K. Cheung
+ * <p>
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * <p>
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * <p>
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package io.loraine.photohub.viewer;
+
+import io.loraine.photohub.photo.anim.GifAnimation;
+
+import javafx.animation.AnimationTimer;
+import javafx.scene.image.Image;
+
+import java.util.function.Consumer;
+
+/**
+ * 在 JavaFX 线程上按帧延迟播放 {@link GifAnimation}。
+ * <p>
+ * 每个脉冲检查当前帧是否已经到期，到期后从动画的缓冲区中取下一帧交给
+ * {@code sink}；如果解码跟不上，就保持当前帧直到下一帧解码完成。
+ */
+class GifPlayer extends AnimationTimer {
+    private final GifAnimation animation;
+    private final Consumer<Image> sink;
+
+    private long nextDue = -1; // When the shown frame expires, in nanoseconds
+    private int shownDelay;
+
+    /**
+     * @param animation 要播放的动画，其第一帧应该已经显示，由播放器负责关闭
+     * @param sink      接收每一帧图像
+     */
+    GifPlayer(GifAnimation animation, Consumer<Image> sink) {
+        this.animation = animation;
+        this.sink = sink;
+        this.shownDelay = animation.getFirstFrame().delay();
+    }
+
+    @Override
+    public void handle(long now) {
+        if (nextDue < 0) {
+            nextDue = now + shownDelay * 1_000_000L;
+            return;
+        }
+
+        if (now < nextDue) {
+            return;
+        }
+
+        GifAnimation.Frame frame = animation.poll();
+        if (frame == null) {
+            if (!animation.isAnimated()) {
+                stop(); // Only one frame, or the rest can't be decoded
+            }
+            return;
+        }
+
+        sink.accept(frame.image());
+        shownDelay = frame.delay();
+
+        // Keep the pace from the due time, unless we are already behind
+        nextDue += shownDelay * 1_000_000L;
+        if (nextDue < now) {
+            nextDue = now + shownDelay * 1_000_000L;
+        }
+    }
+
+    /**
+     * 停止播放并释放动画
+     */
+    void dispose() {
+        stop();
+        animation.close();
+    }
+
+    GifAnimation getAnimation() {
+        return animation;
+    }
+}
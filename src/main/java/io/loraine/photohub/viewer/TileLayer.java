@@ -0,0 +1,232 @@
+/**
+ * Photohub ---- To View Some S3xy Photos
+ * Copyright (C) 2025 Loraine K. Cheung
+ * <p>
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * <p>
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * <p>
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package io.loraine.photohub.viewer;
+
+import io.loraine.photohub.photo.Photo;
+import io.loraine.photohub.photo.PhotoLoader;
+import io.loraine.photohub.util.Logger;
+
+import javafx.application.Platform;
+import javafx.scene.image.Image;
+import javafx.scene.image.ImageView;
+import javafx.scene.layout.Pane;
+import javafx.scene.transform.Scale;
+import javafx.scene.transform.Translate;
+
+import java.awt.Rectangle;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * 放大查看大图时覆盖在 {@code photoView} 之上的瓦片层。
+ * <p>
+ * 只解码并显示可视区域内（外加一圈预取）的瓦片，瓦片按照缩放比例选择对应的
+ * 降采样级别，因此内存占用只与窗口大小有关，而与图片大小无关。
+ * <p>
+ * 瓦片层中的子节点使用原图像素坐标，整体通过一个平移和一个缩放变换对齐到
+ * {@code photoView} 在 {@code StackPane} 中的位置。
+ */
+class TileLayer extends Pane {
+    private final PhotoLoader loader;
+
+    private final Translate translate = new Translate();
+    private final Scale scale = new Scale();
+
+    private final Map<Long, ImageView> tiles = new HashMap<>();
+    private final Map<Long, CompletableFuture<Image>> loads = new HashMap<>(); // Tiles still decoding
+
+    private Photo photo;
+    private int level = -1;
+    private long generation = 0; // Drop the late tiles of an outdated photo or level
+
+    private static final int PREFETCH_MARGIN = 1; // Tiles around the visible area
+    private static final boolean DEBUG = false;
+
+    TileLayer(PhotoLoader loader) {
+        this.loader = loader;
+
+        setManaged(false);
+        setMouseTransparent(true);
+        getTransforms().addAll(translate, scale);
+    }
+
+    /**
+     * 显示覆盖当前可视区域的瓦片
+     *
+     * @param photo       当前照片，尺寸必须已经加载
+     * @param paneW       可视区域宽度
+     * @param paneH       可视区域高度
+     * @param viewScale   图片相对于原图的缩放比例
+     * @param offsetX     图片中心相对于可视区域中心的水平位移
+     * @param offsetY     图片中心相对于可视区域中心的垂直位移
+     * @param renderScale 窗口的输出缩放比例
+     */
+    void update(Photo photo, double paneW, double paneH,
+                double viewScale, double offsetX, double offsetY, double renderScale) {
+        if (photo == null || !photo.isDimensionsLoaded() || viewScale <= 0) {
+            clear();
+            return;
+        }
+
+        double srcW = photo.getWidth();
+        double srcH = photo.getHeight();
+
+        int newLevel = getTileLevel(viewScale * renderScale);
+        if (!photo.equals(this.photo) || newLevel != level) {
+            clear();
+            this.photo = photo;
+            this.level = newLevel;
+        }
+
+        // Top-left corner of the photo in the pane
+        double left = paneW / 2 + offsetX - srcW * viewScale / 2;
+        double top = paneH / 2 + offsetY - srcH * viewScale / 2;
+
+        translate.setX(left);
+        translate.setY(top);
+        scale.setX(viewScale);
+        scale.setY(viewScale);
+
+        // Visible area in source pixels
+        double visX0 = Math.max(0, -left / viewScale);
+        double visY0 = Math.max(0, -top / viewScale);
+        double visX1 = Math.min(srcW, (paneW - left) / viewScale);
+        double visY1 = Math.min(srcH, (paneH - top) / viewScale);
+
+        if (visX1 <= visX0 || visY1 <= visY0) {
+            clear();
+            return;
+        }
+
+        double span = (double) PhotoLoader.TILE_SIZE * level;
+        int lastCol = (int) Math.ceil(srcW / span) - 1;
+        int lastRow = (int) Math.ceil(srcH / span) - 1;
+
+        int col0 = Math.max(0, (int) (visX0 / span) - PREFETCH_MARGIN);
+        int row0 = Math.max(0, (int) (visY0 / span) - PREFETCH_MARGIN);
+        int col1 = Math.min(lastCol, (int) ((visX1 - 1) / span) + PREFETCH_MARGIN);
+        int row1 = Math.min(lastRow, (int) ((visY1 - 1) / span) + PREFETCH_MARGIN);
+
+        // Drop the tiles which have scrolled away
+        Iterator<Map.Entry<Long, ImageView>> it = tiles.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<Long, ImageView> entry = it.next();
+            int col = (int) (entry.getKey() >> 32);
+            int row = (int) (long) entry.getKey();
+
+            if (col < col0 || col > col1 || row < row0 || row > row1) {
+                getChildren().remove(entry.getValue());
+                cancelLoad(entry.getKey());
+                it.remove();
+            }
+        }
+
+        for (int row = row0; row <= row1; row++) {
+            for (int col = col0; col <= col1; col++) {
+                showTile(col, row);
+            }
+        }
+    }
+
+    /**
+     * 移除所有瓦片
+     */
+    void clear() {
+        generation++;
+        loads.values().forEach(load -> load.cancel(true));
+        loads.clear();
+        tiles.clear();
+        getChildren().clear();
+        photo = null;
+        level = -1;
+    }
+
+    boolean isEmpty() {
+        return photo == null;
+    }
+
+    /**
+     * 根据屏幕上每个原图像素对应的设备像素数选择瓦片的降采样级别
+     */
+    static int getTileLevel(double deviceScale) {
+        int tileLevel = PhotoLoader.FULL_LEVEL;
+        while (tileLevel < PhotoLoader.MAX_LEVEL && tileLevel * 2 * deviceScale <= 1.0) {
+            tileLevel *= 2;
+        }
+
+        return tileLevel;
+    }
+
+    private void showTile(int col, int row) {
+        long key = ((long) col << 32) | (row & 0xFFFFFFFFL);
+        if (tiles.containsKey(key)) {
+            return;
+        }
+
+        Rectangle region = PhotoLoader.getTileRegion(photo, level, col, row);
+        if (region == null) {
+            return;
+        }
+
+        ImageView view = new ImageView();
+        view.setX(region.x);
+        view.setY(region.y);
+        view.setFitWidth(region.width);
+        view.setFitHeight(region.height);
+        view.setSmooth(true);
+
+        tiles.put(key, view);
+        getChildren().add(view);
+
+        Image cached = loader.getTileIfPresent(photo, level, col, row);
+        if (cached != null) {
+            view.setImage(cached);
+            return;
+        }
+
+        long expected = generation;
+        CompletableFuture<Image> load = loader.loadTileAsync(photo, level, col, row);
+        loads.put(key, load);
+
+        load.whenComplete((img, ex) -> Platform.runLater(() -> {
+            loads.remove(key, load);
+
+            // The view has been dropped if the tile scrolled away meanwhile
+            if (ex == null && generation == expected && tiles.get(key) == view) {
+                view.setImage(img);
+            }
+        })).exceptionally(ex -> {
+            if (DEBUG) Logger.logErr("Load tile failed: ", ex);
+            return null;
+        });
+    }
+
+    /**
+     * 取消已经移出预取范围的瓦片的解码，排队中的解码不会再开始，
+     * 正在进行的解码会在读取器的下一次回调时中止
+     */
+    private void cancelLoad(long key) {
+        CompletableFuture<Image> load = loads.remove(key);
+        if (load != null) {
+            load.cancel(true);
+        }
+    }
+}
@@ -21,6 +21,7 @@ package io.loraine.photohub.viewer;
 import io.loraine.photohub.photo.Photo;
 import io.loraine.photohub.photo.Photos;
 import io.loraine.photohub.photo.PhotoLoader;
+import io.loraine.photohub.photo.decode.ImageFormat;
 
 import io.loraine.photohub.util.Logger;
 import javafx.animation.PauseTransition;
@@ -30,6 +31,7 @@ import javafx.animation.Timeline;
 import javafx.beans.property.ReadOnlyStringProperty;
 import javafx.beans.value.ChangeListener;
 
+import javafx.event.EventHandler;
 import javafx.fxml.FXML;
 import javafx.scene.Cursor;
 import javafx.scene.control.Label;
@@ -39,6 +41,7 @@ import javafx.scene.image.Image;
 import javafx.scene.image.ImageView;
 import javafx.scene.CacheHint;
 
+import javafx.scene.input.KeyEvent;
 import javafx.scene.input.MouseButton;
 import javafx.scene.input.MouseEvent;
 import javafx.scene.layout.BorderPane;
@@ -129,6 +132,10 @@ public class ViewController implements Closeable {
     private final PhotoLoader loader;
     private ViewProperty viewProperty;
     private Timeline slideShowTimeline;
+    private TileLayer tileLayer;
+
+    // Photos larger than this are shown by tiles instead of a full decode when zoomed in
+    private static final long TILE_THRESHOLD = 16L * 1024 * 1024;
 
     private static final boolean DEBUG = false;
 
@@ -195,6 +202,25 @@ public class ViewController implements Closeable {
         viewProperty.curPhotoProperty().set(newPhoto);
     }
 
+    /**
+     * 切换到当前照片文件（多页 TIFF）的前一页或后一页，首尾循环
+     *
+     * @param step 1 为后一页，-1 为前一页
+     */
+    private void toPage(int step) {
+        Photo curPhoto = viewProperty.curPhotoProperty().get();
+        int pages = viewProperty.pageCountProperty().get();
+
+        if (curPhoto == null || pages <= 1) {
+            return;
+        }
+
+        viewProperty.isFittedProperty().set(true);
+
+        int page = (curPhoto.getPageIndex() + step + pages) % pages;
+        viewProperty.curPhotoProperty().set(curPhoto.getPage(page));
+    }
+
     private void playPhoto() {
         if (isIndexAndCurPhotoInvalid()) {
             return;
@@ -350,11 +376,20 @@ public class ViewController implements Closeable {
 
             Image image = photoView.getImage();
             if (image != null) {
-                photoView.setFitWidth(image.getWidth());
-                photoView.setFitHeight(image.getHeight());
+                // The displayed image may be a subsampled level, lay it out as the original photo
+                double[] srcSize = getSourceSize(image);
+                photoView.setFitWidth(srcSize[0]);
+                photoView.setFitHeight(srcSize[1]);
 
                 photoView.setScaleX(scale);
                 photoView.setScaleY(scale);
+
+                // Large photos stream in tiles of the visible area instead, see updateTiles()
+                if (!isTileable(viewProperty.curPhotoProperty().get())) {
+                    double renderScale = getRenderScale();
+                    viewProperty.requestResolution(
+                            srcSize[0] * scale * renderScale, srcSize[1] * scale * renderScale);
+                }
             } else {
                 String msg = "Image is unloaded.";
                 // showError(msg, Duration.seconds(3));
@@ -374,6 +409,10 @@ public class ViewController implements Closeable {
 
             photoView.setTranslateX(0);
             photoView.setTranslateY(0);
+
+            leaveTiles();
+            viewProperty.requestResolution(viewProperty.viewWidthProperty().get(),
+                    viewProperty.viewHeightProperty().get());
         }
     }
 
@@ -529,6 +568,56 @@ public class ViewController implements Closeable {
 
         photoView.setTranslateX(offsetX);
         photoView.setTranslateY(offsetY);
+
+        updateTiles();
+    }
+
+    /**
+     * 放大查看大图时，用瓦片层显示可视区域内的高分辨率瓦片，
+     * 其余情况下移除瓦片层
+     */
+    private void updateTiles() {
+        if (tileLayer == null) {
+            return;
+        }
+
+        Photo current = viewProperty.curPhotoProperty().get();
+        Image shown = photoView.getImage();
+
+        if (viewProperty.isFittedProperty().get() || shown == null || !isTileable(current)) {
+            leaveTiles();
+            return;
+        }
+
+        double viewScale = photoView.getScaleX();
+        double renderScale = getRenderScale();
+
+        // The shown image is already fine enough for the zoom
+        if (shown.getWidth() * TileLayer.getTileLevel(viewScale * renderScale) >= current.getWidth()) {
+            leaveTiles();
+            return;
+        }
+
+        // The node cache would hold another copy of the whole image
+        photoView.setCache(false);
+
+        tileLayer.update(current, centerStackPane.getWidth(), centerStackPane.getHeight(),
+                viewScale, photoView.getTranslateX(), photoView.getTranslateY(), renderScale);
+    }
+
+    private void leaveTiles() {
+        if (tileLayer != null && !tileLayer.isEmpty()) {
+            tileLayer.clear();
+        }
+
+        if (photoView != null) {
+            photoView.setCache(true);
+        }
+    }
+
+    private boolean isTileable(Photo photo) {
+        return photo != null && photo.isDimensionsLoaded() && photo.getFormat() != ImageFormat.GIF
+                && photo.getWidth() * photo.getHeight() >= TILE_THRESHOLD;
     }
 
     /**
@@ -542,8 +631,9 @@ public class ViewController implements Closeable {
             return -1;
         }
 
-        double imgW = img.getWidth();
-        double imgH = img.getHeight();
+        double[] srcSize = getSourceSize(img);
+        double imgW = srcSize[0];
+        double imgH = srcSize[1];
         if (imgW <= 0 || imgH <= 0) {
             return -1;
         }
@@ -565,6 +655,53 @@ public class ViewController implements Closeable {
         return scale;
     }
 
+    /**
+     * 获取当前图片的原始尺寸。显示的图片可能是按视口大小降采样后的版本，
+     * 缩放比例应当相对于原始尺寸计算
+     *
+     * @param img 当前图片
+     * @return {@code {width, height}}，当前照片尺寸未加载时返回 {@code img} 的尺寸
+     */
+    private double[] getSourceSize(Image img) {
+        Photo current = viewProperty.curPhotoProperty().get();
+
+        if (current != null && current.isDimensionsLoaded() && current.getWidth() > 0 && current.getHeight() > 0) {
+            return new double[]{current.getWidth(), current.getHeight()};
+        }
+
+        return new double[]{img.getWidth(), img.getHeight()};
+    }
+
+    /**
+     * 获取窗口的输出缩放比例（HiDPI），窗口尚未显示时返回 {@code 1.0}
+     */
+    private double getRenderScale() {
+        if (centerStackPane == null || centerStackPane.getScene() == null
+                || centerStackPane.getScene().getWindow() == null) {
+            return 1.0;
+        }
+
+        return Math.max(1.0, centerStackPane.getScene().getWindow().getRenderScaleX());
+    }
+
+    /**
+     * 同步可视区域的像素尺寸，自适应模式下窗口变大时加载更精细的图片
+     */
+    private void updateViewSize() {
+        double renderScale = getRenderScale();
+        double viewW = centerStackPane.getWidth() * renderScale;
+        double viewH = centerStackPane.getHeight() * renderScale;
+
+        viewProperty.viewWidthProperty().set(viewW);
+        viewProperty.viewHeightProperty().set(viewH);
+
+        if (viewProperty.isFittedProperty().get()) {
+            viewProperty.requestResolution(viewW, viewH);
+        } else {
+            updateTiles();
+        }
+    }
+
     private void showError(String msg, int delayMillis) {
         resetError();
 
@@ -671,6 +808,21 @@ public class ViewController implements Closeable {
         }
     };
 
+    private ChangeListener<Number> viewSizeListener = (o, oldV, newV) -> updateViewSize();
+
+    // PageUp / PageDown 翻页
+    private final EventHandler<KeyEvent> pageKeyHandler = event -> {
+        switch (event.getCode()) {
+            case PAGE_UP -> toPage(-1);
+            case PAGE_DOWN -> toPage(1);
+            default -> {
+                return;
+            }
+        }
+
+        event.consume();
+    };
+
     private ChangeListener<Object> scaleListener = (o, oldV, newV) -> {
         Image curImg = photoView.getImage();
 
@@ -742,6 +894,14 @@ public class ViewController implements Closeable {
             centerStackPane.setClip(clip);
 
             rootPane.setMinSize(0, 0);
+            rootPane.addEventHandler(KeyEvent.KEY_PRESSED, pageKeyHandler);
+
+            // Tiles are drawn above the photo but below the loading message
+            tileLayer = new TileLayer(loader);
+            centerStackPane.getChildren().add(centerStackPane.getChildren().indexOf(photoView) + 1, tileLayer);
+
+            centerStackPane.widthProperty().addListener(viewSizeListener);
+            centerStackPane.heightProperty().addListener(viewSizeListener);
 
             loadMsg.visibleProperty().bind(viewProperty.isImgLoadingProperty());
 
@@ -939,11 +1099,23 @@ public class ViewController implements Closeable {
         }
 
         // 8. 断开其它引用（便于 GC）
+        if (rootPane != null) {
+            rootPane.removeEventHandler(KeyEvent.KEY_PRESSED, pageKeyHandler);
+        }
         rootPane = null;
         topHBox = null;
         topFilling = null;
         photoStatus = null;
 
+        if (tileLayer != null) {
+            tileLayer.clear();
+            centerStackPane.getChildren().remove(tileLayer);
+            tileLayer = null;
+        }
+
+        centerStackPane.widthProperty().removeListener(viewSizeListener);
+        centerStackPane.heightProperty().removeListener(viewSizeListener);
+
         centerStackPane.clipProperty().unbind();
         centerStackPane.setClip(null);
         centerStackPane = null;
@@ -956,6 +1128,7 @@ public class ViewController implements Closeable {
         timeStrListener = null;
         sizeComboShowingListener = null;
         fittedListener = null;
+        viewSizeListener = null;
         scaleListener = null;
 
         if (DEBUG) {
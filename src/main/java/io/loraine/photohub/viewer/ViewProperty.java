@@ -19,6 +19,7 @@
 package io.loraine.photohub.viewer;
 
 import io.loraine.photohub.photo.*;
+import io.loraine.photohub.photo.decode.ImageFormat;
 
 import io.loraine.photohub.util.Logger;
 import javafx.application.Platform;
@@ -34,12 +35,17 @@ import java.util.concurrent.CompletableFuture;
 public class ViewProperty implements Closeable {
     private final IntegerProperty curIdx = new SimpleIntegerProperty(this, "curIdx", -1);
     private final IntegerProperty photoCount = new SimpleIntegerProperty(this, "photoCount", -1);
+    private final IntegerProperty pageCount = new SimpleIntegerProperty(this, "pageCount", 1);
 
     private final DoubleProperty curHeight = new SimpleDoubleProperty(this, "curHeight", 0);
     private final DoubleProperty curWidth = new SimpleDoubleProperty(this, "curWidth", 0);
 
     private final DoubleProperty curZoom = new SimpleDoubleProperty(this, "curZoom", -1.0);
 
+    // Size of the display area in device pixels, 0 means unknown
+    private final DoubleProperty viewWidth = new SimpleDoubleProperty(this, "viewWidth", 0);
+    private final DoubleProperty viewHeight = new SimpleDoubleProperty(this, "viewHeight", 0);
+
     private final ObjectProperty<Photo> curPhoto = new SimpleObjectProperty<>(this, "curPhoto", null);
     private final ObjectProperty<Image> displayImg = new SimpleObjectProperty<>(this, "displayImg", null);
 
@@ -61,6 +67,8 @@ public class ViewProperty implements Closeable {
     private final PhotoLoader loader;
     private final Boolean DEBUG = false;
 
+    private GifPlayer gifPlayer; // Only touched on the JavaFX thread
+
     public ViewProperty(PhotoLoader photoLoader, Photo photo) throws IOException {
         if (photoLoader == null || photo == null) {
             throw new NullPointerException("PhotoLoader cannot be null");
@@ -85,13 +93,17 @@ public class ViewProperty implements Closeable {
         photoListener = (o, oldV, newV) -> {
             updatePhotoMeta(null);
 
+            // Stop decoding the photo skipped, so it won't hold up the new one
+            if (oldV != null && !oldV.equals(newV)) {
+                loader.cancelLoad(oldV);
+            }
+
             if (newV != null) {
                 if (DEBUG) Logger.log("CurPhoto changed to " + newV.getName());
 
+                curIdx.set(loader.getPhotoIndex(newV));
                 loadImg(newV);
                 loadPhotoMeta(newV);
-                curIdx.set(loader.getPhotoIndex(newV));
-                loader.preLoadPhotosAsync(curIdx.get(), 3);
             }
         };
 
@@ -140,6 +152,8 @@ public class ViewProperty implements Closeable {
     }
 
     private void dispose() {
+        stopAnimation();
+
         if (photoListener != null) {
             curPhoto.removeListener(photoListener);
             photoListener = null;
@@ -198,6 +212,7 @@ public class ViewProperty implements Closeable {
     }
 
     void loadImg(Photo photo) {
+        stopAnimation();
         isImgLoading.set(true);
         displayImg.set(null);
 
@@ -205,13 +220,33 @@ public class ViewProperty implements Closeable {
             return;
         }
 
-        loader.loadPhotoAsync(photo).thenAccept(img -> Platform.runLater(() -> {
+        // A preloaded gif is played by JavaFX itself, the others frame by frame
+        if (photo.getFormat() == ImageFormat.GIF && loader.getPhotoIfPresent(photo) == null) {
+            loadAnimation(photo);
+            return;
+        }
+
+        ProgressiveLoad load = loader.loadPhotoProgressiveAsync(photo, getViewWidth(), getViewHeight());
+
+        // Show the preview only if the full image hasn't arrived
+        load.preview().thenAccept(img -> Platform.runLater(() -> {
+            if (photo.equals(curPhoto.get()) && displayImg.get() == null) {
+                displayImg.set(img);
+                isImgLoading.set(false);
+            }
+        })).exceptionally(ex -> {
+            if (DEBUG) Logger.logErr("Load preview failed: ", ex);
+            return null;
+        });
+
+        load.full().thenAccept(img -> Platform.runLater(() -> {
                     if (photo.equals(curPhoto.get())) {
                         if (displayImg.get() != img) {
                             displayImg.set(img); // Avoid duplicated setting
                         }
 
                         isImgLoading.set(false);
+                        preLoadAround(photo);
                     }
                 }))
                 .exceptionally(ex -> {
@@ -228,11 +263,116 @@ public class ViewProperty implements Closeable {
                 });
     }
 
+    private void loadAnimation(Photo photo) {
+        loader.loadAnimationAsync(photo).thenAccept(animation -> Platform.runLater(() -> {
+                    // The photo may have changed, or the viewer closed meanwhile
+                    if (!photo.equals(curPhoto.get()) || photoListener == null) {
+                        animation.close();
+                        return;
+                    }
+
+                    stopAnimation();
+                    displayImg.set(animation.getFirstFrame().image());
+                    isImgLoading.set(false);
+
+                    gifPlayer = new GifPlayer(animation, displayImg::set);
+                    gifPlayer.start();
+
+                    preLoadAround(photo);
+                }))
+                .exceptionally(ex -> {
+                    String msg = "Load photo failed: " + ex.getMessage();
+
+                    Platform.runLater(() -> {
+                        if (photo.equals(curPhoto.get())) {
+                            displayImg.set(null);
+                            isImgLoading.set(false);
+                            setError(msg);
+                        }
+                    });
+
+                    if (DEBUG) Logger.logErr("Load animation failed: ", ex);
+                    return null;
+                });
+    }
+
+    /**
+     * Preload the neighbours only after the current photo is shown, so that
+     * holding the arrow key doesn't queue up decodes of the photos skipped.
+     */
+    private void preLoadAround(Photo photo) {
+        if (photo.equals(curPhoto.get())) {
+            loader.preLoadPhotosAsync(curIdx.get(), 3, getViewWidth(), getViewHeight());
+        }
+    }
+
+    private void stopAnimation() {
+        if (gifPlayer != null) {
+            gifPlayer.dispose();
+            gifPlayer = null;
+        }
+    }
+
+    /**
+     * Make sure the displayed image has enough pixels to be shown fitted in a
+     * {@code width x height} (device pixels) box, e.g. after zooming in or
+     * enlarging the window. A finer resolution level of the current photo
+     * will be loaded and swapped in if the displayed one is too coarse.
+     *
+     * @param width  width of the box in device pixels
+     * @param height height of the box in device pixels
+     */
+    void requestResolution(double width, double height) {
+        Photo photo = curPhoto.get();
+        Image shown = displayImg.get();
+
+        if (photo == null || shown == null || width <= 0 || height <= 0 || !photo.isDimensionsLoaded()) {
+            return;
+        }
+
+        double srcW = photo.getWidth();
+        double srcH = photo.getHeight();
+        double neededScale = Math.min(1.0, Math.min(width / srcW, height / srcH));
+
+        // Already at full resolution or enough for the request
+        if (shown.getWidth() >= srcW || shown.getWidth() >= Math.floor(srcW * neededScale)) {
+            return;
+        }
+
+        int targetW = (int) Math.ceil(width);
+        int targetH = (int) Math.ceil(height);
+
+        loader.loadPhotoAsync(photo, targetW, targetH).thenAccept(img -> Platform.runLater(() -> {
+            Image cur = displayImg.get();
+            if (photo.equals(curPhoto.get()) && cur != null && img.getWidth() > cur.getWidth()) {
+                displayImg.set(img);
+            }
+        })).exceptionally(ex -> {
+            if (DEBUG) Logger.logErr("Load finer level failed: ", ex);
+            return null;
+        });
+    }
+
+    private int getViewWidth() {
+        return (int) Math.ceil(viewWidth.get());
+    }
+
+    private int getViewHeight() {
+        return (int) Math.ceil(viewHeight.get());
+    }
+
     private void updatePhotoMeta(Photo photo) {
         Platform.runLater(() -> {
             try {
                 if (photo != null && photo.isDimensionsLoaded() && photo.isAttributesLoaded()) {
-                    displayName.set(photo.getName());
+                    int pages = Math.max(1, photo.getPageCount());
+                    pageCount.set(pages);
+
+                    if (pages > 1) {
+                        displayName.set(photo.getName() + " (" + (photo.getPageIndex() + 1) + " / " + pages + ")");
+                    } else {
+                        displayName.set(photo.getName());
+                    }
                     displaySize.set(photo.getStorageSizeLiteral());
                     displayDimension.set(photo.getDimensionsLiteral());
                     displayType.set(photo.getType());
@@ -241,6 +381,7 @@ public class ViewProperty implements Closeable {
                     curHeight.set(photo.getHeight());
                     curWidth.set(photo.getWidth());
                 } else {
+                    pageCount.set(1);
                     displayName.set("N/A");
                     displaySize.set("N/A");
                     displayDimension.set("N/A x N/A");
@@ -278,6 +419,13 @@ public class ViewProperty implements Closeable {
         return photoCount;
     }
 
+    /**
+     * 当前照片文件的页数，元数据加载完成前为 1
+     */
+    public IntegerProperty pageCountProperty() {
+        return pageCount;
+    }
+
     public DoubleProperty curHeightProperty() {
         return curHeight;
     }
@@ -290,6 +438,14 @@ public class ViewProperty implements Closeable {
         return curZoom;
     }
 
+    public DoubleProperty viewWidthProperty() {
+        return viewWidth;
+    }
+
+    public DoubleProperty viewHeightProperty() {
+        return viewHeight;
+    }
+
     public ObjectProperty<Photo> curPhotoProperty() {
         return curPhoto;
     }
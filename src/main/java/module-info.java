@@ -15,6 +15,12 @@ module io.loraine.photohub {
 
     requires java.desktop;
 
+    // SIMD kernels, only used if the module is added at runtime (--add-modules jdk.incubator.vector)
+    requires static jdk.incubator.vector;
+
+    // Extra decoders, see io.loraine.photohub.photo.decode.DecoderRegistry
+    uses javax.imageio.spi.ImageReaderSpi;
+
     opens io.loraine.photohub.demo to javafx.fxml;
     opens io.loraine.photohub.main to javafx.fxml;
     opens io.loraine.photohub.viewer to javafx.fxml;
@@ -23,6 +29,10 @@ module io.loraine.photohub {
     exports io.loraine.photohub.demo;
     exports io.loraine.photohub.main;
     exports io.loraine.photohub.photo;
+    exports io.loraine.photohub.photo.anim;
+    exports io.loraine.photohub.photo.cache;
+    exports io.loraine.photohub.photo.decode;
+    exports io.loraine.photohub.photo.pixel;
     exports io.loraine.photohub.photo.thumb;
     exports io.loraine.photohub.viewer;
     exports io.loraine.photohub.fileman;